@@ -19,15 +19,35 @@
 
 package org.matsim.contrib.gtfs;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.Map.Entry;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.ints.IntHeapPriorityQueue;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.network.Link;
@@ -37,12 +57,15 @@ import org.matsim.api.core.v01.network.Node;
 import org.matsim.core.config.Config;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.pt.transitSchedule.TransitScheduleWriterV2;
 import org.matsim.pt.transitSchedule.api.Departure;
 import org.matsim.pt.transitSchedule.api.TransitLine;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitRouteStop;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 import org.matsim.pt.utils.TransitScheduleValidator;
 import org.matsim.vehicles.MatsimVehicleWriter;
 import org.matsim.vehicles.Vehicle;
@@ -55,6 +78,28 @@ import org.matsim.vehicles.Vehicles;
 */
 
 class CreateVehicleCirculation {
+
+	private static final Logger log = LogManager.getLogger(CreateVehicleCirculation.class);
+
+	private static final double SECONDS_PER_DAY = 24 * 3600;
+
+	/** Free speed in m/s of links between end and start stations, if not given otherwise */
+	static final double DEFAULT_DEADHEAD_SPEED = 10.0;
+	/** Links between nodes at the same coordinate still need a positive length */
+	private static final double MIN_DEADHEAD_LINK_LENGTH = 1.0;
+	/** Departures with the same time are ordered by their id, left-padded with zeros to this length */
+	static final int PADDED_ID_LENGTH = 20;
+
+	/** Determines how the departures of a TransitLine are chained to vehicle workings
+	 */
+	enum BlockingMode {
+		/** Each departure is followed by the earliest possible departure from its end station, in order of departure time */
+		greedy,
+		/** Minimizes the number of vehicles per TransitLine with a maximum matching of compatible departures (Hopcroft-Karp).
+		 * Vehicle counts are compared with the greedy mode. Vehicles are not grouped by depot, as the schedule has no depots. */
+		minimumFleet
+	}
+
 	/** Replaces Vehicles for Vehicles which serve more then one departure but do not change TL. If TL should be changed check interface for LinTim.
 	 * 
 	 * @param scenario from the MATSim scenario
@@ -63,86 +108,960 @@ class CreateVehicleCirculation {
 	 * @return
 	 */
 	static Scenario create(Scenario scenario, int minTimeToWaitAtEndstop, boolean overrideDelay) {
+		return create(scenario, minTimeToWaitAtEndstop, overrideDelay, BlockingMode.greedy);
+	}
+
+	/** Replaces Vehicles for Vehicles which serve more then one departure but do not change TL. Uses all available processors.
+	 * 
+	 * @param scenario from the MATSim scenario
+	 * @param minTimeToWaitAtEndstop minimal time Difference for a vehicle after ending a route and starting the next
+	 * @param overrideDelay if the minTimeToWaitAtEndStop should be overritten. Usefull to create less S + U Vehicles in Berlin Scenario
+	 * @param blockingMode how departures are chained to vehicle workings
+	 * @return
+	 */
+	static Scenario create(Scenario scenario, int minTimeToWaitAtEndstop, boolean overrideDelay, BlockingMode blockingMode) {
+		return create(scenario, minTimeToWaitAtEndstop, overrideDelay, blockingMode, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Replaces Vehicles for Vehicles which serve more then one departure but do not change TL.
+	 * The blocking of each line is computed independently on a ForkJoinPool, afterwards vehicles and links are added in the order of the lines,
+	 * so vehicle and link ids do not depend on the number of threads.
+	 * 
+	 * @param scenario from the MATSim scenario
+	 * @param minTimeToWaitAtEndstop minimal time Difference for a vehicle after ending a route and starting the next
+	 * @param overrideDelay if the minTimeToWaitAtEndStop should be overritten. Usefull to create less S + U Vehicles in Berlin Scenario
+	 * @param blockingMode how departures are chained to vehicle workings
+	 * @param numberOfThreads number of threads computing the blockings
+	 * @return
+	 */
+	static Scenario create(Scenario scenario, int minTimeToWaitAtEndstop, boolean overrideDelay, BlockingMode blockingMode, int numberOfThreads) {
+		return create(scenario, minTimeToWaitAtEndstop, overrideDelay, blockingMode, numberOfThreads, Double.POSITIVE_INFINITY);
+	}
+
+	/** Replaces Vehicles for Vehicles which serve more then one departure but do not change TL. A vehicle only serves a departure from its end station
+	 * if it does not wait longer than maxLayoverTime in addition to the minimal wait time, which also limits the candidates of the minimum fleet blocking.
+	 * 
+	 * @param scenario from the MATSim scenario
+	 * @param minTimeToWaitAtEndstop minimal time Difference for a vehicle after ending a route and starting the next
+	 * @param overrideDelay if the minTimeToWaitAtEndStop should be overritten. Usefull to create less S + U Vehicles in Berlin Scenario
+	 * @param blockingMode how departures are chained to vehicle workings
+	 * @param numberOfThreads number of threads computing the blockings
+	 * @param maxLayoverTime maximal additional wait time at the end station, Double.POSITIVE_INFINITY for no limit
+	 * @return
+	 */
+	static Scenario create(Scenario scenario, int minTimeToWaitAtEndstop, boolean overrideDelay, BlockingMode blockingMode, int numberOfThreads,
+			double maxLayoverTime) {
+		return create(scenario, minTimeToWaitAtEndstop, overrideDelay, blockingMode, numberOfThreads, maxLayoverTime, false);
+	}
+
+	/** Replaces Vehicles for Vehicles which serve more then one departure. Departures with a GTFS block ({@link GtfsConverter#BLOCK_ID}) are served
+	 * by one vehicle per block in order of departure time, also if the block changes the TransitLine. Only departures without block are linked 
+	 * per TransitLine as in {@link #create(Scenario, int, boolean, BlockingMode, int)}.
+	 * 
+	 * @param scenario from the MATSim scenario
+	 * @param minTimeToWaitAtEndstop minimal time Difference for a vehicle after ending a route and starting the next, for departures without block
+	 * @param overrideDelay if the minTimeToWaitAtEndStop should be overritten. Usefull to create less S + U Vehicles in Berlin Scenario
+	 * @param blockingMode how departures without block are chained to vehicle workings
+	 * @param numberOfThreads number of threads computing the blockings
+	 * @return
+	 */
+	static Scenario createFromGtfsBlocks(Scenario scenario, int minTimeToWaitAtEndstop, boolean overrideDelay, BlockingMode blockingMode, int numberOfThreads) {
+		return create(scenario, minTimeToWaitAtEndstop, overrideDelay, blockingMode, numberOfThreads, Double.POSITIVE_INFINITY, true);
+	}
+
+	private static Scenario create(Scenario scenario, int minTimeToWaitAtEndstop, boolean overrideDelay, BlockingMode blockingMode, int numberOfThreads,
+			double maxLayoverTime, boolean useGtfsBlocks) {
 		Network network = scenario.getNetwork();
 		Vehicles transitVehicles = scenario.getTransitVehicles();
 		TransitSchedule transitSchedule = scenario.getTransitSchedule();
 		
-		Map<Id<Vehicle>, VehicleType> mapOfVecOnLine = new HashMap<>();
-		Map<Id<Link>, Set<Node>> mapOfCreatedLinks = new HashMap<>();
+		Map<Id<Vehicle>, VehicleType> mapOfVecOnLine = new LinkedHashMap<>();
+		DeadheadLinks deadheadLinks = new DeadheadLinks(network, DEFAULT_DEADHEAD_SPEED);
+		
+		List<TransitLine> lines = new ArrayList<>(transitSchedule.getTransitLines().values());
+		Set<Departure> departuresInBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+		if(useGtfsBlocks) {
+			departuresInBlocks = commitGtfsBlocks(lines, transitVehicles, mapOfVecOnLine, deadheadLinks, minTimeToWaitAtEndstop, overrideDelay);
+		}
+		Predicate<Departure> withoutBlock = Predicate.not(departuresInBlocks::contains);
+		List<Blocking> blockings = computeBlockings(lines, minTimeToWaitAtEndstop, overrideDelay, blockingMode, numberOfThreads, maxLayoverTime, withoutBlock);
+		
+		// ordered merge, the only step which modifies the scenario
+		int greedyVehicles = 0;
+		for(Blocking blocking : blockings) {
+			commitBlocking(blocking, transitVehicles, mapOfVecOnLine, deadheadLinks);
+			greedyVehicles += blocking.greedyVehicles();
+			if(blocking.vehicles() != blocking.greedyVehicles()) {
+				log.info("Line {}: {} vehicles instead of {} with greedy blocking", blocking.name(), blocking.vehicles(), blocking.greedyVehicles());
+			}
+		}
+		
+		System.out.println(mapOfVecOnLine.keySet().size() + " were created as vehicle working vehicles!");
+		log.info("{} deadhead links were created", deadheadLinks.size());
+		if(blockingMode != BlockingMode.greedy) {
+			log.info("Blocking mode {} needs {} vehicles, greedy blocking needs {} vehicles", blockingMode, mapOfVecOnLine.size(), greedyVehicles);
+		}
+		addTransitVehicles(transitVehicles, mapOfVecOnLine);
+
+		return scenario;
+	}
+
+	/** Computes the blockings of all lines in parallel. Blockings only read the schedule, so lines are independent.
+	 * 
+	 * @return blockings in the order of the lines
+	 */
+	static List<Blocking> computeBlockings(List<TransitLine> lines, int minTimeToWaitAtEndstop, boolean overrideDelay, BlockingMode blockingMode,
+			int numberOfThreads) {
+		return computeBlockings(lines, minTimeToWaitAtEndstop, overrideDelay, blockingMode, numberOfThreads, Double.POSITIVE_INFINITY, departure -> true);
+	}
+
+	/** Computes the blockings of all lines in parallel, considering only some of the departures.
+	 * 
+	 * @param maxLayoverTime maximal additional wait time at the end station, Double.POSITIVE_INFINITY for no limit
+	 * @param includeDeparture departures which should be chained, must be safe for concurrent use
+	 * @return blockings in the order of the lines
+	 */
+	static List<Blocking> computeBlockings(List<TransitLine> lines, int minTimeToWaitAtEndstop, boolean overrideDelay, BlockingMode blockingMode,
+			int numberOfThreads, double maxLayoverTime, Predicate<Departure> includeDeparture) {
+		return computeBlockings(lines, numberOfThreads, 
+				line -> computeBlocking(line, minTimeToWaitAtEndstop, overrideDelay, blockingMode, maxLayoverTime, includeDeparture));
+	}
+
+	/** Computes the blockings of all lines in parallel on a ForkJoinPool
+	 * 
+	 * @param computeLineBlocking computes the blocking of one line without modifying the scenario
+	 * @return blockings in the order of the lines
+	 */
+	static List<Blocking> computeBlockings(List<TransitLine> lines, int numberOfThreads, Function<TransitLine, Blocking> computeLineBlocking) {
+		long start = System.nanoTime();
+		List<Blocking> blockings = ParallelRunner.call(numberOfThreads, () -> lines.parallelStream()
+				.map(computeLineBlocking)
+				.toList());
+		log.info("Computed blockings of {} lines on {} threads in {} ms", lines.size(), numberOfThreads, (System.nanoTime() - start) / 1_000_000);
+		return blockings;
+	}
+
+	/** Replaces Vehicles for Vehicles which serve more then one departure but do not change TL, for schedules spanning several days, e.g. converted
+	 * with a start and end date, or departures copied over midnight by {@link TransitSchedulePostProcessTools}.
+	 * Departures are processed day by day. Vehicles which are idle at the end of a day continue on the next day, so each day does not get its own fleet.
+	 * A departure copied 24 hours earlier or later is served by the vehicle of its original departure if the workings of both vehicles do not overlap,
+	 * so vehicles running over midnight are not counted twice.
+	 * 
+	 * @param scenario from the MATSim scenario
+	 * @param minTimeToWaitAtEndstop minimal time Difference for a vehicle after ending a route and starting the next
+	 * @param overrideDelay if the minTimeToWaitAtEndStop should be overritten. Usefull to create less S + U Vehicles in Berlin Scenario
+	 * @param numberOfThreads number of threads computing the blockings
+	 * @return
+	 */
+	static Scenario createMultiDay(Scenario scenario, int minTimeToWaitAtEndstop, boolean overrideDelay, int numberOfThreads) {
+		Vehicles transitVehicles = scenario.getTransitVehicles();
+		Map<Id<Vehicle>, VehicleType> mapOfVecOnLine = new LinkedHashMap<>();
+		DeadheadLinks deadheadLinks = new DeadheadLinks(scenario.getNetwork(), DEFAULT_DEADHEAD_SPEED);
+		
+		List<TransitLine> lines = new ArrayList<>(scenario.getTransitSchedule().getTransitLines().values());
+		List<Blocking> blockings = computeBlockings(lines, numberOfThreads, line -> computeMultiDayBlocking(line, minTimeToWaitAtEndstop, overrideDelay));
+		
+		int vehiclesWithoutMerging = 0;
+		for(Blocking blocking : blockings) {
+			commitBlocking(blocking, transitVehicles, mapOfVecOnLine, deadheadLinks);
+			vehiclesWithoutMerging += blocking.greedyVehicles();
+		}
+		
+		log.info("{} vehicles serve all days, {} vehicles would be needed without merging copied departures. {} deadhead links were created",
+				mapOfVecOnLine.size(), vehiclesWithoutMerging, deadheadLinks.size());
+		addTransitVehicles(transitVehicles, mapOfVecOnLine);
+		
+		return scenario;
+	}
+
+	/** Computes the vehicle workings of one TransitLine over several days without modifying the schedule. Departures are grouped by the day of their
+	 * departure time and swept in order of departure time. Only the vehicles, which are idle at a station or still busy, are kept as index,
+	 * so the memory needed besides the result does not grow with the number of days.
+	 * 
+	 * @param transitLine TransitLine
+	 * @param minTimeToWaitAtEndstop minimal time between end of route and next start for a vehicle working
+	 * @param overrideMinDelay Boolean, if S + U trains should be set to 900seconds 
+	 * @return blocking of the line, greedyVehicles is the number of vehicles before merging copied departures
+	 */
+	static Blocking computeMultiDayBlocking(TransitLine transitLine, int minTimeToWaitAtEndstop, boolean overrideMinDelay) {
+		Map<Departure, DepartureInfo> departureIndex = getDepartureIndex(transitLine);
+		int minWaitTimeAtEndStation = getMinWaitTimeAtEndStation(transitLine, minTimeToWaitAtEndstop, overrideMinDelay);
+		
+		SortedMap<Integer, List<Departure>> departuresByDay = new TreeMap<>();
+		int n = 0;
+		for(TransitRoute transitRoute : transitLine.getRoutes().values()) {
+			for(Departure departure : transitRoute.getDepartures().values()) {
+				int day = (int) Math.floor(departure.getDepartureTime() / SECONDS_PER_DAY);
+				departuresByDay.computeIfAbsent(day, k -> new ArrayList<>()).add(departure);
+				n += 1;
+			}
+		}
+		
+		Departure[] departures = new Departure[n];
+		double[] times = new double[n];
+		int[] successors = new int[n];
+		Arrays.fill(successors, -1);
+		int[] vehicleOfDeparture = new int[n];
+		
+		// per vehicle: first and last departure so far, time from which it can serve the next departure and the station where it waits 
+		IntArrayList firstDeparture = new IntArrayList();
+		IntArrayList lastDeparture = new IntArrayList();
+		DoubleArrayList readyTime = new DoubleArrayList();
+		List<String> station = new ArrayList<>();
+		IntComparator byReadyTime = (a, b) -> {
+			int cmp = Double.compare(readyTime.getDouble(a), readyTime.getDouble(b));
+			return cmp != 0 ? cmp : Integer.compare(a, b);
+		};
+		IntHeapPriorityQueue busyVehicles = new IntHeapPriorityQueue(byReadyTime);
+		Map<String, IntHeapPriorityQueue> idleVehiclesByStation = new HashMap<>();
+		
+		int position = 0;
+		for(Entry<Integer, List<Departure>> day : departuresByDay.entrySet()) {
+			List<Departure> dayDepartures = day.getValue();
+			dayDepartures.sort(Comparator.comparingDouble(Departure::getDepartureTime).thenComparing(departure -> departure.getId().toString()));
+			int vehiclesBefore = firstDeparture.size();
+			
+			for(Departure departure : dayDepartures) {
+				double time = departure.getDepartureTime();
+				departures[position] = departure;
+				times[position] = time;
+				
+				// vehicles have to be ready strictly before the departure, as in the other blockings
+				while(!busyVehicles.isEmpty() && readyTime.getDouble(busyVehicles.firstInt()) < time) {
+					int vehicle = busyVehicles.dequeueInt();
+					idleVehiclesByStation.computeIfAbsent(station.get(vehicle), k -> new IntHeapPriorityQueue(byReadyTime)).enqueue(vehicle);
+				}
 				
-		int iteratorLinkId = 0;
-		for(TransitLine line : transitSchedule.getTransitLines().values()) {
-			TreeMap<String, Departure> mapOfAllDepartures = getMapOfAllDeparturesOnLine(line);
-
-			int iterator = 0;
-
-			for(Departure departureOnLine : mapOfAllDepartures.values()) {
-						
-				if(!mapOfVecOnLine.keySet().contains(departureOnLine.getVehicleId())) {
-					VehicleType vecType = transitVehicles.getVehicles().get(departureOnLine.getVehicleId()).getType();
-					departureOnLine.setVehicleId(getUmlaufVecId(line, iterator));
-					mapOfVecOnLine.put(departureOnLine.getVehicleId(), vecType);
-					iterator +=1;
+				DepartureInfo info = departureIndex.get(departure);
+				IntHeapPriorityQueue idleVehicles = idleVehiclesByStation.get(info.firstStop().getStopFacility().getName());
+				int vehicle;
+				if(idleVehicles != null && !idleVehicles.isEmpty()) {
+					vehicle = idleVehicles.dequeueInt();
+					successors[lastDeparture.getInt(vehicle)] = position;
+					lastDeparture.set(vehicle, position);
+				} else {
+					vehicle = firstDeparture.size();
+					firstDeparture.add(position);
+					lastDeparture.add(position);
+					readyTime.add(0);
+					station.add(null);
 				}
+				vehicleOfDeparture[position] = vehicle;
+				readyTime.set(vehicle, time + info.lastStop().getDepartureOffset().seconds() + minWaitTimeAtEndStation);
+				station.set(vehicle, info.lastStop().getStopFacility().getName());
+				busyVehicles.enqueue(vehicle);
+				position += 1;
+			}
+			log.debug("Line {}: {} vehicles added on day {}", transitLine.getId(), firstDeparture.size() - vehiclesBefore, day.getKey());
+		}
+		
+		mergeVehiclesOfCopiedDepartures(departures, times, departureIndex, vehicleOfDeparture, successors, firstDeparture, lastDeparture, readyTime);
+		
+		return new Blocking(transitLine.getId().toString(), new SortedDepartures(departures, times), departureIndex, successors, 
+				countVehicles(successors), firstDeparture.size());
+	}
 
-				iteratorLinkId = getNextDepartureFromEndstation(mapOfAllDepartures, line, departureOnLine, mapOfVecOnLine.keySet(), minTimeToWaitAtEndstop, network, iteratorLinkId,
-						mapOfCreatedLinks, overrideDelay);
+	/** Lets the vehicle of a copied departure and the vehicle of its original departure be the same, if their workings can be chained in order of time,
+	 * i.e. the vehicle gets from the end station of each working to the start of the next one in time, see {@link #canBeChained}.
+	 * Merged workings are chained in order of time by setting the successor of the earlier working's last departure.
+	 */
+	private static void mergeVehiclesOfCopiedDepartures(Departure[] departures, double[] times, Map<Departure, DepartureInfo> departureIndex,
+			int[] vehicleOfDeparture, int[] successors, IntArrayList firstDeparture, IntArrayList lastDeparture, DoubleArrayList readyTime) {
+		Map<Departure, Integer> positions = new IdentityHashMap<>();
+		for(int i = 0; i < departures.length; i++) {
+			positions.put(departures[i], i);
+		}
+		
+		int numberOfVehicles = firstDeparture.size();
+		int[] parent = new int[numberOfVehicles];
+		List<IntArrayList> members = new ArrayList<>(numberOfVehicles);
+		for(int v = 0; v < numberOfVehicles; v++) {
+			parent[v] = v;
+			members.add(IntArrayList.of(v));
+		}
+		
+		for(int i = 0; i < departures.length; i++) {
+			Object dayShift = departures[i].getAttributes().getAttribute(TransitSchedulePostProcessTools.DAY_SHIFT);
+			if(dayShift == null) continue;
+			String prefix = ((Number) dayShift).intValue() < 0 ? TransitSchedulePostProcessTools.COPIED_TO_PREVIOUS_DAY
+					: TransitSchedulePostProcessTools.COPIED_TO_FOLLOWING_DAY;
+			String originalId = departures[i].getId().toString().substring(prefix.length());
+			Departure original = departureIndex.get(departures[i]).route().getDepartures().get(Id.create(originalId, Departure.class));
+			if(original == null) continue;
+			
+			int a = find(parent, vehicleOfDeparture[i]);
+			int b = find(parent, vehicleOfDeparture[positions.get(original)]);
+			if(a == b || !canBeChained(members.get(a), members.get(b), departures, times, departureIndex, firstDeparture, lastDeparture, readyTime)) continue;
+			
+			parent[b] = a;
+			members.get(a).addAll(members.get(b));
+			members.set(b, null);
+		}
+		
+		for(int v = 0; v < numberOfVehicles; v++) {
+			IntArrayList merged = members.get(v);
+			if(merged == null || merged.size() < 2) continue;
+			
+			int[] workings = merged.toIntArray();
+			IntArrays.quickSort(workings, (a, b) -> Double.compare(times[firstDeparture.getInt(a)], times[firstDeparture.getInt(b)]));
+			for(int k = 0; k + 1 < workings.length; k++) {
+				successors[lastDeparture.getInt(workings[k])] = firstDeparture.getInt(workings[k + 1]);
+			}
+		}
+	}
 
+	private static int find(int[] parent, int v) {
+		while(parent[v] != v) {
+			parent[v] = parent[parent[v]];
+			v = parent[v];
+		}
+		return v;
+	}
+
+	/** Whether the workings of both groups, in order of time, can be served by one vehicle. Each working has to be ready, including the wait time at
+	 * the end station, strictly before the next one starts. If the next one starts at another station, the vehicle also has to drive there with
+	 * {@link #DEFAULT_DEADHEAD_SPEED}, as on the deadhead links created for it.
+	 */
+	private static boolean canBeChained(IntArrayList workings, IntArrayList otherWorkings, Departure[] departures, double[] times,
+			Map<Departure, DepartureInfo> departureIndex, IntArrayList firstDeparture, IntArrayList lastDeparture, DoubleArrayList readyTime) {
+		int[] merged = new int[workings.size() + otherWorkings.size()];
+		workings.getElements(0, merged, 0, workings.size());
+		otherWorkings.getElements(0, merged, workings.size(), otherWorkings.size());
+		IntArrays.quickSort(merged, (a, b) -> Double.compare(times[firstDeparture.getInt(a)], times[firstDeparture.getInt(b)]));
+		
+		for(int k = 0; k + 1 < merged.length; k++) {
+			TransitStopFacility end = departureIndex.get(departures[lastDeparture.getInt(merged[k])]).lastStop().getStopFacility();
+			int next = firstDeparture.getInt(merged[k + 1]);
+			TransitStopFacility start = departureIndex.get(departures[next]).firstStop().getStopFacility();
+			double deadheadTime = Objects.equals(end.getName(), start.getName()) ? 0 
+					: CoordUtils.calcEuclideanDistance(end.getCoord(), start.getCoord()) / DEFAULT_DEADHEAD_SPEED;
+			if(readyTime.getDouble(merged[k]) + deadheadTime >= times[next]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Assigns one vehicle to the departures of each GTFS block in one pass over all departures in order of departure time. A departure which
+	 * the vehicle cannot reach in time, i.e. with the minimal wait time at the end station and the deadhead time to the next start stop, starts
+	 * a new vehicle of the block.
+	 * 
+	 * @param lines all TransitLines
+	 * @param transitVehicles Transit Vehicles dataset of MATSim scenario.
+	 * @param mapOfVecOnLine Map of all created Vehicle Circulation Vehicles
+	 * @param deadheadLinks links connecting end and start stations
+	 * @param minTimeToWaitAtEndstop minimal time between end of route and next start for a vehicle working
+	 * @param overrideMinDelay Boolean, if S + U trains should be set to 900seconds 
+	 * @return departures which belong to a block, by identity
+	 */
+	static Set<Departure> commitGtfsBlocks(List<TransitLine> lines, Vehicles transitVehicles, Map<Id<Vehicle>, VehicleType> mapOfVecOnLine,
+			DeadheadLinks deadheadLinks, int minTimeToWaitAtEndstop, boolean overrideMinDelay) {
+		Map<Departure, DepartureInfo> departureIndex = new IdentityHashMap<>();
+		for(TransitLine transitLine : lines) {
+			departureIndex.putAll(getDepartureIndex(transitLine));
+		}
+		SortedDepartures sortedDepartures = getSortedDepartures(lines).filter(departure -> 
+				departure.getAttributes().getAttribute(GtfsConverter.BLOCK_ID) != null && departureIndex.containsKey(departure));
+		
+		Set<Departure> departuresInBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+		Map<String, Departure> lastDepartureOfBlock = new HashMap<>();
+		Map<String, Integer> vehiclesOfBlock = new HashMap<>();
+		int vehicles = 0;
+		for(int i = 0; i < sortedDepartures.size(); i++) {
+			Departure departure = sortedDepartures.departures[i];
+			String blockId = departure.getAttributes().getAttribute(GtfsConverter.BLOCK_ID).toString();
+			departuresInBlocks.add(departure);
+			
+			Departure previousDeparture = lastDepartureOfBlock.put(blockId, departure);
+			TransitRouteStop startStop = departureIndex.get(departure).firstStop();
+			if(previousDeparture != null) {
+				DepartureInfo previousInfo = departureIndex.get(previousDeparture);
+				TransitRouteStop endStop = previousInfo.lastStop();
+				double readyTime = previousDeparture.getDepartureTime() + endStop.getDepartureOffset().seconds()
+						+ getMinWaitTimeAtEndStation(previousInfo.line(), minTimeToWaitAtEndstop, overrideMinDelay)
+						+ CoordUtils.calcEuclideanDistance(endStop.getStopFacility().getCoord(), startStop.getStopFacility().getCoord()) / deadheadLinks.getFreespeed();
+				if(readyTime < departure.getDepartureTime()) {
+					departure.setVehicleId(previousDeparture.getVehicleId());
+					if(!endStop.getStopFacility().getId().equals(startStop.getStopFacility().getId())) {
+						addLinkBetweenEndAndStart(deadheadLinks, startStop, endStop);
+					}
+					continue;
+				}
+				log.warn("Departure {} of GTFS block {} starts at {} before the vehicle of departure {} is ready at {}, a new vehicle is used", 
+						departure.getId(), blockId, departure.getDepartureTime(), previousDeparture.getId(), readyTime);
 			}
+			
+			int vehicleOfBlock = vehiclesOfBlock.merge(blockId, 1, Integer::sum) - 1;
+			VehicleType vecType = transitVehicles.getVehicles().get(departure.getVehicleId()).getType();
+			departure.setVehicleId(Id.create("pt_block_" + blockId + (vehicleOfBlock == 0 ? "" : "." + vehicleOfBlock), Vehicle.class));
+			mapOfVecOnLine.put(departure.getVehicleId(), vecType);
+			vehicles++;
 		}
 		
-		System.out.println(mapOfVecOnLine.keySet().size() + " were created as vehicle working vehicles!");
+		log.info("{} departures are served by {} vehicles of {} GTFS blocks", departuresInBlocks.size(), vehicles, lastDepartureOfBlock.size());
+		return departuresInBlocks;
+	}
+
+	/** Replaces Vehicles for Vehicles which serve more then one departure. Vehicles may change the TransitLine (interlining): a vehicle can serve
+	 * any departure of the same transport mode which starts at a stop within terminalRadius of its end stop, if it can get there in time and does not
+	 * wait there longer than maxLayoverTime.
+	 * 
+	 * @param scenario from the MATSim scenario
+	 * @param minTimeToWaitAtEndstop minimal time Difference for a vehicle after ending a route and starting the next
+	 * @param overrideDelay if the minTimeToWaitAtEndStop should be overritten. Usefull to create less S + U Vehicles in Berlin Scenario
+	 * @param terminalRadius maximal beeline distance in meters between end stop and next start stop, 0 only allows the same stop
+	 * @param deadheadSpeed beeline speed in m/s of empty vehicles driving between end stop and next start stop
+	 * @param maxLayoverTime maximal wait time at the next start stop in addition to the minimal wait time
+	 * @param blockingMode how departures are chained to vehicle workings
+	 * @return
+	 */
+	static Scenario createInterlined(Scenario scenario, int minTimeToWaitAtEndstop, boolean overrideDelay, double terminalRadius, double deadheadSpeed,
+			double maxLayoverTime, BlockingMode blockingMode) {
+		if(terminalRadius < 0 || deadheadSpeed <= 0) {
+			throw new IllegalArgumentException("Terminal radius must not be negative and deadhead speed must be positive, got " + terminalRadius + " and " + deadheadSpeed);
+		}
+		if(maxLayoverTime < 0) {
+			throw new IllegalArgumentException("Maximal layover time must not be negative, got " + maxLayoverTime);
+		}
+		Network network = scenario.getNetwork();
+		Vehicles transitVehicles = scenario.getTransitVehicles();
+		
+		Map<Id<Vehicle>, VehicleType> mapOfVecOnLine = new LinkedHashMap<>();
+		DeadheadLinks deadheadLinks = new DeadheadLinks(network, deadheadSpeed);
+		
+		Blocking blocking = computeInterlinedBlocking(scenario.getTransitSchedule().getTransitLines().values(), minTimeToWaitAtEndstop, overrideDelay, 
+				terminalRadius, deadheadSpeed, maxLayoverTime, blockingMode);
+		commitBlocking(blocking, transitVehicles, mapOfVecOnLine, deadheadLinks);
+		
+		log.info("{} were created as vehicle working vehicles!", mapOfVecOnLine.size());
+		log.info("{} deadhead links were created", deadheadLinks.size());
+		log.info("Interlining with blocking mode {} needs {} vehicles, greedy blocking needs {} vehicles", blockingMode, blocking.vehicles(), blocking.greedyVehicles());
 		addTransitVehicles(transitVehicles, mapOfVecOnLine);
 
 		return scenario;
 	}
-	 /** Unused currently.
+
+	/** Successor of each departure, which is served by the same vehicle
+	 * 
+	 * @param name name of the blocking, used for logging
+	 * @param sortedDepartures all departures of the blocking
+	 * @param departureIndex index of the departures
+	 * @param successors position of the next departure in sortedDepartures or -1
+	 * @param vehicles number of vehicles needed
+	 * @param greedyVehicles number of vehicles needed with greedy blocking
+	 */
+	record Blocking(String name, SortedDepartures sortedDepartures, Map<Departure, DepartureInfo> departureIndex, int[] successors,
+			int vehicles, int greedyVehicles) {
+	}
+
+	/** Candidate successors of all departures. Candidate block c of departure i contains all departures of stations[c], which depart
+	 * strictly later than earliest[c] and not later than latest[c]. Blocks of departure i are offsets[i] until offsets[i + 1] (exclusive).
+	 */
+	static final class CandidateBlocks {
+		private final int[] offsets;
+		private final List<StationDepartures> stations = new ArrayList<>();
+		private final DoubleArrayList earliest = new DoubleArrayList();
+		private final DoubleArrayList latest = new DoubleArrayList();
+
+		CandidateBlocks(int numberOfDepartures) {
+			this.offsets = new int[numberOfDepartures + 1];
+		}
+
+		/** Adds a block to the last departure, departures have to be added in order.
+		 */
+		void add(StationDepartures station, double earliestDeparture, double latestDeparture) {
+			stations.add(station);
+			earliest.add(earliestDeparture);
+			latest.add(latestDeparture);
+		}
+
+		/** Closes the blocks of departure i, must be called for every departure in order.
+		 */
+		void close(int i) {
+			offsets[i + 1] = stations.size();
+		}
+	}
+
+	/** Computes the vehicle workings of one TransitLine without modifying the schedule
+	 * 
+	 * @param transitLine TransitLine
+	 * @param minTimeToWaitAtEndstop minimal time between end of route and next start for a vehicle working
+	 * @param overrideMinDelay Boolean, if S + U trains should be set to 900seconds 
+	 * @param blockingMode how departures are chained to vehicle workings
+	 * @param maxLayoverTime maximal additional wait time at the end station, Double.POSITIVE_INFINITY for no limit
+	 * @param includeDeparture departures of the line which should be chained
+	 * @return blocking of the line
+	 */
+	static Blocking computeBlocking(TransitLine transitLine, int minTimeToWaitAtEndstop, boolean overrideMinDelay, BlockingMode blockingMode,
+			double maxLayoverTime, Predicate<Departure> includeDeparture) {
+		SortedDepartures sortedDepartures = getSortedDeparturesOnLine(transitLine).filter(includeDeparture);
+		Map<Departure, DepartureInfo> departureIndex = getDepartureIndex(transitLine);
+		Map<String, StationDepartures> departuresByStartStation = getDeparturesByStartStation(departureIndex, sortedDepartures);
+		int minWaitTimeAtEndStation = getMinWaitTimeAtEndStation(transitLine, minTimeToWaitAtEndstop, overrideMinDelay);
+		
+		int n = sortedDepartures.size();
+		CandidateBlocks candidates = new CandidateBlocks(n);
+		for(int i = 0; i < n; i++) {
+			TransitRouteStop endStop = departureIndex.get(sortedDepartures.departures[i]).lastStop();
+			StationDepartures departuresFromEndStation = departuresByStartStation.get(endStop.getStopFacility().getName());
+			if(departuresFromEndStation != null) {
+				double readyTime = endStop.getDepartureOffset().seconds() + minWaitTimeAtEndStation + sortedDepartures.times[i];
+				candidates.add(departuresFromEndStation, readyTime, readyTime + maxLayoverTime);
+			}
+			candidates.close(i);
+		}
+		
+		return solveBlocking(transitLine.getId().toString(), sortedDepartures, departureIndex, candidates, blockingMode);
+	}
+
+	/** Terminal used for interlining: departures of one transport mode starting at one stop facility.
+	 */
+	record Terminal(TransitStopFacility facility, StationDepartures departures) {
+	}
+
+	/** Computes the vehicle workings of all given TransitLines, where vehicles may change lines. Start terminals are kept in a spatial index per
+	 * transport mode, the departures of each terminal are sorted by time, so the candidates of a departure are found with a disk query and a binary search.
+	 * The layover limit keeps the candidates of a departure to the departures of a time window instead of all later departures of every nearby terminal.
+	 * 
+	 * @param transitLines all TransitLines
+	 * @param minTimeToWaitAtEndstop minimal time between end of route and next start for a vehicle working
+	 * @param overrideMinDelay Boolean, if S + U trains should be set to 900seconds 
+	 * @param terminalRadius maximal beeline distance in meters between end stop and next start stop
+	 * @param deadheadSpeed beeline speed in m/s of empty vehicles driving between end stop and next start stop
+	 * @param maxLayoverTime maximal wait time at the next start stop in addition to the minimal wait time
+	 * @param blockingMode how departures are chained to vehicle workings
+	 * @return blocking of all lines
+	 */
+	static Blocking computeInterlinedBlocking(Collection<TransitLine> transitLines, int minTimeToWaitAtEndstop, boolean overrideMinDelay,
+			double terminalRadius, double deadheadSpeed, double maxLayoverTime, BlockingMode blockingMode) {
+		SortedDepartures sortedDepartures = getSortedDepartures(transitLines);
+		Map<Departure, DepartureInfo> departureIndex = new IdentityHashMap<>();
+		Map<TransitLine, Integer> minWaitTimeByLine = new IdentityHashMap<>();
+		for(TransitLine transitLine : transitLines) {
+			departureIndex.putAll(getDepartureIndex(transitLine));
+			minWaitTimeByLine.put(transitLine, getMinWaitTimeAtEndStation(transitLine, minTimeToWaitAtEndstop, overrideMinDelay));
+		}
+		
+		Map<String, QuadTree<Terminal>> terminalsByMode = getTerminalsByMode(departureIndex, sortedDepartures);
+		Map<String, Map<Id<TransitStopFacility>, Collection<Terminal>>> nearbyTerminals = new HashMap<>();
+		
+		int n = sortedDepartures.size();
+		CandidateBlocks candidates = new CandidateBlocks(n);
+		for(int i = 0; i < n; i++) {
+			DepartureInfo info = departureIndex.get(sortedDepartures.departures[i]);
+			String mode = info.route().getTransportMode();
+			TransitStopFacility endFacility = info.lastStop().getStopFacility();
+			QuadTree<Terminal> terminals = terminalsByMode.get(mode);
+			if(terminals != null) {
+				double arrival = sortedDepartures.times[i] + info.lastStop().getDepartureOffset().seconds() + minWaitTimeByLine.get(info.line());
+				Coord endCoord = endFacility.getCoord();
+				Collection<Terminal> nearby = nearbyTerminals.computeIfAbsent(mode, k -> new HashMap<>())
+						.computeIfAbsent(endFacility.getId(), k -> terminals.getDisk(endCoord.getX(), endCoord.getY(), terminalRadius));
+				for(Terminal terminal : nearby) {
+					double deadheadTime = CoordUtils.calcEuclideanDistance(endCoord, terminal.facility().getCoord()) / deadheadSpeed;
+					candidates.add(terminal.departures(), arrival + deadheadTime, arrival + deadheadTime + maxLayoverTime);
+				}
+			}
+			candidates.close(i);
+		}
+		
+		return solveBlocking("interlined", sortedDepartures, departureIndex, candidates, blockingMode);
+	}
+
+	/** Groups the departures by transport mode and start stop facility and puts the resulting terminals into one spatial index per mode
+	 */
+	static Map<String, QuadTree<Terminal>> getTerminalsByMode(Map<Departure, DepartureInfo> departureIndex, SortedDepartures sortedDepartures) {
+		Map<String, Map<TransitStopFacility, IntArrayList>> positionsByMode = new TreeMap<>();
+		for(int i = 0; i < sortedDepartures.size(); i++) {
+			DepartureInfo info = departureIndex.get(sortedDepartures.departures[i]);
+			positionsByMode.computeIfAbsent(info.route().getTransportMode(), k -> new LinkedHashMap<>())
+					.computeIfAbsent(info.firstStop().getStopFacility(), k -> new IntArrayList()).add(i);
+		}
+		
+		Map<String, QuadTree<Terminal>> terminalsByMode = new HashMap<>();
+		for(Entry<String, Map<TransitStopFacility, IntArrayList>> modeEntry : positionsByMode.entrySet()) {
+			double minX = Double.POSITIVE_INFINITY;
+			double minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY;
+			double maxY = Double.NEGATIVE_INFINITY;
+			for(TransitStopFacility facility : modeEntry.getValue().keySet()) {
+				minX = Math.min(minX, facility.getCoord().getX());
+				minY = Math.min(minY, facility.getCoord().getY());
+				maxX = Math.max(maxX, facility.getCoord().getX());
+				maxY = Math.max(maxY, facility.getCoord().getY());
+			}
+			
+			QuadTree<Terminal> terminals = new QuadTree<>(minX, minY, maxX, maxY);
+			for(Entry<TransitStopFacility, IntArrayList> entry : modeEntry.getValue().entrySet()) {
+				TransitStopFacility facility = entry.getKey();
+				terminals.put(facility.getCoord().getX(), facility.getCoord().getY(), 
+						new Terminal(facility, new StationDepartures(entry.getValue().toIntArray(), sortedDepartures.times)));
+			}
+			terminalsByMode.put(modeEntry.getKey(), terminals);
+		}
+		return terminalsByMode;
+	}
+
+	/** Computes the successors of all departures with the greedy blocking and, if requested, with the minimum fleet blocking
+	 */
+	static Blocking solveBlocking(String name, SortedDepartures sortedDepartures, Map<Departure, DepartureInfo> departureIndex, CandidateBlocks candidates,
+			BlockingMode blockingMode) {
+		int[] greedySuccessors = getGreedySuccessors(sortedDepartures.size(), candidates);
+		int[] successors = greedySuccessors;
+		if(blockingMode == BlockingMode.minimumFleet) {
+			successors = getMinimumFleetSuccessors(sortedDepartures.size(), candidates);
+		}
+		return new Blocking(name, sortedDepartures, departureIndex, successors, countVehicles(successors), countVehicles(greedySuccessors));
+	}
+
+	/** Minimal time a vehicle waits at the end station before it serves the next departure
+	 * 
+	 * @param transitLine the TransitLine
+	 * @param minWaitTimeAtEndStation minimal time between end of route and next start for a vehicle working
+	 * @param overrideMinDelay Boolean, if S + U trains should be set to 900seconds 
+	 * @return minimal wait time for this line
+	 */
+	static int getMinWaitTimeAtEndStation(TransitLine transitLine, int minWaitTimeAtEndStation, boolean overrideMinDelay) {
+		if(overrideMinDelay) {
+			String vehicleTypeS= ".*[S]\\d{1,2}---\\d{5}_109";
+			String vehicleTypeU= ".*[U]\\d{1,2}---\\d{5}_400";
+			if(transitLine.getId().toString().matches(vehicleTypeS) || transitLine.getId().toString().matches(vehicleTypeU)) {
+				return 15 * 60;
+			}
+		}
+		return minWaitTimeAtEndStation;
+	}
+
+	/** Number of vehicle workings, i.e. departures which are not the successor of another departure
+	 */
+	static int countVehicles(int[] successors) {
+		boolean[] hasPredecessor = new boolean[successors.length];
+		for(int successor : successors) {
+			if(successor >= 0) hasPredecessor[successor] = true;
+		}
+		int vehicles = 0;
+		for(boolean b : hasPredecessor) {
+			if(!b) vehicles += 1;
+		}
+		return vehicles;
+	}
+
+	/** Links each departure, in order of departure time, to the earliest candidate departure which is not served yet
+	 * 
+	 * @param n number of departures
+	 * @param candidates candidate successors of each departure
+	 * @return position of the successor of each departure or -1
+	 */
+	static int[] getGreedySuccessors(int n, CandidateBlocks candidates) {
+		boolean[] served = new boolean[n];
+		int[] successors = new int[n];
+		Arrays.fill(successors, -1);
+		for(int i = 0; i < n; i++) {
+			served[i] = true;
+			
+			// positions are in order of departure time, so the smallest position is the earliest departure
+			int nextDeparture = -1;
+			for(int c = candidates.offsets[i]; c < candidates.offsets[i + 1]; c++) {
+				int candidate = candidates.stations.get(c).findFirstUnservedAfter(candidates.earliest.getDouble(c), candidates.latest.getDouble(c), served);
+				if(candidate >= 0 && (nextDeparture < 0 || candidate < nextDeparture)) {
+					nextDeparture = candidate;
+				}
+			}
+			if(nextDeparture >= 0) {
+				successors[i] = nextDeparture;
+				served[nextDeparture] = true;
+			}
+		}
+		return successors;
+	}
+
+	/** Links departures such that the number of vehicle workings is minimal, see {@link MinimumFleetBlocking}
+	 * 
+	 * @param n number of departures
+	 * @param candidates candidate successors of each departure
+	 * @return position of the successor of each departure or -1
+	 */
+	static int[] getMinimumFleetSuccessors(int n, CandidateBlocks candidates) {
+		int numberOfBlocks = candidates.stations.size();
+		int[][] blockPositions = new int[numberOfBlocks][];
+		int[] blockFrom = new int[numberOfBlocks];
+		int[] blockTo = new int[numberOfBlocks];
+		for(int c = 0; c < numberOfBlocks; c++) {
+			StationDepartures station = candidates.stations.get(c);
+			blockPositions[c] = station.positions;
+			blockFrom[c] = station.firstAfter(candidates.earliest.getDouble(c));
+			blockTo[c] = station.firstAfter(candidates.latest.getDouble(c));
+		}
+		return MinimumFleetBlocking.computeSuccessors(n, candidates.offsets, blockPositions, blockFrom, blockTo);
+	}
+
+	/** Assigns the vehicle workings to the departures and connects end and start stations if needed.
+	 * Vehicles are named after the TransitLine of their first departure.
+	 * 
+	 * @param blocking blocking of the departures
+	 * @param transitVehicles Transit Vehicles dataset of MATSim scenario.
+	 * @param mapOfVecOnLine Map of all created Vehicle Circulation Vehicles
+	 * @param deadheadLinks links connecting end and start stations
+	 */
+	static void commitBlocking(Blocking blocking, Vehicles transitVehicles, Map<Id<Vehicle>, VehicleType> mapOfVecOnLine, DeadheadLinks deadheadLinks) {
+		SortedDepartures sortedDepartures = blocking.sortedDepartures();
+		int[] successors = blocking.successors();
+		boolean[] hasPredecessor = new boolean[successors.length];
+		for(int successor : successors) {
+			if(successor >= 0) hasPredecessor[successor] = true;
+		}
+		
+		Map<TransitLine, Integer> iterators = new IdentityHashMap<>();
+		for(int i = 0; i < sortedDepartures.size(); i++) {
+			Departure departureOnLine = sortedDepartures.departures[i];
+			
+			if(!hasPredecessor[i]) {
+				TransitLine line = blocking.departureIndex().get(departureOnLine).line();
+				int iterator = iterators.merge(line, 1, Integer::sum) - 1;
+				VehicleType vecType = transitVehicles.getVehicles().get(departureOnLine.getVehicleId()).getType();
+				departureOnLine.setVehicleId(getUmlaufVecId(line, iterator));
+				mapOfVecOnLine.put(departureOnLine.getVehicleId(), vecType);
+			}
+			
+			if(successors[i] < 0) continue;
+			
+			Departure departureToChange = sortedDepartures.departures[successors[i]];
+			departureToChange.setVehicleId(departureOnLine.getVehicleId());
+			
+			TransitRouteStop endStop = blocking.departureIndex().get(departureOnLine).lastStop();
+			TransitRouteStop startStop = blocking.departureIndex().get(departureToChange).firstStop();
+			if(!endStop.getStopFacility().getId().equals(startStop.getStopFacility().getId())) {
+				addLinkBetweenEndAndStart(deadheadLinks, startStop, endStop);
+			}
+		}
+	}
+
+	 /** Writes schedule, network and transit vehicles after creating vehicle workings and validates the schedule.
 	  * 
 	  * @param scenario
+	  * @param outputDirectory directory for transitSchedule_umlauf.xml, network_umlauf.xml and transitVehicles_umlauf.xml
 	  */
-	static void writeFiles(Scenario scenario) {
+	static void writeFiles(Scenario scenario, String outputDirectory) {
+		Path directory = Path.of(outputDirectory);
 		TransitScheduleWriterV2 scheduleWriter = new TransitScheduleWriterV2(scenario.getTransitSchedule());
-		String filenameSchedule ="/Users/Gero 1/git/matsim-berlin-MasterArbeit/scenarios/berlin-v5.5-10pct/input/transitSchedule_umlauf.xml";
+		String filenameSchedule = directory.resolve("transitSchedule_umlauf.xml").toString();
 		scheduleWriter.write(filenameSchedule);
 		
 		TransitScheduleValidator.validateAll(scenario.getTransitSchedule(), scenario.getNetwork());
 		NetworkWriter networkWriter = new NetworkWriter(scenario.getNetwork());
-		String filenameNetwork = "/Users/Gero 1/git/matsim-berlin-MasterArbeit/scenarios/berlin-v5.5-10pct/input/network_umlauf.xml";
+		String filenameNetwork = directory.resolve("network_umlauf.xml").toString();
 		networkWriter.write(filenameNetwork);
 		
 		MatsimVehicleWriter transitVehiclesWriter = new MatsimVehicleWriter(scenario.getTransitVehicles());
-		String filenameTransitVehicles = "/Users/Gero 1/git/matsim-berlin-MasterArbeit/scenarios/berlin-v5.5-10pct/input/transitVehicles_umlauf.xml";
+		String filenameTransitVehicles = directory.resolve("transitVehicles_umlauf.xml").toString();
 		transitVehiclesWriter.writeFile(filenameTransitVehicles);
 		
 	}
 	
-	/** Creates a Map of all Departures on all TransitRoutes on a TransitLine 
+	/** All Departures of a TransitLine in primitive arrays, sorted by departure time. Ties are broken by departure id.
+	 */
+	static final class SortedDepartures {
+		final Departure[] departures;
+		final double[] times;
+
+		SortedDepartures(Departure[] departures, double[] times) {
+			this.departures = departures;
+			this.times = times;
+		}
+
+		int size() {
+			return departures.length;
+		}
+
+		/** Departures matching the predicate, in the same order
+		 */
+		SortedDepartures filter(Predicate<Departure> predicate) {
+			int n = 0;
+			for(Departure departure : departures) {
+				if(predicate.test(departure)) n += 1;
+			}
+			if(n == departures.length) return this;
+			
+			Departure[] filteredDepartures = new Departure[n];
+			double[] filteredTimes = new double[n];
+			int j = 0;
+			for(int i = 0; i < departures.length; i++) {
+				if(predicate.test(departures[i])) {
+					filteredDepartures[j] = departures[i];
+					filteredTimes[j] = times[i];
+					j += 1;
+				}
+			}
+			return new SortedDepartures(filteredDepartures, filteredTimes);
+		}
+	}
+
+	/** Collects all Departures on all TransitRoutes on a TransitLine 
 	 * 
 	 * @param transitLine TransitLine which should be used
-	 * @return returnes a TreeMap of all Departures of a TransitLine ordered by departure Time.
+	 * @return all Departures of a TransitLine ordered by departure time and id.
+	 */
+	static SortedDepartures getSortedDeparturesOnLine (TransitLine transitLine){
+		return getSortedDepartures(List.of(transitLine));
+	}
+
+	/** Collects all Departures on all TransitRoutes of several TransitLines
+	 * 
+	 * @param transitLines TransitLines which should be used
+	 * @return all Departures of the TransitLines ordered by departure time and id, see {@link #compareDepartureIds(String, String)}.
 	 */
-	static TreeMap<String, Departure> getMapOfAllDeparturesOnLine (TransitLine transitLine){
-		TreeMap<String, Departure> mapOfAllDeparturesOnLine = new TreeMap<>();
+	static SortedDepartures getSortedDepartures (Collection<TransitLine> transitLines){
+		int numberOfDepartures = 0;
+		for(TransitLine transitLine : transitLines) {
+			for(TransitRoute transitRoute : transitLine.getRoutes().values()) {
+				numberOfDepartures += transitRoute.getDepartures().size();
+			}
+		}
 		
+		Departure[] unsortedDepartures = new Departure[numberOfDepartures];
+		double[] unsortedTimes = new double[numberOfDepartures];
+		int[] order = new int[numberOfDepartures];
 		int i = 0;
-		for(TransitRoute transitRoute : transitLine.getRoutes().values()) {
-			for(Departure departure : transitRoute.getDepartures().values()) {
-				String idBuilder = departure.getId().toString();
-				while(idBuilder.length() < 20) {
-					idBuilder = "0" + idBuilder;
+		for(TransitLine transitLine : transitLines) {
+			for(TransitRoute transitRoute : transitLine.getRoutes().values()) {
+				for(Departure departure : transitRoute.getDepartures().values()) {
+					unsortedDepartures[i] = departure;
+					unsortedTimes[i] = departure.getDepartureTime();
+					order[i] = i;
+					i +=1;
 				}
-				
-				String timeBuilder = Integer.toString((int)departure.getDepartureTime());
-				while(timeBuilder.length() < 7) {
-					timeBuilder = "0" + timeBuilder;
+			}
+		}
+		
+		IntArrays.quickSort(order, (a, b) -> {
+			int cmp = Double.compare(unsortedTimes[a], unsortedTimes[b]);
+			return cmp != 0 ? cmp : compareDepartureIds(unsortedDepartures[a].getId().toString(), unsortedDepartures[b].getId().toString());
+		});
+		
+		Departure[] departures = new Departure[numberOfDepartures];
+		double[] times = new double[numberOfDepartures];
+		for(int j = 0; j < numberOfDepartures; j++) {
+			departures[j] = unsortedDepartures[order[j]];
+			times[j] = unsortedTimes[order[j]];
+		}
+		return new SortedDepartures(departures, times);
+	}
+
+	/** Compares departure ids as if they were left-padded with zeros to {@link #PADDED_ID_LENGTH} characters, like the string keys 
+	 * the departures were formerly sorted by. Numeric ids are thus ordered by value, e.g. 9 before 10, and vehicle ids do not change.
+	 */
+	static int compareDepartureIds(String a, String b) {
+		int lengthA = Math.max(a.length(), PADDED_ID_LENGTH);
+		int lengthB = Math.max(b.length(), PADDED_ID_LENGTH);
+		int paddingA = lengthA - a.length();
+		int paddingB = lengthB - b.length();
+		for(int k = 0; k < Math.min(lengthA, lengthB); k++) {
+			char charA = k < paddingA ? '0' : a.charAt(k - paddingA);
+			char charB = k < paddingB ? '0' : b.charAt(k - paddingB);
+			if(charA != charB) return Character.compare(charA, charB);
+		}
+		return Integer.compare(lengthA, lengthB);
+	}
+
+	/** Departures starting at one station, given by their position in {@link SortedDepartures} in time order.
+	 * Served departures are skipped using pointers with path compression, so the search for the next departure which is not served yet
+	 * does not slow down when many departures at the station are served already.
+	 */
+	static final class StationDepartures {
+		private final int[] positions;
+		private final double[] times;
+		private final int[] next;
+
+		StationDepartures(int[] positions, double[] allTimes) {
+			this.positions = positions;
+			this.times = new double[positions.length];
+			this.next = new int[positions.length];
+			for(int k = 0; k < positions.length; k++) {
+				this.times[k] = allTimes[positions[k]];
+				this.next[k] = k + 1;
+			}
+		}
+
+		/** Returns the first departure after time which is not served yet.
+		 * 
+		 * @param time departures have to depart strictly later
+		 * @param latest departures must not depart later
+		 * @param served served departures by position
+		 * @return position of the departure or -1 if there is none
+		 */
+		int findFirstUnservedAfter(double time, double latest, boolean[] served) {
+			int low = firstAfter(time);
+			int root = low;
+			while(root < positions.length && served[positions[root]]) {
+				root = next[root];
+			}
+			// all departures on the way are served, let them point directly to the result
+			for(int k = low; k < root; ) {
+				int following = next[k];
+				next[k] = root;
+				k = following;
+			}
+			return root < positions.length && times[root] <= latest ? positions[root] : -1;
+		}
+
+		/** Index of the first departure strictly later than time, or the number of departures if there is none
+		 */
+		int firstAfter(double time) {
+			int low = 0;
+			int high = times.length;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(times[mid] <= time) {
+					low = mid + 1;
+				} else {
+					high = mid;
 				}
-				String stringBuilder = timeBuilder + idBuilder;
-				mapOfAllDeparturesOnLine.put(stringBuilder, departure);
-				i +=1;
 			}
+			return low;
+		}
+	}
+
+	/** Splits all Departures on a TransitLine by the name of the first stop of their TransitRoute
+	 * 
+	 * @param departureIndex index of the departures created by {@link #getDepartureIndex(TransitLine)}
+	 * @param sortedDepartures departures created by {@link #getSortedDeparturesOnLine(TransitLine)}
+	 * @return Map of start station name to all departures starting there
+	 */
+	static Map<String, StationDepartures> getDeparturesByStartStation (Map<Departure, DepartureInfo> departureIndex, SortedDepartures sortedDepartures){
+		Map<String, IntArrayList> positionsByStartStation = new HashMap<>();
+		for(int i = 0; i < sortedDepartures.size(); i++) {
+			String startStationName = departureIndex.get(sortedDepartures.departures[i]).firstStop().getStopFacility().getName();
+			positionsByStartStation.computeIfAbsent(startStationName, k -> new IntArrayList()).add(i);
 		}
 		
-		return mapOfAllDeparturesOnLine;
+		Map<String, StationDepartures> departuresByStartStation = new HashMap<>();
+		for(Entry<String, IntArrayList> entry : positionsByStartStation.entrySet()) {
+			departuresByStartStation.put(entry.getKey(), new StationDepartures(entry.getValue().toIntArray(), sortedDepartures.times));
+		}
+		return departuresByStartStation;
+	}
+
+	/** Line and route of a departure together with the first and last stop of the route
+	 */
+	record DepartureInfo(TransitLine line, TransitRoute route, TransitRouteStop firstStop, TransitRouteStop lastStop) {
+	}
+
+	/** Creates an index from all Departures of a TransitLine to their TransitRoute, so that {@link #getRouteFromDeparture(TransitLine, Departure)}
+	 * does not need to be called repeatedly.
+	 * 
+	 * @param transitLine TransitLine which should be used
+	 * @return Map of each Departure (by identity) to its route, first and last stop
+	 */
+	static Map<Departure, DepartureInfo> getDepartureIndex (TransitLine transitLine){
+		Map<Departure, DepartureInfo> departureIndex = new IdentityHashMap<>();
+		for(TransitRoute transitRoute : transitLine.getRoutes().values()) {
+			if(transitRoute.getStops().isEmpty()) continue;
+			DepartureInfo info = new DepartureInfo(transitLine, transitRoute, transitRoute.getStops().get(0), getEndStationFromRoute(transitRoute));
+			for(Departure departure : transitRoute.getDepartures().values()) {
+				departureIndex.put(departure, info);
+			}
+		}
+		return departureIndex;
 	}
 	
 	/** Creates a Vehicle ID
@@ -186,68 +1105,6 @@ class CreateVehicleCirculation {
 		return endStationName;
 	}
 	
-	/** Creates Vehicle Circulations for the next departure
-	 * 
-	 * @param mapOfAllDeparturesOnLine a Map with all departures of a Line
-	 * @param transitLine the TransitLine to iterate through and create vehicle workings for
-	 * @param currentDeparture 
-	 * @param setOfVecOnLine Set of all vehicle working Ids
-	 * @param minWaitTimeAtEndStation minimal time between end of route and next start for a vehicle working
-	 * @param network Network of scenario
-	 * @param iteratorLinkId Integer for naming links
-	 * @param mapOfCreatedLinks Map which contains all previously connected Links
-	 * @param overrideMinDelay Boolean, if S + U trains should be set to 900seconds 
-	 * @return
-	 */
-	static int getNextDepartureFromEndstation(TreeMap<String, Departure> mapOfAllDeparturesOnLine, TransitLine transitLine,
-			Departure currentDeparture, Set<Id<Vehicle>> setOfVecOnLine, int minWaitTimeAtEndStation, Network network, int iteratorLinkId, Map<Id<Link>, Set<Node>> mapOfCreatedLinks,
-			boolean overrideMinDelay) {		
-		Id<Vehicle> currentVecId = currentDeparture.getVehicleId();
-		Double departureTimeFromCurrentDeparture = currentDeparture.getDepartureTime();
-		
-		TransitRoute currentTransitRoute = getRouteFromDeparture(transitLine, currentDeparture);
-		TransitRouteStop endStop = getEndStationFromRoute(currentTransitRoute);
-		String endStationNameOnCurrentLine = endStop.getStopFacility().getName();
-		Double travelTimeForCurrentRoute = endStop.getDepartureOffset().seconds();
-		
-		Double earliestDepartureFromEndStation;
-		if(overrideMinDelay) {
-			String vehicleTypeS= ".*[S]\\d{1,2}---\\d{5}_109";
-			String vehicleTypeU= ".*[U]\\d{1,2}---\\d{5}_400";
-			if(transitLine.getId().toString().matches(vehicleTypeS) || transitLine.getId().toString().matches(vehicleTypeU)) {
-				minWaitTimeAtEndStation = 15 * 60;
-			}
-			earliestDepartureFromEndStation = travelTimeForCurrentRoute + minWaitTimeAtEndStation + departureTimeFromCurrentDeparture;
-		} else {
-			earliestDepartureFromEndStation = travelTimeForCurrentRoute + minWaitTimeAtEndStation + departureTimeFromCurrentDeparture;
-		}
-		
-		Set<Entry<String, Departure>> otherDepartures = mapOfAllDeparturesOnLine.entrySet();
-        for(Iterator<Entry<String, Departure>> depatureIterator = otherDepartures.iterator(); depatureIterator.hasNext();){
-            Entry<String, Departure> departureToChange = depatureIterator.next();
-            
-            if(setOfVecOnLine.contains(departureToChange.getValue().getVehicleId())) continue;
-            
-            Double departureTimeForDepartureToChange = departureToChange.getValue().getDepartureTime();
-            TransitRoute transitRouteFromDepartureToChange = getRouteFromDeparture(transitLine, departureToChange.getValue());
-            TransitRouteStop startStop= transitRouteFromDepartureToChange.getStops().get(0);
-            String startStopName = startStop.getStopFacility().getName();
-            
-            // maybe try <500m since HERTZAllee isnt the same as Zoologischer Garten, or Other endstops like M44 arent identical with next start station.
-            if(startStopName.equals(endStationNameOnCurrentLine) && departureTimeForDepartureToChange > earliestDepartureFromEndStation) {
-            	departureToChange.getValue().setVehicleId(currentVecId);
-            	
-            	if(!endStop.getStopFacility().getId().equals(startStop.getStopFacility().getId())) {
-            		iteratorLinkId = addLinkBetweenEndAndStart(network, startStop, endStop, iteratorLinkId, mapOfCreatedLinks);
-            	}
-            	
-            	break;
-            }
-            
-        }
-		return iteratorLinkId;
-	}
-	
 	/** Adds Vehicle Circulation Vehicles to Vehicles dataset
 	 * 
 	 * @param transitVehicles Transit Vehicles dataset of MATSim scenario.
@@ -262,27 +1119,70 @@ class CreateVehicleCirculation {
 
 	/** Connects two Stop Facilities with each other.
 	 * 
-	 * @param network MATSim Network of Scenario which should be mofied to contain new connecting links
+	 * @param deadheadLinks links connecting end and start stations, new links are added to its network
 	 * @param startStop first stop of next route which should be served
 	 * @param endStop The endstop which should get a connection to the start stop
-	 * @param iterator requires an int to create different names of Links
-	 * @param mapOfCreatedLinks @TODO
-	 * @return iterator that gets injected again
+	 * @return the link between both stops, or null if they are at the same node
 	 */
-	static int addLinkBetweenEndAndStart (Network network, TransitRouteStop startStop, TransitRouteStop endStop, int iterator, Map<Id<Link>, Set<Node>> mapOfCreatedLinks) {
-
+	static Link addLinkBetweenEndAndStart (DeadheadLinks deadheadLinks, TransitRouteStop startStop, TransitRouteStop endStop) {
+		Network network = deadheadLinks.network;
 		Id<Link> startStopLink = startStop.getStopFacility().getLinkId();
 		Id<Link> endStopLink = endStop.getStopFacility().getLinkId();
 		
 		Node endStopNode = network.getLinks().get(endStopLink).getToNode();
 		Node startStopNode = network.getLinks().get(startStopLink).getToNode();
-				
-		Id<Link> possibleNeededLink = Id.createLinkId("pt_umlauf_" + iterator);
-		iterator +=1;
-		
-		Link linkBetweenEndAndStart = NetworkUtils.createLink(possibleNeededLink, endStopNode, startStopNode, network, 50.0, 10.0, 6000.0, 10.0);
-		network.addLink(linkBetweenEndAndStart);
 		
-		return iterator;
+		return deadheadLinks.getOrCreate(endStopNode, startStopNode);
+	}
+
+	/** Links for empty vehicles between end and start stations. Each pair of nodes is connected at most once, no matter how many vehicles
+	 * turn between them. Length is the beeline distance between the nodes, travel time follows from the free speed.
+	 */
+	static final class DeadheadLinks {
+		private final Network network;
+		private final double freespeed;
+		private final Map<NodePair, Link> links = new HashMap<>();
+		private int iterator = 0;
+
+		/**
+		 * @param network Network of scenario, which gets the new links
+		 * @param freespeed free speed of the links in m/s
+		 */
+		DeadheadLinks(Network network, double freespeed) {
+			this.network = network;
+			this.freespeed = freespeed;
+		}
+
+		/** Returns the link from one node to another, which is created on first request.
+		 * 
+		 * @return the link, or null if both nodes are the same
+		 */
+		Link getOrCreate(Node fromNode, Node toNode) {
+			if(fromNode.getId().equals(toNode.getId())) return null;
+			
+			return links.computeIfAbsent(new NodePair(fromNode.getId(), toNode.getId()), k -> {
+				Id<Link> linkId = Id.createLinkId("pt_umlauf_" + iterator);
+				iterator +=1;
+				double length = Math.max(MIN_DEADHEAD_LINK_LENGTH, CoordUtils.calcEuclideanDistance(fromNode.getCoord(), toNode.getCoord()));
+				Link link = NetworkUtils.createLink(linkId, fromNode, toNode, network, length, freespeed, 6000.0, 10.0);
+				network.addLink(link);
+				return link;
+			});
+		}
+
+		/** Free speed of the links in m/s
+		 */
+		double getFreespeed() {
+			return freespeed;
+		}
+
+		/** Number of created links
+		 */
+		int size() {
+			return links.size();
+		}
+	}
+
+	private record NodePair(Id<Node> from, Id<Node> to) {
 	}
 }
@@ -0,0 +1,208 @@
+package org.matsim.contrib.gtfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Many feeds publish regular services as individual trips instead of using frequencies.txt. This tool detects runs
+ * of evenly spaced departures on the same {@link TransitRoute} and replaces them by frequency templates
+ * (first departure, headway, number of departures) stored in the {@link #FREQUENCY_TEMPLATES} attribute of the route.
+ * {@link #expand(TransitSchedule)} creates the departures again, so the simulated service does not change.
+ * <p>
+ * Ids of compressed departures are not kept, expanded departures get ids derived from route and departure time, so a
+ * route can be compressed and expanded repeatedly while some expanded departures are left out of compression. The
+ * {@link TransitSchedulePostProcessTools#DAY_SHIFT} of copied departures is kept in the template, runs are only formed of
+ * departures with the same day shift. Departures which already have a vehicle or any other attribute, e.g.
+ * {@link GtfsConverter#BLOCK_ID}, are never compressed, thus compression should be done before transit vehicles are created.
+ */
+public final class DepartureFrequencyTemplates {
+
+	private static final Logger log = LogManager.getLogger(DepartureFrequencyTemplates.class);
+
+	/**
+	 * Route attribute holding the templates as "firstDeparture,headway,count" entries separated by ";", followed by
+	 * ",dayShift" for templates of copied departures.
+	 */
+	public static final String FREQUENCY_TEMPLATES = "frequency_templates";
+
+	/**
+	 * Departures within this many seconds are considered to have the same headway.
+	 */
+	private static final double EPSILON = 1e-6;
+
+	private DepartureFrequencyTemplates() {
+	}
+
+	/**
+	 * Replaces runs of evenly spaced departures by frequency templates.
+	 *
+	 * @param schedule TransitSchedule
+	 * @param minRunLength minimum number of evenly spaced departures (at least 3) to create a template
+	 * @return number of departures that were replaced by templates
+	 */
+	public static int compress(TransitSchedule schedule, int minRunLength) {
+		if (minRunLength < 3) {
+			throw new IllegalArgumentException("A frequency template needs at least 3 departures, got " + minRunLength);
+		}
+
+		int compressed = 0;
+		int templates = 0;
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+				if (route.getAttributes().getAttribute(FREQUENCY_TEMPLATES) != null) {
+					log.warn("Route {} is already compressed, expand it first.", route.getId());
+					continue;
+				}
+
+				Map<Integer, List<Departure>> departuresByDayShift = new TreeMap<>();
+				for (Departure departure : route.getDepartures().values()) {
+					Map<String, Object> attributes = departure.getAttributes().getAsMap();
+					Object dayShift = attributes.get(TransitSchedulePostProcessTools.DAY_SHIFT);
+					if (departure.getVehicleId() != null || attributes.size() > (dayShift == null ? 0 : 1))
+						continue;
+					departuresByDayShift.computeIfAbsent(dayShift == null ? 0 : ((Number) dayShift).intValue(), k -> new ArrayList<>())
+							.add(departure);
+				}
+
+				List<Template> routeTemplates = new ArrayList<>();
+				for (Map.Entry<Integer, List<Departure>> e : departuresByDayShift.entrySet()) {
+					compressed += compress(route, e.getValue().toArray(Departure[]::new), minRunLength, e.getKey(), routeTemplates);
+				}
+				if (!routeTemplates.isEmpty()) {
+					route.getAttributes().putAttribute(FREQUENCY_TEMPLATES,
+							routeTemplates.stream().map(Template::format).collect(Collectors.joining(";")));
+					templates += routeTemplates.size();
+				}
+			}
+		}
+
+		log.info("Replaced {} departures by {} frequency templates", compressed, templates);
+		return compressed;
+	}
+
+	/**
+	 * Replaces the runs of evenly spaced departures of one day shift.
+	 *
+	 * @return number of departures that were replaced by templates
+	 */
+	private static int compress(TransitRoute route, Departure[] departures, int minRunLength, int dayShift, List<Template> templates) {
+		if (departures.length < minRunLength)
+			return 0;
+
+		Arrays.sort(departures, Comparator.comparingDouble(Departure::getDepartureTime));
+		double[] times = new double[departures.length];
+		for (int i = 0; i < departures.length; i++) {
+			times[i] = departures[i].getDepartureTime();
+		}
+
+		int compressed = 0;
+		int i = 0;
+		while (i < times.length - 1) {
+			double headway = times[i + 1] - times[i];
+			if (headway <= EPSILON) {
+				i++;
+				continue;
+			}
+
+			int j = i + 1;
+			while (j + 1 < times.length && Math.abs(times[j + 1] - times[j] - headway) <= EPSILON) {
+				j++;
+			}
+
+			int count = j - i + 1;
+			if (count < minRunLength) {
+				i++;
+				continue;
+			}
+
+			for (int k = i; k <= j; k++) {
+				route.removeDeparture(departures[k]);
+			}
+			templates.add(new Template(times[i], headway, count, dayShift));
+			compressed += count;
+			i = j + 1;
+		}
+		return compressed;
+	}
+
+	/**
+	 * Creates the departures of all frequency templates and removes the templates from the routes.
+	 *
+	 * @return number of created departures
+	 */
+	public static int expand(TransitSchedule schedule) {
+		TransitScheduleFactory factory = schedule.getFactory();
+		int created = 0;
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+				Object attribute = route.getAttributes().getAttribute(FREQUENCY_TEMPLATES);
+				if (attribute == null)
+					continue;
+
+				List<Template> templates = parse(attribute.toString());
+				for (Template template : templates) {
+					for (int i = 0; i < template.count; i++) {
+						double time = template.firstDeparture + i * template.headway;
+						Departure departure = factory.createDeparture(getUnusedId(route, time), time);
+						if (template.dayShift != 0)
+							departure.getAttributes().putAttribute(TransitSchedulePostProcessTools.DAY_SHIFT, template.dayShift);
+						route.addDeparture(departure);
+						created++;
+					}
+				}
+				route.getAttributes().removeAttribute(FREQUENCY_TEMPLATES);
+			}
+		}
+
+		log.info("Created {} departures from frequency templates", created);
+		return created;
+	}
+
+	/**
+	 * Id of an expanded departure, the route id and the departure time in seconds. Departures at the same time get a
+	 * running number.
+	 */
+	private static Id<Departure> getUnusedId(TransitRoute route, double time) {
+		String base = route.getId() + "_freq_" + (time == Math.rint(time) ? Long.toString((long) time) : Double.toString(time));
+		Id<Departure> id = Id.create(base, Departure.class);
+		for (int n = 1; route.getDepartures().containsKey(id); n++) {
+			id = Id.create(base + "." + n, Departure.class);
+		}
+		return id;
+	}
+
+	private static List<Template> parse(String attribute) {
+		List<Template> templates = new ArrayList<>();
+		for (String entry : attribute.split(";")) {
+			String[] values = entry.split(",");
+			if (values.length != 3 && values.length != 4)
+				throw new IllegalArgumentException("Invalid frequency template: " + entry);
+
+			templates.add(new Template(Double.parseDouble(values[0]), Double.parseDouble(values[1]), Integer.parseInt(values[2]),
+					values.length == 4 ? Integer.parseInt(values[3]) : 0));
+		}
+		return templates;
+	}
+
+	/**
+	 * @param dayShift day shift of copied departures, 0 for original departures
+	 */
+	private record Template(double firstDeparture, double headway, int count, int dayShift) {
+
+		String format() {
+			String template = firstDeparture + "," + headway + "," + count;
+			return dayShift == 0 ? template : template + "," + dayShift;
+		}
+	}
+
+}
@@ -10,6 +10,7 @@ import org.matsim.api.core.v01.Scenario;
 import org.matsim.core.utils.collections.Tuple;
 import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.geometry.CoordinateTransformation;
+import org.matsim.core.utils.misc.OptionalTime;
 import org.matsim.core.utils.misc.Time;
 import org.matsim.pt.transitSchedule.api.*;
 
@@ -26,6 +27,20 @@ public class GtfsConverter {
 
     private static final Logger log = LogManager.getLogger(GtfsConverter.class);
 
+    /**
+     * Departure attribute holding the GTFS block_id of the trip, qualified by the day offset of the departure,
+     * because a block only describes the trips of one vehicle on a single service day. Departures expanded from
+     * frequencies do not get the attribute, since all of them would share the block of their template trip.
+     */
+    public static final String BLOCK_ID = "gtfs_block_id";
+
+    /**
+     * TransitRoute attribute holding the GTFS shape_id of the first trip assigned to the route.
+     *
+     * @see ShapeNetworkBuilder
+     */
+    public static final String SHAPE_ID = "gtfs_shape_id";
+
     private final GTFSFeed feed;
     private final CoordinateTransformation transform;
     private final TransitSchedule ts;
@@ -40,17 +55,42 @@ public class GtfsConverter {
     private final HandleStopsWithoutService handleStopsWithoutService;
     private final boolean includeMinimalTransferTimes;
     private final String prefix;
+    private final TransitRouteStopPool routeStopPool;
+    private final boolean removeDuplicateDepartures;
+    private final double routeOffsetTolerance;
+    private final List<TimeWindow> serviceTimeWindows;
+    private final StopTimeInterpolator interpolator;
     /**
      * Stop that have been mapped to the same facility.
      */
     private final Map<String, Id<TransitStopFacility>> mappedStops = new HashMap<>();
+    /** the stops of the feed are deserialized on every access */
+    private final Map<String, Stop> stopsById = new HashMap<>();
+    /**
+     * Routes of each line, bucketed by their sequence of stop facilities.
+     */
+    private final Map<Id<TransitLine>, Map<List<Id<TransitStopFacility>>, List<TransitRoute>>> routesByStopSequence = new HashMap<>();
+    private int compactedRouteVariants = 0;
+    private int scheduleDepartures = 0;
+    private int frequencyDepartures = 0;
+    /**
+     * Filtered trips of each GTFS route, only used for the conversion of single lines.
+     */
+    private Map<String, List<Trip>> tripsByRoute;
     private LocalDate endDate;
     private LocalDate startDate;
 
     private GtfsConverter(Builder builder) {
+        this(builder, Objects.requireNonNull(builder.scenario, "Scenario is required, use .setScenario(...)").getTransitSchedule());
+    }
+
+    /**
+     * Creates a converter writing into the given schedule instead of the schedule of the builder's scenario.
+     */
+    GtfsConverter(Builder builder, TransitSchedule ts) {
         this.feed = Objects.requireNonNull(builder.feed, "Gtfs feed is required, use .setFeed(...)");
         this.transform = Objects.requireNonNull(builder.transform, "Coordinate transformation is required, use .setTransform(...)");
-        this.ts = Objects.requireNonNull(builder.scenario, "Scenario is required, use .setScenario(...)").getTransitSchedule();
+        this.ts = ts;
         this.startDate = builder.startDate;
         this.useExtendedRouteTypes = builder.useExtendedRouteTypes;
         this.includeTrip = builder.includeTrip;
@@ -63,6 +103,11 @@ public class GtfsConverter {
         this.handleStopsWithoutService = builder.handleStopsWithoutService;
         this.includeMinimalTransferTimes = builder.includeMinimalTransferTimes;
         this.prefix = builder.prefix;
+        this.routeStopPool = builder.routeStopPool;
+        this.removeDuplicateDepartures = builder.removeDuplicateDepartures;
+        this.routeOffsetTolerance = builder.routeOffsetTolerance;
+        this.serviceTimeWindows = List.copyOf(builder.serviceTimeWindows);
+        this.interpolator = new StopTimeInterpolator(builder.badTripPolicy);
         this.endDate = builder.endDate;
         if (builder.endDate == null && builder.startDate == null & builder.date != null) {
             this.startDate = builder.date;
@@ -89,26 +134,48 @@ public class GtfsConverter {
                 .filter(trip -> Arrays.stream(date).anyMatch(d -> feed.services.get(trip.service_id).activeOn(d)))
                 .filter(this.includeTrip)
                 .filter(this::filterAgencyAndType)
+                .filter(this::departsInServiceTimeWindows)
                 .collect(Collectors.toList());
     }
 
-    public void convert() {
-
-        if (transformRoute != null) {
-            List<Map.Entry<String, Route>> routes = feed.routes.entrySet().stream().toList();
-            // Values are transformed and put back into the map so that the information is updated
-            for (Map.Entry<String, Route> e : routes) {
-                transformRoute.accept(e.getValue());
-                feed.routes.put(e.getKey(), e.getValue());
+    /**
+     * Whether the first departure of a trip, or any departure of a frequency-based trip, is within the service time windows.
+     * Only the first stop time is read, so trips outside the windows are never interpolated.
+     */
+    private boolean departsInServiceTimeWindows(Trip trip) {
+        if (serviceTimeWindows.isEmpty())
+            return true;
+
+        List<Frequency> frequencies = feed.getFrequencies(trip.trip_id);
+        if (frequencies.isEmpty()) {
+            Iterable<StopTime> stopTimes = feed.getOrderedStopTimesForTrip(trip.trip_id);
+            // trips without stop times are reported during conversion
+            if (stopTimes == null || !stopTimes.iterator().hasNext())
+                return true;
+            return isInServiceTimeWindows(stopTimes.iterator().next().departure_time);
+        }
+        for (Frequency frequency : frequencies) {
+            for (int time = frequency.start_time; time < frequency.end_time; time += frequency.headway_secs) {
+                if (isInServiceTimeWindows(time))
+                    return true;
             }
         }
+        return false;
+    }
 
-        // Put all stops in the Schedule
-        this.convertStops();
-
-        if (this.includeMinimalTransferTimes) {
-            this.convertTransferTimes();
+    private boolean isInServiceTimeWindows(double time) {
+        if (serviceTimeWindows.isEmpty())
+            return true;
+        for (TimeWindow window : serviceTimeWindows) {
+            if (window.contains(time))
+                return true;
         }
+        return false;
+    }
+
+    public void convert() {
+
+        this.convertFacilities();
 
         LocalDate feedStartDate = LocalDate.MAX;
         for (Service service : this.feed.services.values()) {
@@ -155,26 +222,16 @@ public class GtfsConverter {
 
             // Create one TransitLine for each GTFS-Route which has an active trip
             activeTrips.stream().map(trip -> feed.routes.get(trip.route_id)).distinct().forEach(route -> {
-                TransitLine tl = ts.getFactory().createTransitLine(getReadableTransitLineId(route));
-                if (!ts.getTransitLines().containsKey(tl.getId())) {
-                    ts.addTransitLine(tl);
-                    if (route.agency_id != null)
-                        tl.getAttributes().putAttribute("gtfs_agency_id", String.valueOf(route.agency_id));
-                    tl.getAttributes().putAttribute("gtfs_route_type", String.valueOf(route.route_type)); // route type is a required field according to GTFS specification
-                    String routeShortName = null;
-                    if (route.route_short_name != null) {
-                        routeShortName = route.route_short_name;
-                    } else {
-                        // use id in case there is no route short name
-                        routeShortName = String.valueOf(route.route_id);
-                    }
-                    tl.getAttributes().putAttribute("gtfs_route_short_name",
-                            Normalizer.normalize(routeShortName, Normalizer.Form.NFD).replaceAll("[^\\p{ASCII}]", "")); // replaces non ascii symbols
-                    tl.setName(routeShortName);
+                if (!ts.getTransitLines().containsKey(getReadableTransitLineId(route))) {
+                    ts.addTransitLine(createTransitLine(route));
                 }
             });
 
-            this.convertTrips(activeTrips, offsetDays);
+            scheduleDepartures = 0;
+            frequencyDepartures = 0;
+            this.convertTrips(activeTrips, offsetDays, ts.getTransitLines());
+            log.info("Created schedule-based departures: " + scheduleDepartures);
+            log.info("Created frequency-based departures: " + frequencyDepartures);
             date = date.plusDays(1);
             offsetDays++;
             if (activeTrips.isEmpty()) {
@@ -186,9 +243,115 @@ public class GtfsConverter {
             deleteStopsWithoutService();
         }
 
+        if (routeOffsetTolerance > 0) {
+            log.info("Trips assigned to a route with offsets within the tolerance of {}s: {}", routeOffsetTolerance, compactedRouteVariants);
+        }
+
+        if (interpolator.getRepairedTrips() > 0 || interpolator.getDroppedTrips() > 0) {
+            log.warn("Trips with invalid stop times: {} repaired, {} dropped", interpolator.getRepairedTrips(), interpolator.getDroppedTrips());
+        }
+
+        if (removeDuplicateDepartures) {
+            TransitSchedulePostProcessTools.removeDuplicateDepartures(ts);
+        }
+
+        if (routeStopPool != null) {
+            log.info(routeStopPool.getReport());
+        }
+
         log.info("Conversion successful");
     }
 
+    /**
+     * Converts stops and transfer times, i.e. everything that is needed before trips can be converted.
+     */
+    private void convertFacilities() {
+        if (transformRoute != null) {
+            List<Map.Entry<String, Route>> routes = feed.routes.entrySet().stream().toList();
+            // Values are transformed and put back into the map so that the information is updated
+            for (Map.Entry<String, Route> e : routes) {
+                transformRoute.accept(e.getValue());
+                feed.routes.put(e.getKey(), e.getValue());
+            }
+        }
+
+        // Put all stops in the Schedule
+        this.convertStops();
+
+        if (this.includeMinimalTransferTimes) {
+            this.convertTransferTimes();
+        }
+    }
+
+    /**
+     * Prepares the conversion of single lines with {@link #convertLine(Route)}: converts stops and transfer times
+     * and groups the active trips by GTFS route.
+     *
+     * @return GTFS routes with at least one active trip in the conversion period, by the id of their transit line
+     */
+    Map<Id<TransitLine>, Route> prepareLineConversion() {
+        this.convertFacilities();
+        ts.getAttributes().putAttribute("startDate", startDate.toString());
+        ts.getAttributes().putAttribute("endDate", endDate.toString());
+
+        tripsByRoute = new HashMap<>();
+        Map<Id<TransitLine>, Route> lines = new LinkedHashMap<>();
+        for (Trip trip : getActiveTrips(startDate.datesUntil(endDate.plusDays(1)).toArray(LocalDate[]::new))) {
+            Route route = feed.routes.get(trip.route_id);
+            tripsByRoute.computeIfAbsent(trip.route_id, k -> new ArrayList<>()).add(trip);
+            lines.putIfAbsent(getReadableTransitLineId(route), route);
+        }
+        return lines;
+    }
+
+    /**
+     * Converts all trips of one GTFS route in the conversion period. The line is not added to the schedule, but
+     * is identical to the one created by {@link #convert()}, because trips are processed in the same order.
+     */
+    TransitLine convertLine(Route route) {
+        TransitLine tl = createTransitLine(route);
+        Map<Id<TransitLine>, TransitLine> lines = Map.of(tl.getId(), tl);
+        List<Trip> trips = tripsByRoute.getOrDefault(route.route_id, List.of());
+
+        LocalDate date = startDate;
+        int offsetDays = 0;
+        do {
+            LocalDate day = date;
+            List<Trip> activeTrips = trips.stream().filter(trip -> feed.services.get(trip.service_id).activeOn(day)).toList();
+            this.convertTrips(activeTrips, offsetDays, lines);
+            date = date.plusDays(1);
+            offsetDays++;
+        } while (!date.isEqual(this.endDate.plusDays(1)));
+
+        if (removeDuplicateDepartures) {
+            for (TransitRoute tr : tl.getRoutes().values()) {
+                TransitSchedulePostProcessTools.removeDuplicateDepartures(tr);
+            }
+        }
+
+        // the route index is only needed while trips of the line are added
+        routesByStopSequence.remove(tl.getId());
+        return tl;
+    }
+
+    private TransitLine createTransitLine(Route route) {
+        TransitLine tl = ts.getFactory().createTransitLine(getReadableTransitLineId(route));
+        if (route.agency_id != null)
+            tl.getAttributes().putAttribute("gtfs_agency_id", String.valueOf(route.agency_id));
+        tl.getAttributes().putAttribute("gtfs_route_type", String.valueOf(route.route_type)); // route type is a required field according to GTFS specification
+        String routeShortName = null;
+        if (route.route_short_name != null) {
+            routeShortName = route.route_short_name;
+        } else {
+            // use id in case there is no route short name
+            routeShortName = String.valueOf(route.route_id);
+        }
+        tl.getAttributes().putAttribute("gtfs_route_short_name",
+                Normalizer.normalize(routeShortName, Normalizer.Form.NFD).replaceAll("[^\\p{ASCII}]", "")); // replaces non ascii symbols
+        tl.setName(routeShortName);
+        return tl;
+    }
+
     private boolean filterAgencyAndType(Trip trip) {
         Route route = feed.routes.get(trip.route_id);
         return includeRouteType.test(route.route_type) && includeAgency.test(route.agency_id);
@@ -338,9 +501,7 @@ public class GtfsConverter {
     }
 
 
-    private void convertTrips(List<Trip> trips, int offsetDays) {
-        int scheduleDepartures = 0;
-        int frequencyDepartures = 0;
+    private void convertTrips(List<Trip> trips, int offsetDays, Map<Id<TransitLine>, TransitLine> lines) {
         int offset = offsetDays * 24 * 3600;
         for (Trip trip : trips) {
             if (feed.getFrequencies(trip.trip_id).isEmpty()) {
@@ -348,37 +509,34 @@ public class GtfsConverter {
                     log.error("Found a trip with neither frequency nor ordered stop times. Will not add any Matsim TransitRoute/Departure for that trip. GTFS trip_id=" + trip.trip_id);
                     continue;
                 }
-                StopTime firstStopTime = feed.getOrderedStopTimesForTrip(trip.trip_id).iterator().next();
-                Double departureTime = Time.parseTime(String.valueOf(firstStopTime.departure_time));
-                List<TransitRouteStop> stops = new ArrayList<>();
-                try {
-                    for (StopTime stopTime : feed.getInterpolatedStopTimesForTrip(trip.trip_id)) {
-                        Id<TransitStopFacility> stopId = findTransitStop(stopTime.stop_id);
-                        TransitStopFacility stop = ts.getFacilities().get(stopId);
+                if (!interpolateStopTimes(trip)) {
+                    continue;
+                }
+                double departureTime = interpolator.getDeparture(0);
+                List<TransitRouteStop> stops = new ArrayList<>(interpolator.size());
+                for (int i = 0; i < interpolator.size(); i++) {
+                    Id<TransitStopFacility> stopId = findTransitStop(interpolator.getStopId(i));
+                    TransitStopFacility stop = ts.getFacilities().get(stopId);
 
-                        // This stop was filtered and will be ignored
-                        if (stop == null)
-                            continue;
+                    // This stop was filtered and will be ignored
+                    if (stop == null)
+                        continue;
 
-                        TransitRouteStop.Builder builder = ts.getFactory().createTransitRouteStopBuilder(stop);
-                        if (stopTime.arrival_time != Integer.MIN_VALUE) {
-                            double arrivalOffset = Time.parseTime(String.valueOf(stopTime.arrival_time)) - departureTime;
-                            builder.arrivalOffset(arrivalOffset);
-                        }
-                        if (stopTime.departure_time != Integer.MIN_VALUE) {
-                            double departureOffset = Time.parseTime(String.valueOf(stopTime.departure_time)) - departureTime;
-                            builder.departureOffset(departureOffset);
-                        }
-                        TransitRouteStop routeStop = builder.build();
-                        routeStop.setAwaitDepartureTime(true);
-                        stops.add(routeStop);
-                    }
-                } catch (GTFSFeed.FirstAndLastStopsDoNotHaveTimes firstAndLastStopsDoNotHaveTimes) {
-                    throw new RuntimeException(firstAndLastStopsDoNotHaveTimes);
+                    TransitRouteStop routeStop = ts.getFactory().createTransitRouteStopBuilder(stop)
+                            .arrivalOffset(interpolator.getArrival(i) - departureTime)
+                            .departureOffset(interpolator.getDeparture(i) - departureTime)
+                            .build();
+                    routeStop.setAwaitDepartureTime(true);
+                    stops.add(routeStop);
                 }
-                TransitLine tl = ts.getTransitLines().get(getReadableTransitLineId(trip));
+                if (routeStopPool != null) {
+                    stops = routeStopPool.intern(stops);
+                }
+                TransitLine tl = lines.get(getReadableTransitLineId(trip));
                 TransitRoute tr = findOrAddTransitRoute(tl, feed.routes.get(trip.route_id), stops);
+                setShapeId(tr, trip);
                 Departure departure = ts.getFactory().createDeparture(Id.create(prefix + trip.trip_id + "_" + offset, Departure.class), departureTime + offset);
+                setBlockId(departure, trip, offset);
                 tr.addDeparture(departure);
                 scheduleDepartures++;
             } else {
@@ -395,10 +553,16 @@ public class GtfsConverter {
                     routeStop.setAwaitDepartureTime(true);
                     stops.add(routeStop);
                 }
+                if (routeStopPool != null) {
+                    stops = routeStopPool.intern(stops);
+                }
                 for (Frequency frequency : feed.getFrequencies(trip.trip_id)) {
                     for (int time = frequency.start_time; time < frequency.end_time; time += frequency.headway_secs) {
-                        TransitLine tl = ts.getTransitLines().get(getReadableTransitLineId(trip));
+                        if (!isInServiceTimeWindows(time))
+                            continue;
+                        TransitLine tl = lines.get(getReadableTransitLineId(trip));
                         TransitRoute tr = findOrAddTransitRoute(tl, feed.routes.get(trip.route_id), stops);
+                        setShapeId(tr, trip);
                         Departure d = ts.getFactory().createDeparture(Id.create(prefix + trip.trip_id + "." + time + offset, Departure.class), time + offset);
                         tr.addDeparture(d);
                         frequencyDepartures++;
@@ -406,8 +570,33 @@ public class GtfsConverter {
                 }
             }
         }
-        log.info("Created schedule-based departures: " + scheduleDepartures);
-        log.info("Created frequency-based departures: " + frequencyDepartures);
+    }
+
+    /**
+     * Reads the stop times of a trip into the interpolator and fills in missing times.
+     *
+     * @return whether the trip should be converted, false if it is dropped by the {@link BadTripPolicy}
+     */
+    private boolean interpolateStopTimes(Trip trip) {
+        interpolator.clear();
+        for (StopTime stopTime : feed.getOrderedStopTimesForTrip(trip.trip_id)) {
+            Stop stop = stopsById.computeIfAbsent(stopTime.stop_id, feed.stops::get);
+            interpolator.add(stopTime.stop_id, stopTime.arrival_time, stopTime.departure_time, stopTime.shape_dist_traveled,
+                    stop == null ? Double.NaN : stop.stop_lat, stop == null ? Double.NaN : stop.stop_lon);
+        }
+        return interpolator.interpolate(trip.trip_id);
+    }
+
+    private void setShapeId(TransitRoute route, Trip trip) {
+        if (trip.shape_id != null && !trip.shape_id.isBlank() && route.getAttributes().getAttribute(SHAPE_ID) == null) {
+            route.getAttributes().putAttribute(SHAPE_ID, prefix + trip.shape_id);
+        }
+    }
+
+    private void setBlockId(Departure departure, Trip trip, int offset) {
+        if (trip.block_id != null && !trip.block_id.isBlank()) {
+            departure.getAttributes().putAttribute(BLOCK_ID, prefix + trip.block_id + "_" + offset);
+        }
     }
 
     private Id<TransitStopFacility> findTransitStop(String stopId) {
@@ -419,11 +608,29 @@ public class GtfsConverter {
 
 
     private TransitRoute findOrAddTransitRoute(TransitLine tl, Route route, List<TransitRouteStop> stops) {
-        for (TransitRoute tr : tl.getRoutes().values()) {
+        Map<List<Id<TransitStopFacility>>, List<TransitRoute>> lineRoutes = routesByStopSequence.computeIfAbsent(tl.getId(), k -> {
+            // the line may already contain routes, e.g. from another converter run on the same schedule
+            Map<List<Id<TransitStopFacility>>, List<TransitRoute>> index = new HashMap<>();
+            for (TransitRoute tr : tl.getRoutes().values()) {
+                index.computeIfAbsent(getStopSequence(tr.getStops()), s -> new ArrayList<>()).add(tr);
+            }
+            return index;
+        });
+        List<TransitRoute> candidates = lineRoutes.computeIfAbsent(getStopSequence(stops), k -> new ArrayList<>());
+
+        for (TransitRoute tr : candidates) {
             if (tr.getStops().equals(stops)) {
                 return tr;
             }
         }
+        if (routeOffsetTolerance > 0) {
+            for (TransitRoute tr : candidates) {
+                if (offsetsWithinTolerance(tr.getStops(), stops)) {
+                    compactedRouteVariants++;
+                    return tr;
+                }
+            }
+        }
 
         // no prefix needed because already included in transit line
         Id<TransitRoute> routeId = Id.create(tl.getId().toString() + "_" + tl.getRoutes().size(), TransitRoute.class);
@@ -440,9 +647,41 @@ public class GtfsConverter {
         }
         tr.getAttributes().putAttribute("simple_route_type", routeType.getSimpleTypeName());
         tl.addRoute(tr);
+        candidates.add(tr);
         return tr;
     }
 
+    private static List<Id<TransitStopFacility>> getStopSequence(List<TransitRouteStop> stops) {
+        List<Id<TransitStopFacility>> sequence = new ArrayList<>(stops.size());
+        for (TransitRouteStop stop : stops) {
+            sequence.add(stop.getStopFacility().getId());
+        }
+        return sequence;
+    }
+
+    /**
+     * Checks whether two stop lists with the same stop facilities differ only by offsets within the route offset tolerance.
+     */
+    private boolean offsetsWithinTolerance(List<TransitRouteStop> representative, List<TransitRouteStop> stops) {
+        for (int i = 0; i < stops.size(); i++) {
+            TransitRouteStop a = representative.get(i);
+            TransitRouteStop b = stops.get(i);
+            if (a.isAwaitDepartureTime() != b.isAwaitDepartureTime()
+                    || !offsetWithinTolerance(a.getArrivalOffset(), b.getArrivalOffset())
+                    || !offsetWithinTolerance(a.getDepartureOffset(), b.getDepartureOffset())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean offsetWithinTolerance(OptionalTime a, OptionalTime b) {
+        if (a.isDefined() != b.isDefined()) {
+            return false;
+        }
+        return a.isUndefined() || Math.abs(a.seconds() - b.seconds()) <= routeOffsetTolerance;
+    }
+
     private Id<TransitLine> getReadableTransitLineId(Trip trip) {
         return getReadableTransitLineId(feed.routes.get(trip.route_id));
     }
@@ -471,10 +710,27 @@ public class GtfsConverter {
         }
     }
 
+    /**
+     * Time of day in seconds of the service day, start inclusive and end exclusive.
+     */
+    private record TimeWindow(double start, double end) {
+        boolean contains(double time) {
+            return time >= start && time < end;
+        }
+    }
+
     public enum MergeGtfsStops {doNotMerge, mergeStopsAtSameCoord, mergeToGtfsParentStation, mergeToParentAndRouteTypes}
 
     public enum HandleStopsWithoutService {keepAll, keepParentStationsAndStopsWithService}
 
+    /**
+     * How trips without times at the first or last stop, or with decreasing times, are handled.
+     * fail aborts the conversion on missing first or last times and keeps decreasing times, as gtfs-lib did,
+     * drop skips the trip, repair lets the vehicle wait at the nearest stop with times and raises decreasing times
+     * to the previous time.
+     */
+    public enum BadTripPolicy {fail, drop, repair}
+
     public static final class Builder {
 
         private GTFSFeed feed;
@@ -496,6 +752,11 @@ public class GtfsConverter {
         private LocalDate startDate;
         private LocalDate endDate;
         private String prefix = "";
+        private TransitRouteStopPool routeStopPool;
+        private boolean removeDuplicateDepartures = false;
+        private double routeOffsetTolerance = 0;
+        private final List<TimeWindow> serviceTimeWindows = new ArrayList<>();
+        private BadTripPolicy badTripPolicy = BadTripPolicy.fail;
 
         private Builder() {
         }
@@ -507,6 +768,17 @@ public class GtfsConverter {
             return new GtfsConverter(this);
         }
 
+        /**
+         * Creates a schedule that converts lines on first access instead of converting the whole feed.
+         * A scenario is not required.
+         *
+         * @param maxCachedLines number of converted lines that are kept, least recently used lines are evicted
+         * @see LazyGtfsTransitSchedule
+         */
+        public LazyGtfsTransitSchedule buildLazySchedule(int maxCachedLines) {
+            return new LazyGtfsTransitSchedule(this, maxCachedLines);
+        }
+
         /**
          * Sets the GTFS feed from which to extract the schedules.
          */
@@ -640,6 +912,61 @@ public class GtfsConverter {
             this.includeMinimalTransferTimes = includeMinimalTransferTimes;
             return this;
         }
+
+        /**
+         * Share identical {@link TransitRouteStop}s between routes. The same pool can be used for several converters
+         * writing into one schedule. Default is null, i.e. every route gets its own stops. Network builders must not modify
+         * the shared route stops, except for {@link org.matsim.pt.utils.CreatePseudoNetwork}, see {@link TransitRouteStopPool}.
+         */
+        public Builder setRouteStopPool(TransitRouteStopPool routeStopPool) {
+            this.routeStopPool = routeStopPool;
+            return this;
+        }
+
+        /**
+         * Keep only one departure per transit route and departure time.
+         *
+         * @see TransitSchedulePostProcessTools#removeDuplicateDepartures(TransitSchedule)
+         */
+        public Builder setRemoveDuplicateDepartures(boolean removeDuplicateDepartures) {
+            this.removeDuplicateDepartures = removeDuplicateDepartures;
+            return this;
+        }
+
+        /**
+         * Trips with the same stop sequence whose offsets all differ by at most this many seconds from an existing route
+         * are added as departures of that route instead of creating a new route variant. The first route of such a
+         * cluster is kept as representative. Default is 0, i.e. offsets have to match exactly.
+         */
+        public Builder setRouteOffsetTolerance(double routeOffsetTolerance) {
+            this.routeOffsetTolerance = routeOffsetTolerance;
+            return this;
+        }
+
+        /**
+         * How trips with invalid stop times are handled. Default is {@link BadTripPolicy#fail}.
+         */
+        public Builder setBadTripPolicy(BadTripPolicy badTripPolicy) {
+            this.badTripPolicy = badTripPolicy;
+            return this;
+        }
+
+        /**
+         * Only converts trips whose first departure is within one of the added time windows, and for frequency-based trips
+         * only the departures within the windows. Times are seconds of the service day, so they may exceed 24:00 as in GTFS.
+         * Trips outside all windows are skipped before their stop times are converted, so no routes or lines are created for them.
+         * Default is no window, i.e. the whole day is converted.
+         *
+         * @param startTime start of the window (inclusive)
+         * @param endTime   end of the window (exclusive)
+         */
+        public Builder addServiceTimeWindow(double startTime, double endTime) {
+            if (endTime <= startTime) {
+                throw new IllegalArgumentException("End of service time window " + endTime + " is not after its start " + startTime);
+            }
+            this.serviceTimeWindows.add(new TimeWindow(startTime, endTime));
+            return this;
+        }
     }
 
 }
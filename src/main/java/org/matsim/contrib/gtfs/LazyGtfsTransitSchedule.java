@@ -0,0 +1,154 @@
+package org.matsim.contrib.gtfs;
+
+import com.conveyal.gtfs.model.Route;
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.TransitScheduleFactoryImpl;
+import org.matsim.pt.transitSchedule.TransitScheduleImpl;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+
+import java.util.*;
+
+/**
+ * Transit schedule backed by a GTFS feed. Stop facilities and transfer times are converted up front, while
+ * {@link TransitLine}s are only converted when they are accessed and kept in a bounded LRU cache. The conversion
+ * is done by {@link GtfsConverter}, so each line is identical to the one of an eager conversion with the same
+ * settings. Stops without service are never deleted, as this would require converting all lines.
+ * <p>
+ * Lines evicted from the cache are converted again on the next access, thus modifications of converted lines
+ * are not persistent. Lines added via {@link #addTransitLine(TransitLine)} are kept permanently.
+ * <p>
+ * Use {@link GtfsConverter.Builder#buildLazySchedule(int)} to create an instance.
+ */
+public final class LazyGtfsTransitSchedule extends TransitScheduleImpl {
+
+	private final GtfsConverter converter;
+	private final Map<Id<TransitLine>, Route> routes;
+	private final Set<Id<TransitLine>> removedLines = new HashSet<>();
+	private final Map<Id<TransitLine>, TransitLine> cache;
+	private final Map<Id<TransitLine>, TransitLine> transitLines = new LazyTransitLines();
+
+	private int convertedLines = 0;
+
+	LazyGtfsTransitSchedule(GtfsConverter.Builder builder, int maxCachedLines) {
+		super(new TransitScheduleFactoryImpl());
+		if (maxCachedLines < 1) {
+			throw new IllegalArgumentException("At least one line needs to be cached, got " + maxCachedLines);
+		}
+
+		this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Id<TransitLine>, TransitLine> eldest) {
+				return size() > maxCachedLines;
+			}
+		};
+		this.converter = new GtfsConverter(builder, this);
+		this.routes = converter.prepareLineConversion();
+	}
+
+	@Override
+	public Map<Id<TransitLine>, TransitLine> getTransitLines() {
+		return transitLines;
+	}
+
+	@Override
+	public boolean removeTransitLine(TransitLine line) {
+		if (super.removeTransitLine(line)) {
+			return true;
+		}
+		synchronized (this) {
+			cache.remove(line.getId());
+			return routes.containsKey(line.getId()) && removedLines.add(line.getId());
+		}
+	}
+
+	/**
+	 * Number of line conversions so far, including repeated conversions of evicted lines.
+	 */
+	public synchronized int getConvertedLines() {
+		return convertedLines;
+	}
+
+	private synchronized TransitLine getOrConvert(Id<TransitLine> id) {
+		TransitLine line = cache.get(id);
+		if (line == null) {
+			line = converter.convertLine(routes.get(id));
+			convertedLines++;
+			cache.put(id, line);
+		}
+		return line;
+	}
+
+	/**
+	 * Read-only view on the lines, which are converted when they are retrieved.
+	 */
+	private final class LazyTransitLines extends AbstractMap<Id<TransitLine>, TransitLine> {
+
+		@Override
+		public TransitLine get(Object key) {
+			TransitLine added = LazyGtfsTransitSchedule.super.getTransitLines().get(key);
+			if (added != null) {
+				return added;
+			}
+			if (!(key instanceof Id<?> id) || !routes.containsKey(id) || isRemoved(id)) {
+				return null;
+			}
+			@SuppressWarnings("unchecked")
+			Id<TransitLine> lineId = (Id<TransitLine>) id;
+			return getOrConvert(lineId);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			if (LazyGtfsTransitSchedule.super.getTransitLines().containsKey(key)) {
+				return true;
+			}
+			return key instanceof Id<?> id && routes.containsKey(id) && !isRemoved(id);
+		}
+
+		@Override
+		public Set<Id<TransitLine>> keySet() {
+			Set<Id<TransitLine>> keys = new LinkedHashSet<>(LazyGtfsTransitSchedule.super.getTransitLines().keySet());
+			for (Id<TransitLine> id : routes.keySet()) {
+				if (!isRemoved(id)) {
+					keys.add(id);
+				}
+			}
+			return Collections.unmodifiableSet(keys);
+		}
+
+		@Override
+		public Set<Entry<Id<TransitLine>, TransitLine>> entrySet() {
+			Set<Id<TransitLine>> keys = keySet();
+			return new AbstractSet<>() {
+				@Override
+				public Iterator<Entry<Id<TransitLine>, TransitLine>> iterator() {
+					Iterator<Id<TransitLine>> it = keys.iterator();
+					return new Iterator<>() {
+						@Override
+						public boolean hasNext() {
+							return it.hasNext();
+						}
+
+						@Override
+						public Entry<Id<TransitLine>, TransitLine> next() {
+							Id<TransitLine> id = it.next();
+							return new SimpleImmutableEntry<>(id, get(id));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return keys.size();
+				}
+			};
+		}
+
+		private boolean isRemoved(Id<?> id) {
+			synchronized (LazyGtfsTransitSchedule.this) {
+				return removedLines.contains(id);
+			}
+		}
+	}
+
+}
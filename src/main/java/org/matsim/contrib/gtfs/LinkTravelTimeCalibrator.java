@@ -0,0 +1,196 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+
+/**
+ * Sets the freespeed of transit links so that vehicles follow the offsets of the schedule, instead of arriving early or late
+ * with the generic speeds of {@link org.matsim.pt.utils.CreatePseudoNetwork}.
+ * <p>
+ * The scheduled travel time between two stops, from the departure at one stop to the arrival at the next, is distributed over
+ * the links between their stop links in proportion to their lengths. Each link gets the minimum of these times over all routes
+ * using it, or a percentile if {@link #setPercentile(double)} is set, and its freespeed is set to match. With the minimum no
+ * vehicle is late, routes with longer times arrive early and wait at stops with awaitDepartureTime. The times of all routes are
+ * collected in one parallel pass.
+ * <p>
+ * Segments with a scheduled time of zero, common in feeds with times in minutes, carry no information and are skipped. Links
+ * shared with other traffic, e.g. after {@link NetworkMapMatcher}, should be excluded with {@link #setLinkFilter(Predicate)}.
+ */
+public final class LinkTravelTimeCalibrator {
+
+	private static final Logger log = LogManager.getLogger(LinkTravelTimeCalibrator.class);
+
+	private final TransitSchedule schedule;
+	private final Network network;
+	private double percentile = 0;
+	private Predicate<Link> linkFilter = link -> true;
+	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	public LinkTravelTimeCalibrator(TransitSchedule schedule, Network network) {
+		this.schedule = schedule;
+		this.network = network;
+	}
+
+	/**
+	 * Percentile of the scheduled times of a link which is used for its freespeed, between 0 (the minimum, default) and 1.
+	 */
+	public LinkTravelTimeCalibrator setPercentile(double percentile) {
+		if (percentile < 0 || percentile > 1) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 1, got " + percentile);
+		}
+		this.percentile = percentile;
+		return this;
+	}
+
+	/**
+	 * Only links accepted by the filter get a new freespeed. Default is all links used by transit routes.
+	 */
+	public LinkTravelTimeCalibrator setLinkFilter(Predicate<Link> linkFilter) {
+		this.linkFilter = linkFilter;
+		return this;
+	}
+
+	public LinkTravelTimeCalibrator setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = ParallelRunner.checkNumberOfThreads(numberOfThreads);
+		return this;
+	}
+
+	/**
+	 * Sets the freespeed of all links used by transit routes.
+	 *
+	 * @return number of links whose freespeed was set
+	 */
+	public int run() {
+		long start = System.nanoTime();
+		List<TransitRoute> routes = new ArrayList<>();
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			routes.addAll(line.getRoutes().values());
+		}
+
+		Map<Id<Link>, DoubleArrayList> travelTimes = ParallelRunner.call(numberOfThreads, () -> routes.parallelStream()
+				.collect(HashMap<Id<Link>, DoubleArrayList>::new, this::addTravelTimes, LinkTravelTimeCalibrator::merge));
+
+		int calibrated = 0;
+		for (Map.Entry<Id<Link>, DoubleArrayList> e : travelTimes.entrySet()) {
+			Link link = network.getLinks().get(e.getKey());
+			double travelTime = getPercentile(e.getValue(), percentile);
+			if (link.getLength() > 0 && travelTime > 0) {
+				link.setFreespeed(link.getLength() / travelTime);
+				calibrated++;
+			}
+		}
+		log.info("Calibrated the freespeed of {} links used by {} routes to the {} percentile of scheduled times. Took {} ms",
+				calibrated, routes.size(), percentile, (System.nanoTime() - start) / 1_000_000);
+		return calibrated;
+	}
+
+	/**
+	 * Adds the scheduled travel time of each link of the route. Routes whose stop links are not on their network route are
+	 * skipped.
+	 */
+	private void addTravelTimes(Map<Id<Link>, DoubleArrayList> travelTimes, TransitRoute route) {
+		NetworkRoute networkRoute = route.getRoute();
+		List<TransitRouteStop> stops = route.getStops();
+		if (networkRoute == null || stops.size() < 2) {
+			return;
+		}
+		List<Id<Link>> linkIds = new ArrayList<>(networkRoute.getLinkIds().size() + 2);
+		linkIds.add(networkRoute.getStartLinkId());
+		linkIds.addAll(networkRoute.getLinkIds());
+		linkIds.add(networkRoute.getEndLinkId());
+
+		// the vehicle waits at the end of the stop link, so a segment runs from after one stop link up to the next stop link
+		int previousStopIndex = linkIds.indexOf(stops.get(0).getStopFacility().getLinkId());
+		if (previousStopIndex < 0) {
+			log.warn("Stop link of the first stop of route {} is not on its network route", route.getId());
+			return;
+		}
+		for (int i = 1; i < stops.size(); i++) {
+			Id<Link> stopLinkId = stops.get(i).getStopFacility().getLinkId();
+			// consecutive stops on the same link share the time of the segment before
+			if (linkIds.get(previousStopIndex).equals(stopLinkId)) continue;
+			int stopIndex = previousStopIndex + 1;
+			while (stopIndex < linkIds.size() && !linkIds.get(stopIndex).equals(stopLinkId)) {
+				stopIndex++;
+			}
+			if (stopIndex == linkIds.size()) {
+				log.warn("Stop link {} of route {} is not on its network route", stopLinkId, route.getId());
+				return;
+			}
+
+			TransitRouteStop from = stops.get(i - 1);
+			TransitRouteStop to = stops.get(i);
+			double time = to.getArrivalOffset().orElse(to.getDepartureOffset().orElse(Double.NaN))
+					- from.getDepartureOffset().orElse(from.getArrivalOffset().orElse(Double.NaN));
+			if (time > 0) {
+				addSegment(travelTimes, linkIds.subList(previousStopIndex + 1, stopIndex + 1), time);
+			}
+			previousStopIndex = stopIndex;
+		}
+	}
+
+	private void addSegment(Map<Id<Link>, DoubleArrayList> travelTimes, List<Id<Link>> segment, double time) {
+		double length = 0;
+		for (Id<Link> linkId : segment) {
+			length += network.getLinks().get(linkId).getLength();
+		}
+		for (Id<Link> linkId : segment) {
+			Link link = network.getLinks().get(linkId);
+			if (!linkFilter.test(link)) continue;
+			double share = length > 0 ? link.getLength() / length : 1.0 / segment.size();
+			travelTimes.computeIfAbsent(linkId, k -> new DoubleArrayList()).add(time * share);
+		}
+	}
+
+	private static void merge(Map<Id<Link>, DoubleArrayList> into, Map<Id<Link>, DoubleArrayList> from) {
+		from.forEach((linkId, times) -> into.merge(linkId, times, (a, b) -> {
+			a.addAll(b);
+			return a;
+		}));
+	}
+
+	/**
+	 * Nearest-rank percentile, the minimum for 0.
+	 */
+	static double getPercentile(DoubleArrayList values, double percentile) {
+		double[] sorted = values.toDoubleArray();
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(percentile * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+}
@@ -0,0 +1,188 @@
+/*********************************************************************** *
+  project: org.matsim.
+
+  ********************************************************************** *
+
+  copyright       : (C) 2020 by the members listed in the COPYING,
+                    LICENSE and WARRANTY file.
+  email           : info at matsim dot org
+
+  ********************************************************************** *
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+    See also COPYING, LICENSE and WARRANTY file
+
+  ********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.Arrays;
+
+/** Minimum fleet vehicle blocking. Departure i can be followed by departure j if the vehicle of i reaches the start of j in time.
+ * As these connections form an acyclic graph, the minimal number of vehicles is the number of departures minus the size of a maximum
+ * matching between predecessors and successors, which is computed with Hopcroft-Karp.
+ * <p>
+ * Candidate successors are not stored as edges. Each departure has a few candidate blocks, each being a sorted array of positions
+ * of which the entries in a range of indices are feasible, e.g. the departures from its end station within the maximal layover time.
+ * Without a layover limit the range extends to the end of the block, so the number of implicit edges grows quadratically per station.
+ * <p>
+ * Departures are matched per TransitLine, or over all lines with interlining. There is no grouping by depot, as neither the schedule nor
+ * GTFS provide depots.
+ */
+final class MinimumFleetBlocking {
+
+	private static final int INF = Integer.MAX_VALUE;
+
+	private final int n;
+	private final int[] blockOffsets;
+	private final int[][] blockPositions;
+	private final int[] blockFrom;
+	private final int[] blockTo;
+
+	private final int[] matchPredecessor;
+	private final int[] matchSuccessor;
+	private final int[] dist;
+	private final int[] queue;
+	private final int[] cursorBlock;
+	private final int[] cursorIndex;
+	private final int[] stack;
+	private final int[] via;
+
+	private MinimumFleetBlocking(int n, int[] blockOffsets, int[][] blockPositions, int[] blockFrom, int[] blockTo) {
+		this.n = n;
+		this.blockOffsets = blockOffsets;
+		this.blockPositions = blockPositions;
+		this.blockFrom = blockFrom;
+		this.blockTo = blockTo;
+		this.matchPredecessor = new int[n];
+		this.matchSuccessor = new int[n];
+		this.dist = new int[n];
+		this.queue = new int[n];
+		this.cursorBlock = new int[n];
+		this.cursorIndex = new int[n];
+		this.stack = new int[n];
+		this.via = new int[n];
+		Arrays.fill(matchPredecessor, -1);
+		Arrays.fill(matchSuccessor, -1);
+	}
+
+	/** Computes the successor of each departure such that the number of vehicle workings is minimal
+	 *
+	 * @param n number of departures
+	 * @param blockOffsets candidate blocks of departure i are blockOffsets[i] until blockOffsets[i + 1] (exclusive)
+	 * @param blockPositions positions of the departures in each candidate block
+	 * @param blockFrom first feasible index in each candidate block
+	 * @param blockTo end of the feasible indices in each candidate block (exclusive)
+	 * @return position of the successor of each departure or -1
+	 */
+	static int[] computeSuccessors(int n, int[] blockOffsets, int[][] blockPositions, int[] blockFrom, int[] blockTo) {
+		MinimumFleetBlocking blocking = new MinimumFleetBlocking(n, blockOffsets, blockPositions, blockFrom, blockTo);
+		while(blocking.bfs()) {
+			for(int u = 0; u < n; u++) {
+				if(blocking.matchSuccessor[u] < 0) {
+					blocking.augment(u);
+				}
+			}
+		}
+		return blocking.matchSuccessor;
+	}
+
+	/** Builds the layers of the shortest augmenting paths, starting from all departures without successor.
+	 *
+	 * @return whether there is an augmenting path
+	 */
+	private boolean bfs() {
+		int head = 0;
+		int tail = 0;
+		for(int u = 0; u < n; u++) {
+			if(matchSuccessor[u] < 0) {
+				dist[u] = 0;
+				queue[tail++] = u;
+			} else {
+				dist[u] = INF;
+			}
+		}
+
+		// layers after the first free successor are not needed in this phase
+		int freeDistance = INF;
+		while(head < tail) {
+			int u = queue[head++];
+			if(dist[u] >= freeDistance) continue;
+			for(int c = blockOffsets[u]; c < blockOffsets[u + 1]; c++) {
+				int[] positions = blockPositions[c];
+				for(int k = blockFrom[c]; k < blockTo[c]; k++) {
+					int w = matchPredecessor[positions[k]];
+					if(w < 0) {
+						freeDistance = Math.min(freeDistance, dist[u] + 1);
+					} else if(dist[w] == INF) {
+						dist[w] = dist[u] + 1;
+						queue[tail++] = w;
+					}
+				}
+			}
+		}
+
+		for(int u = 0; u < n; u++) {
+			resetCursor(u);
+		}
+		return freeDistance != INF;
+	}
+
+	/** Searches an augmenting path along the layers starting from a departure without successor. Iterative, as paths can be as long as the line has departures.
+	 *
+	 * @return whether the matching was augmented
+	 */
+	private boolean augment(int root) {
+		int depth = 0;
+		stack[0] = root;
+		while(depth >= 0) {
+			int u = stack[depth];
+			int v = nextCandidate(u);
+			if(v < 0) {
+				// dead end, do not visit again in this phase
+				dist[u] = INF;
+				depth--;
+				continue;
+			}
+
+			int w = matchPredecessor[v];
+			if(w < 0) {
+				via[depth] = v;
+				for(int d = depth; d >= 0; d--) {
+					matchSuccessor[stack[d]] = via[d];
+					matchPredecessor[via[d]] = stack[d];
+				}
+				return true;
+			}
+			if(dist[w] == dist[u] + 1) {
+				via[depth] = v;
+				stack[++depth] = w;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the next candidate successor of departure u and advances its cursor, or -1 if there is none left
+	 */
+	private int nextCandidate(int u) {
+		while(cursorBlock[u] < blockOffsets[u + 1]) {
+			int[] positions = blockPositions[cursorBlock[u]];
+			if(cursorIndex[u] < blockTo[cursorBlock[u]]) {
+				return positions[cursorIndex[u]++];
+			}
+			cursorBlock[u]++;
+			if(cursorBlock[u] < blockOffsets[u + 1]) {
+				cursorIndex[u] = blockFrom[cursorBlock[u]];
+			}
+		}
+		return -1;
+	}
+
+	private void resetCursor(int u) {
+		cursorBlock[u] = blockOffsets[u];
+		cursorIndex[u] = blockOffsets[u] < blockOffsets[u + 1] ? blockFrom[blockOffsets[u]] : 0;
+	}
+}
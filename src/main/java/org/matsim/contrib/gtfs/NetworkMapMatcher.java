@@ -0,0 +1,611 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+/**
+ * Matches transit routes onto an existing road network, so that buses run on the car network instead of separate pt links as
+ * created by {@link org.matsim.pt.utils.CreatePseudoNetwork} or {@link ShapeNetworkBuilder}.
+ * <p>
+ * Each route is matched with a hidden Markov model over its stops: the candidates of a stop are the nearest links within the
+ * search radius, at most {@link #setMaxCandidates(int)} of them. The cost of a candidate is its distance to the stop, the cost
+ * of a transition between two candidates is the difference between the network distance and the distance along the route's shape
+ * ({@link GtfsConverter#SHAPE_ID}), or the beeline distance for routes without shape. Network paths between candidates are
+ * searched with a Dijkstra bounded by {@link #MAX_DETOUR_FACTOR} and are cached, so routes sharing segments reuse them.
+ * <p>
+ * Only routes with one of the {@link #setRouteModes(Set) route modes} are matched, in parallel. Afterwards each facility gets
+ * the link most routes have chosen for it. Routes which chose another link, e.g. the opposite direction of a two-way road, get
+ * a child facility on that link with the id {@code <facility>.link:<link>}. Facilities also used by routes which are not
+ * matched keep their link, so that these routes stay consistent, and all matched routes use child facilities there. Routes which
+ * can not be matched keep their network route and stops and are reported in the log.
+ */
+public final class NetworkMapMatcher {
+
+	private static final Logger log = LogManager.getLogger(NetworkMapMatcher.class);
+
+	/** standard deviation of the distance between a stop and its link in meters */
+	private static final double STOP_DISTANCE_SIGMA = 20.0;
+	/** difference between network and reference distance in meters which costs as much as one sigma squared */
+	private static final double DISTANCE_DIFFERENCE_BETA = 50.0;
+	/** network paths between candidates may be at most this much longer than the reference distance plus the search radius */
+	static final double MAX_DETOUR_FACTOR = 2.0;
+
+	private final TransitSchedule schedule;
+	private final Network network;
+	private final Map<String, List<Coord>> shapes;
+	private Set<String> modes = Set.of(TransportMode.car);
+	private Set<String> routeModes = Set.of("bus");
+	private double searchRadius = 50;
+	private int maxCandidates = 5;
+	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	private QuadTree<Link> linkIndex;
+	private final Map<Id<TransitStopFacility>, List<Candidate>> candidatesByFacility = new ConcurrentHashMap<>();
+	private final Map<LinkPair, Segment> segments = new ConcurrentHashMap<>();
+
+	/**
+	 * @param schedule schedule whose routes get network routes, facilities get the matched link or child facilities are added
+	 * @param network  network to match onto, it is not modified except for the allowed modes of used links
+	 * @param shapes   points of each shape in the coordinate system of the schedule, see
+	 *                 {@link ShapeNetworkBuilder#readShapes}, may be empty
+	 */
+	public NetworkMapMatcher(TransitSchedule schedule, Network network, Map<String, List<Coord>> shapes) {
+		this.schedule = schedule;
+		this.network = network;
+		this.shapes = shapes;
+	}
+
+	/**
+	 * Modes of the links routes may be matched onto. Default is car.
+	 */
+	public NetworkMapMatcher setModes(Set<String> modes) {
+		this.modes = Set.copyOf(modes);
+		return this;
+	}
+
+	/**
+	 * Transport modes of the routes which are matched. Default is bus.
+	 */
+	public NetworkMapMatcher setRouteModes(Set<String> routeModes) {
+		this.routeModes = Set.copyOf(routeModes);
+		return this;
+	}
+
+	/**
+	 * Maximal distance between a stop and its candidate links. Default is 50m.
+	 */
+	public NetworkMapMatcher setSearchRadius(double searchRadius) {
+		this.searchRadius = searchRadius;
+		return this;
+	}
+
+	/**
+	 * Maximal number of candidate links per stop. Default is 5.
+	 */
+	public NetworkMapMatcher setMaxCandidates(int maxCandidates) {
+		if (maxCandidates < 1) {
+			throw new IllegalArgumentException("At least one candidate is needed, got " + maxCandidates);
+		}
+		this.maxCandidates = maxCandidates;
+		return this;
+	}
+
+	public NetworkMapMatcher setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = ParallelRunner.checkNumberOfThreads(numberOfThreads);
+		return this;
+	}
+
+	/**
+	 * Matches the routes of the schedule with one of the route modes, sets their network routes and the links of their
+	 * facilities.
+	 *
+	 * @return number of matched routes
+	 */
+	public int run() {
+		long start = System.nanoTime();
+		List<TransitRoute> routes = new ArrayList<>();
+		List<TransitLine> linesOfRoutes = new ArrayList<>();
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+				if (routeModes.contains(route.getTransportMode())) {
+					routes.add(route);
+					linesOfRoutes.add(line);
+				}
+			}
+		}
+		linkIndex = buildLinkIndex();
+
+		List<Match> matches = matchAll(routes);
+		Map<Id<TransitStopFacility>, Link> facilityLinks = chooseFacilityLinks(routes, matches);
+
+		// facilities of routes which are not matched keep their link
+		Set<TransitRoute> matchedRoutes = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (int r = 0; r < routes.size(); r++) {
+			if (matches.get(r) != null) {
+				matchedRoutes.add(routes.get(r));
+			}
+		}
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+				if (matchedRoutes.contains(route)) continue;
+				for (TransitRouteStop stop : route.getStops()) {
+					facilityLinks.remove(stop.getStopFacility().getId());
+				}
+			}
+		}
+		for (Map.Entry<Id<TransitStopFacility>, Link> e : facilityLinks.entrySet()) {
+			schedule.getFacilities().get(e.getKey()).setLinkId(e.getValue().getId());
+		}
+
+		int matched = 0;
+		int childFacilities = schedule.getFacilities().size();
+		Map<TransitLine, Map<TransitRoute, TransitRoute>> replacedRoutes = new LinkedHashMap<>();
+		for (int r = 0; r < routes.size(); r++) {
+			TransitRoute route = routes.get(r);
+			Match match = matches.get(r);
+			if (match == null) {
+				log.warn("Could not match route {} with {} stops onto the network", route.getId(), route.getStops().size());
+				continue;
+			}
+			List<TransitRouteStop> stops = getStopsOnLinks(route.getStops(), match.stopLinks());
+			if (stops != route.getStops()) {
+				TransitRoute replacement = copyRoute(route, stops);
+				replacedRoutes.computeIfAbsent(linesOfRoutes.get(r), k -> new IdentityHashMap<>()).put(route, replacement);
+				route = replacement;
+			}
+			route.setRoute(RouteUtils.createNetworkRoute(match.linkIds()));
+			allowMode(match.linkIds(), route.getTransportMode());
+			matched++;
+		}
+		childFacilities = schedule.getFacilities().size() - childFacilities;
+		for (Map.Entry<TransitLine, Map<TransitRoute, TransitRoute>> e : replacedRoutes.entrySet()) {
+			replaceRoutes(e.getKey(), e.getValue());
+		}
+		log.info("Matched {} of {} routes, {} child facilities were created for stop links in other directions. {} network segments were cached. Took {} ms",
+				matched, routes.size(), childFacilities, segments.size(), (System.nanoTime() - start) / 1_000_000);
+		return matched;
+	}
+
+	private List<Match> matchAll(List<TransitRoute> routes) {
+		// toList() does not allow null elements for unmatched routes
+		return ParallelRunner.call(numberOfThreads, () -> routes.parallelStream()
+				.map(this::match)
+				.collect(ArrayList<Match>::new, ArrayList::add, ArrayList::addAll));
+	}
+
+	/**
+	 * Chooses the link most routes have matched a facility onto, ties are broken by the order of the schedule.
+	 */
+	private static Map<Id<TransitStopFacility>, Link> chooseFacilityLinks(List<TransitRoute> routes, List<Match> matches) {
+		Map<Id<TransitStopFacility>, Map<Link, Integer>> votes = new LinkedHashMap<>();
+		for (int r = 0; r < routes.size(); r++) {
+			Match match = matches.get(r);
+			if (match == null) continue;
+			List<TransitRouteStop> stops = routes.get(r).getStops();
+			for (int i = 0; i < stops.size(); i++) {
+				votes.computeIfAbsent(stops.get(i).getStopFacility().getId(), k -> new LinkedHashMap<>())
+						.merge(match.stopLinks().get(i), 1, Integer::sum);
+			}
+		}
+		Map<Id<TransitStopFacility>, Link> chosen = new LinkedHashMap<>();
+		for (Map.Entry<Id<TransitStopFacility>, Map<Link, Integer>> e : votes.entrySet()) {
+			Link best = null;
+			int bestVotes = 0;
+			for (Map.Entry<Link, Integer> vote : e.getValue().entrySet()) {
+				if (vote.getValue() > bestVotes) {
+					best = vote.getKey();
+					bestVotes = vote.getValue();
+				}
+			}
+			chosen.put(e.getKey(), best);
+		}
+		return chosen;
+	}
+
+	/**
+	 * Replaces each stop whose facility is on another link than the matched one by a stop at the child facility on that link.
+	 * Stops may be shared between routes, so new stops are created instead of changing their facility.
+	 *
+	 * @return the given stops if all facilities are on their matched links, a new list otherwise
+	 */
+	private List<TransitRouteStop> getStopsOnLinks(List<TransitRouteStop> stops, List<Link> stopLinks) {
+		List<TransitRouteStop> result = stops;
+		for (int i = 0; i < stops.size(); i++) {
+			TransitRouteStop stop = stops.get(i);
+			Link link = stopLinks.get(i);
+			if (link.getId().equals(stop.getStopFacility().getLinkId())) continue;
+			if (result == stops) {
+				result = new ArrayList<>(stops);
+			}
+			result.set(i, schedule.getFactory().createTransitRouteStopBuilder(getOrCreateChildFacility(stop.getStopFacility(), link))
+					.arrivalOffset(stop.getArrivalOffset())
+					.departureOffset(stop.getDepartureOffset())
+					.awaitDepartureTime(stop.isAwaitDepartureTime())
+					.allowBoarding(stop.isAllowBoarding())
+					.allowAlighting(stop.isAllowAlighting())
+					.build());
+		}
+		return result;
+	}
+
+	private TransitStopFacility getOrCreateChildFacility(TransitStopFacility facility, Link link) {
+		Id<TransitStopFacility> id = Id.create(facility.getId() + ".link:" + link.getId(), TransitStopFacility.class);
+		TransitStopFacility child = schedule.getFacilities().get(id);
+		if (child == null) {
+			child = schedule.getFactory().createTransitStopFacility(id, facility.getCoord(), facility.getIsBlockingLane());
+			child.setName(facility.getName());
+			child.setStopAreaId(facility.getStopAreaId());
+			child.setLinkId(link.getId());
+			facility.getAttributes().getAsMap().forEach(child.getAttributes()::putAttribute);
+			schedule.addStopFacility(child);
+		}
+		return child;
+	}
+
+	/**
+	 * Copy of the route with other stops, as the stops of a route can not be changed.
+	 */
+	private TransitRoute copyRoute(TransitRoute route, List<TransitRouteStop> stops) {
+		TransitRoute copy = schedule.getFactory().createTransitRoute(route.getId(), route.getRoute(), stops, route.getTransportMode());
+		copy.setDescription(route.getDescription());
+		route.getAttributes().getAsMap().forEach(copy.getAttributes()::putAttribute);
+		for (Departure departure : route.getDepartures().values()) {
+			copy.addDeparture(departure);
+		}
+		return copy;
+	}
+
+	/**
+	 * Replaces routes of the line while keeping the order of its routes.
+	 */
+	private static void replaceRoutes(TransitLine line, Map<TransitRoute, TransitRoute> replacements) {
+		List<TransitRoute> routes = new ArrayList<>(line.getRoutes().values());
+		for (TransitRoute route : routes) {
+			line.removeRoute(route);
+		}
+		for (TransitRoute route : routes) {
+			line.addRoute(replacements.getOrDefault(route, route));
+		}
+	}
+
+	/**
+	 * Finds the most likely sequence of stop links with the Viterbi algorithm.
+	 *
+	 * @return the match, or null if a stop has no candidate or consecutive candidates are not connected
+	 */
+	private Match match(TransitRoute route) {
+		List<TransitRouteStop> stops = route.getStops();
+		if (stops.isEmpty()) {
+			return null;
+		}
+		double[] referenceDistances = getReferenceDistances(route);
+
+		List<List<Candidate>> layers = new ArrayList<>(stops.size());
+		for (TransitRouteStop stop : stops) {
+			TransitStopFacility facility = stop.getStopFacility();
+			List<Candidate> candidates = candidatesByFacility.computeIfAbsent(facility.getId(), k -> findCandidates(facility.getCoord()));
+			if (candidates.isEmpty()) {
+				return null;
+			}
+			layers.add(candidates);
+		}
+
+		double[] costs = new double[layers.get(0).size()];
+		for (int c = 0; c < costs.length; c++) {
+			costs[c] = layers.get(0).get(c).cost();
+		}
+		int[][] predecessors = new int[stops.size()][];
+		Segment[][] paths = new Segment[stops.size()][];
+		for (int i = 1; i < stops.size(); i++) {
+			List<Candidate> previousLayer = layers.get(i - 1);
+			List<Candidate> layer = layers.get(i);
+			double bound = MAX_DETOUR_FACTOR * referenceDistances[i - 1] + 2 * searchRadius;
+			double[] layerCosts = new double[layer.size()];
+			Arrays.fill(layerCosts, Double.POSITIVE_INFINITY);
+			predecessors[i] = new int[layer.size()];
+			paths[i] = new Segment[layer.size()];
+
+			for (int p = 0; p < previousLayer.size(); p++) {
+				if (costs[p] == Double.POSITIVE_INFINITY) continue;
+				Candidate from = previousLayer.get(p);
+				Segment[] toLayer = getSegments(from, layer, bound);
+				for (int c = 0; c < layer.size(); c++) {
+					if (toLayer[c] == null) continue;
+					Candidate to = layer.get(c);
+					double networkDistance = getNetworkDistance(from, to, toLayer[c]);
+					double cost = costs[p] + to.cost() + Math.abs(networkDistance - referenceDistances[i - 1]) / DISTANCE_DIFFERENCE_BETA;
+					if (cost < layerCosts[c]) {
+						layerCosts[c] = cost;
+						predecessors[i][c] = p;
+						paths[i][c] = toLayer[c];
+					}
+				}
+			}
+			costs = layerCosts;
+		}
+
+		int best = -1;
+		for (int c = 0; c < costs.length; c++) {
+			if (costs[c] < Double.POSITIVE_INFINITY && (best < 0 || costs[c] < costs[best])) {
+				best = c;
+			}
+		}
+		if (best < 0) {
+			return null;
+		}
+
+		Link[] stopLinks = new Link[stops.size()];
+		Segment[] chosenPaths = new Segment[stops.size()];
+		for (int i = stops.size() - 1; i >= 0; i--) {
+			stopLinks[i] = layers.get(i).get(best).link();
+			if (i > 0) {
+				chosenPaths[i] = paths[i][best];
+				best = predecessors[i][best];
+			}
+		}
+		List<Id<Link>> linkIds = new ArrayList<>();
+		linkIds.add(stopLinks[0].getId());
+		for (int i = 1; i < stops.size(); i++) {
+			if (chosenPaths[i] == Segment.SAME_LINK) continue;
+			for (Link link : chosenPaths[i].links()) {
+				linkIds.add(link.getId());
+			}
+			linkIds.add(stopLinks[i].getId());
+		}
+		return new Match(List.of(stopLinks), linkIds);
+	}
+
+	/**
+	 * Distances between consecutive stops along the shape of the route, or the beeline if it has no shape.
+	 */
+	private double[] getReferenceDistances(TransitRoute route) {
+		List<TransitRouteStop> stops = route.getStops();
+		Object shapeId = route.getAttributes().getAttribute(GtfsConverter.SHAPE_ID);
+		List<Coord> shape = shapeId == null ? null : shapes.get(shapeId.toString());
+		if (shape != null && shape.size() > 1) {
+			return new ShapeNetworkBuilder.ShapeIndex(shape).getLengthsBetweenStops(stops, searchRadius);
+		}
+		double[] distances = new double[Math.max(0, stops.size() - 1)];
+		for (int i = 1; i < stops.size(); i++) {
+			distances[i - 1] = CoordUtils.calcEuclideanDistance(stops.get(i - 1).getStopFacility().getCoord(),
+					stops.get(i).getStopFacility().getCoord());
+		}
+		return distances;
+	}
+
+	private static double getNetworkDistance(Candidate from, Candidate to, Segment segment) {
+		if (segment == Segment.SAME_LINK) {
+			return (to.fraction() - from.fraction()) * from.link().getLength();
+		}
+		return (1 - from.fraction()) * from.link().getLength() + segment.length() + to.fraction() * to.link().getLength();
+	}
+
+	/**
+	 * Paths from one candidate to all candidates of the next stop, taken from the cache or searched at once.
+	 *
+	 * @return the path to each candidate, or null if it is not reachable within the bound
+	 */
+	private Segment[] getSegments(Candidate from, List<Candidate> layer, double bound) {
+		Segment[] result = new Segment[layer.size()];
+		Set<Node> missing = new HashSet<>();
+		for (int c = 0; c < layer.size(); c++) {
+			Candidate to = layer.get(c);
+			if (to.link() == from.link() && to.fraction() >= from.fraction()) {
+				result[c] = Segment.SAME_LINK;
+			} else {
+				result[c] = segments.get(new LinkPair(from.link().getId(), to.link().getId()));
+				if (result[c] == null) {
+					missing.add(to.link().getFromNode());
+				}
+			}
+		}
+		if (missing.isEmpty()) {
+			return result;
+		}
+		Map<Node, Segment> found = findPaths(from.link().getToNode(), missing, bound);
+		for (int c = 0; c < layer.size(); c++) {
+			if (result[c] != null) continue;
+			Link to = layer.get(c).link();
+			Segment segment = found.get(to.getFromNode());
+			if (segment != null) {
+				// only found paths are cached, as a missing path depends on the bound
+				segments.putIfAbsent(new LinkPair(from.link().getId(), to.getId()), segment);
+				result[c] = segment;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Shortest paths by length from one node to the given nodes, on links allowing one of the modes. The search stops when all
+	 * targets are reached or the bound is exceeded.
+	 */
+	private Map<Node, Segment> findPaths(Node start, Set<Node> targets, double bound) {
+		Map<Node, Double> distances = new HashMap<>();
+		Map<Node, Link> incoming = new HashMap<>();
+		Set<Node> settled = new HashSet<>();
+		PriorityQueue<NodeEntry> queue = new PriorityQueue<>(Comparator.comparingDouble(NodeEntry::distance));
+		distances.put(start, 0.0);
+		queue.add(new NodeEntry(start, 0.0));
+
+		Map<Node, Segment> found = new HashMap<>();
+		while (!queue.isEmpty() && found.size() < targets.size()) {
+			NodeEntry entry = queue.poll();
+			Node node = entry.node();
+			if (!settled.add(node)) continue;
+			if (targets.contains(node)) {
+				found.put(node, toSegment(node, start, incoming, entry.distance()));
+			}
+			for (Link link : node.getOutLinks().values()) {
+				if (!isAllowed(link)) continue;
+				double distance = entry.distance() + link.getLength();
+				if (distance > bound) continue;
+				Node next = link.getToNode();
+				Double known = distances.get(next);
+				if (known == null || distance < known) {
+					distances.put(next, distance);
+					incoming.put(next, link);
+					queue.add(new NodeEntry(next, distance));
+				}
+			}
+		}
+		return found;
+	}
+
+	private static Segment toSegment(Node node, Node start, Map<Node, Link> incoming, double length) {
+		List<Link> links = new ArrayList<>();
+		while (node != start) {
+			Link link = incoming.get(node);
+			links.add(link);
+			node = link.getFromNode();
+		}
+		Collections.reverse(links);
+		return new Segment(List.copyOf(links), length);
+	}
+
+	private List<Candidate> findCandidates(Coord coord) {
+		// links are indexed by points at most one search radius apart
+		Set<Link> links = new LinkedHashSet<>(linkIndex.getDisk(coord.getX(), coord.getY(), 1.5 * searchRadius));
+		List<Candidate> candidates = new ArrayList<>();
+		for (Link link : links) {
+			Candidate candidate = Candidate.of(link, coord);
+			if (candidate.distance() <= searchRadius) {
+				candidates.add(candidate);
+			}
+		}
+		candidates.sort(Comparator.comparingDouble(Candidate::distance).thenComparing(candidate -> candidate.link().getId()));
+		return List.copyOf(candidates.subList(0, Math.min(maxCandidates, candidates.size())));
+	}
+
+	private QuadTree<Link> buildLinkIndex() {
+		double[] bounds = NetworkUtils.getBoundingBox(network.getNodes().values());
+		QuadTree<Link> index = new QuadTree<>(bounds[0] - 1, bounds[1] - 1, bounds[2] + 1, bounds[3] + 1);
+		for (Link link : network.getLinks().values()) {
+			if (!isAllowed(link)) continue;
+			Coord from = link.getFromNode().getCoord();
+			Coord to = link.getToNode().getCoord();
+			int points = 1 + (int) Math.ceil(CoordUtils.calcEuclideanDistance(from, to) / searchRadius);
+			for (int i = 0; i <= points; i++) {
+				double share = (double) i / points;
+				index.put(from.getX() + share * (to.getX() - from.getX()), from.getY() + share * (to.getY() - from.getY()), link);
+			}
+		}
+		return index;
+	}
+
+	private boolean isAllowed(Link link) {
+		for (String mode : link.getAllowedModes()) {
+			if (modes.contains(mode)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void allowMode(List<Id<Link>> linkIds, String mode) {
+		if (mode == null) return;
+		for (Id<Link> linkId : linkIds) {
+			Link link = network.getLinks().get(linkId);
+			if (!link.getAllowedModes().contains(mode)) {
+				Set<String> allowedModes = new HashSet<>(link.getAllowedModes());
+				allowedModes.add(mode);
+				link.setAllowedModes(allowedModes);
+			}
+		}
+	}
+
+	/**
+	 * @param stopLinks link of each stop of the route
+	 * @param linkIds   links of the network route, including the first and last stop link
+	 */
+	private record Match(List<Link> stopLinks, List<Id<Link>> linkIds) {
+	}
+
+	/**
+	 * @param fraction position of the projection of the stop onto the link, from 0 at the from node to 1 at the to node
+	 */
+	private record Candidate(Link link, double distance, double fraction) {
+
+		static Candidate of(Link link, Coord coord) {
+			Coord from = link.getFromNode().getCoord();
+			Coord to = link.getToNode().getCoord();
+			double dx = to.getX() - from.getX();
+			double dy = to.getY() - from.getY();
+			double squaredLength = dx * dx + dy * dy;
+			double fraction = squaredLength == 0 ? 0
+					: Math.clamp(((coord.getX() - from.getX()) * dx + (coord.getY() - from.getY()) * dy) / squaredLength, 0.0, 1.0);
+			double distance = CoordUtils.calcEuclideanDistance(coord,
+					new Coord(from.getX() + fraction * dx, from.getY() + fraction * dy));
+			return new Candidate(link, distance, fraction);
+		}
+
+		/** negative log-likelihood of a normally distributed distance, without constant terms */
+		double cost() {
+			return 0.5 * (distance / STOP_DISTANCE_SIGMA) * (distance / STOP_DISTANCE_SIGMA);
+		}
+	}
+
+	/**
+	 * Links between the to node of one candidate and the from node of the next one.
+	 */
+	private record Segment(List<Link> links, double length) {
+		/** both stops are on the same link in driving direction */
+		static final Segment SAME_LINK = new Segment(List.of(), 0);
+	}
+
+	private record LinkPair(Id<Link> from, Id<Link> to) {
+	}
+
+	private record NodeEntry(Node node, double distance) {
+	}
+}
@@ -0,0 +1,67 @@
+/*********************************************************************** *
+  project: org.matsim.
+
+  ********************************************************************** *
+
+  copyright       : (C) 2020 by the members listed in the COPYING,
+                    LICENSE and WARRANTY file.
+  email           : info at matsim dot org
+
+  ********************************************************************** *
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+    See also COPYING, LICENSE and WARRANTY file
+
+  ********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/** Runs parallel streams on a ForkJoinPool of their own, so the number of threads can be set per task instead of using the common pool.
+ * Exceptions of the task are rethrown unchecked.
+ */
+final class ParallelRunner {
+
+	private ParallelRunner() {
+	}
+
+	/** @return numberOfThreads, if it is at least one
+	 */
+	static int checkNumberOfThreads(int numberOfThreads) {
+		if (numberOfThreads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed, got " + numberOfThreads);
+		}
+		return numberOfThreads;
+	}
+
+	/** Computes the result of the task on a new pool, which is shut down afterwards.
+	 */
+	static <T> T call(int numberOfThreads, Callable<T> task) {
+		ForkJoinPool pool = new ForkJoinPool(checkNumberOfThreads(numberOfThreads));
+		try {
+			return pool.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Runs the task on a new pool, which is shut down afterwards.
+	 */
+	static void run(int numberOfThreads, Runnable task) {
+		call(numberOfThreads, () -> {
+			task.run();
+			return null;
+		});
+	}
+}
@@ -18,6 +18,16 @@ import com.conveyal.gtfs.GTFSFeed;
  */
 public class RunGTFS2MATSim {
 
+	/**
+	 * Layover in seconds at the end stop before a shared vehicle serves its next departure.
+	 */
+	private static final int MIN_TIME_TO_WAIT_AT_ENDSTOP = 5 * 60;
+
+	/**
+	 * Beeline distance in meters up to which transfers between stops are stored in the {@link TransitScheduleIndex}.
+	 */
+	private static final double MAX_TRANSFER_DISTANCE = 400;
+
     /**
      * Starts the conversion.
      * 
@@ -30,6 +40,22 @@ public class RunGTFS2MATSim {
 	 * @param mergeStops create one TransitStopFacility per track or merge to one TransitStopFacility per station
      */
     public static void convertGtfs(String fromFile, String toFile, LocalDate startDate, LocalDate endDate, CoordinateTransformation coordinateTransformation, boolean useExtendedRouteTypes, GtfsConverter.MergeGtfsStops mergeStops) {
+		convertGtfs(fromFile, toFile, startDate, endDate, coordinateTransformation, useExtendedRouteTypes, mergeStops, false);
+	}
+
+    /**
+     * Starts the conversion.
+     *
+     * @param fromFile path of input file
+     * @param toFile path to write to
+     * @param startDate start date (inclusive) to check for transit data
+     * @param endDate end date (inclusive) to check for transit data
+     * @param coordinateTransformation coordination transformation for stops, must be to a metric system for the index
+	 * @param useExtendedRouteTypes transfer extended route types to MATSim schedule
+	 * @param mergeStops create one TransitStopFacility per track or merge to one TransitStopFacility per station
+	 * @param writeRaptorIndex also write a {@link TransitScheduleIndex} next to the schedule, see {@link TransitScheduleIndex#getIndexFile(String)}
+     */
+    public static void convertGtfs(String fromFile, String toFile, LocalDate startDate, LocalDate endDate, CoordinateTransformation coordinateTransformation, boolean useExtendedRouteTypes, GtfsConverter.MergeGtfsStops mergeStops, boolean writeRaptorIndex) {
 		GTFSFeed feed = GTFSFeed.fromFile(fromFile);
 
 		feed.feedInfo.values().stream().findFirst().ifPresent(feedInfo -> {
@@ -60,6 +86,10 @@ public class RunGTFS2MATSim {
 		TransitScheduleWriter writer = new TransitScheduleWriter(scenario.getTransitSchedule());
 		writer.writeFile(toFile);
 
+		if (writeRaptorIndex) {
+			TransitScheduleIndex.write(scenario.getTransitSchedule(), TransitScheduleIndex.getIndexFile(toFile), MAX_TRANSFER_DISTANCE);
+		}
+
 		System.out.println("Done.");
     }
 
@@ -77,6 +107,45 @@ public class RunGTFS2MATSim {
 	 * @param mergeStops create one TransitStopFacility per track or merge to one TransitStopFacility per station
 	 */
 	public static void convertGTFSandAddToScenario(Scenario scenario, String gtfsZip, LocalDate startDate, LocalDate endDate, CoordinateTransformation coordinateTransformation, boolean createNetworkAndVehicles, boolean copyEarlyAndLateDepartures, boolean useExtendedRouteTypes, GtfsConverter.MergeGtfsStops mergeStops)
+		{
+			convertGTFSandAddToScenario(scenario, gtfsZip, startDate, endDate, coordinateTransformation, createNetworkAndVehicles, copyEarlyAndLateDepartures, useExtendedRouteTypes, mergeStops, false);
+		}
+
+	/**
+	 * Starts the conversion.
+	 *
+	 * @param gtfsZip path of input file
+	 * @param scenario scenario
+	 * @param startDate start date (inclusive) to check for transit data
+	 * @param endDate end date (inclusive) to check for transit data
+	 * @param coordinateTransformation coordination transformation for stops
+	 * @param createNetworkAndVehicles determine whether a transit network and vehicles should also be created
+	 * @param copyEarlyAndLateDepartures
+	 * @param useExtendedRouteTypes transfer extended route types to MATSim schedule
+	 * @param mergeStops create one TransitStopFacility per track or merge to one TransitStopFacility per station
+	 * @param shareVehicles let consecutive departures of a line share vehicles ({@link TransitFleetBuilder}) instead of creating one vehicle per departure
+	 */
+	public static void convertGTFSandAddToScenario(Scenario scenario, String gtfsZip, LocalDate startDate, LocalDate endDate, CoordinateTransformation coordinateTransformation, boolean createNetworkAndVehicles, boolean copyEarlyAndLateDepartures, boolean useExtendedRouteTypes, GtfsConverter.MergeGtfsStops mergeStops, boolean shareVehicles)
+		{
+			convertGTFSandAddToScenario(scenario, gtfsZip, startDate, endDate, coordinateTransformation, createNetworkAndVehicles, copyEarlyAndLateDepartures, useExtendedRouteTypes, mergeStops, shareVehicles, false);
+		}
+
+	/**
+	 * Starts the conversion.
+	 *
+	 * @param gtfsZip path of input file
+	 * @param scenario scenario
+	 * @param startDate start date (inclusive) to check for transit data
+	 * @param endDate end date (inclusive) to check for transit data
+	 * @param coordinateTransformation coordination transformation for stops
+	 * @param createNetworkAndVehicles determine whether a transit network and vehicles should also be created
+	 * @param copyEarlyAndLateDepartures
+	 * @param useExtendedRouteTypes transfer extended route types to MATSim schedule
+	 * @param mergeStops create one TransitStopFacility per track or merge to one TransitStopFacility per station
+	 * @param shareVehicles let consecutive departures of a line share vehicles ({@link TransitFleetBuilder}) instead of creating one vehicle per departure
+	 * @param calibrateLinkSpeeds set the freespeed of the created network to the scheduled travel times ({@link LinkTravelTimeCalibrator})
+	 */
+	public static void convertGTFSandAddToScenario(Scenario scenario, String gtfsZip, LocalDate startDate, LocalDate endDate, CoordinateTransformation coordinateTransformation, boolean createNetworkAndVehicles, boolean copyEarlyAndLateDepartures, boolean useExtendedRouteTypes, GtfsConverter.MergeGtfsStops mergeStops, boolean shareVehicles, boolean calibrateLinkSpeeds)
 		{
 			GTFSFeed feed = GTFSFeed.fromFile(gtfsZip);
 			feed.feedInfo.values().stream().findFirst().ifPresent((feedInfo) -> {
@@ -94,12 +163,18 @@ public class RunGTFS2MATSim {
 					.build();
 			converter.convert();
 			if (copyEarlyAndLateDepartures) {
-				TransitSchedulePostProcessTools.copyLateDeparturesToStartOfDay(scenario.getTransitSchedule(), 86400.0, "copied", false);
-				TransitSchedulePostProcessTools.copyEarlyDeparturesToFollowingNight(scenario.getTransitSchedule(), 21600.0, "copied");
+				TransitSchedulePostProcessTools.wrapDepartures(scenario.getTransitSchedule(), 86400.0, 21600.0, false);
 			}
 			if (createNetworkAndVehicles) {
 				(new CreatePseudoNetwork(scenario.getTransitSchedule(), scenario.getNetwork(), "pt_")).createNetwork();
-				(new CreateVehiclesForSchedule(scenario.getTransitSchedule(), scenario.getTransitVehicles())).run();
+				if (calibrateLinkSpeeds) {
+					(new LinkTravelTimeCalibrator(scenario.getTransitSchedule(), scenario.getNetwork())).run();
+				}
+				if (shareVehicles) {
+					(new TransitFleetBuilder(scenario.getTransitSchedule(), scenario.getTransitVehicles(), scenario.getNetwork(), MIN_TIME_TO_WAIT_AT_ENDSTOP)).run();
+				} else {
+					(new CreateVehiclesForSchedule(scenario.getTransitSchedule(), scenario.getTransitVehicles())).run();
+				}
 			}
 		}
 
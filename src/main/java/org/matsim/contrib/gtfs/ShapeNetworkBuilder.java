@@ -0,0 +1,321 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.ShapePoint;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.core.utils.geometry.CoordinateTransformation;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+/**
+ * Creates a transit network following the GTFS shapes, as an alternative to {@link org.matsim.pt.utils.CreatePseudoNetwork} which
+ * draws straight links between stops. The stops of each route are snapped in order to the points of the route's shape
+ * ({@link GtfsConverter#SHAPE_ID}), and the link between two stops gets the length of the shape between them. Routes without
+ * shape get straight links.
+ * <p>
+ * Each stop facility gets a short stop link, and routes between two stops share their link if the lengths agree within
+ * {@link #LENGTH_TOLERANCE}, e.g. when they follow the same shape segment. So the facilities need not be duplicated for
+ * different approaches. Shapes are snapped in parallel, links are created afterwards in the order of the schedule, so link ids
+ * do not depend on the number of threads.
+ */
+public final class ShapeNetworkBuilder {
+
+	private static final Logger log = LogManager.getLogger(ShapeNetworkBuilder.class);
+
+	private static final double MIN_LINK_LENGTH = 1.0;
+	private static final double STOP_LINK_FREESPEED = 10.0;
+	/** freespeed of a new link between stops, raised to the fastest scheduled speed of the routes using it */
+	private static final double MIN_LINK_FREESPEED = 1.0;
+	/** relative difference of lengths up to which two routes share the link between the same stops */
+	static final double LENGTH_TOLERANCE = 0.01;
+
+	private final TransitSchedule schedule;
+	private final Network network;
+	private final Map<String, List<Coord>> shapes;
+	private final String prefix;
+	private double snapRadius = 200;
+	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	private final Map<StopPair, List<Link>> linksByStopPair = new HashMap<>();
+	private int linkCounter = 0;
+
+	/**
+	 * @param schedule schedule whose routes get network routes, facilities get their stop link
+	 * @param network  network to add nodes and links to
+	 * @param shapes   points of each shape in the coordinate system of the schedule, see {@link #readShapes}
+	 * @param prefix   prefix of node and link ids, e.g. "pt_"
+	 */
+	public ShapeNetworkBuilder(TransitSchedule schedule, Network network, Map<String, List<Coord>> shapes, String prefix) {
+		this.schedule = schedule;
+		this.network = network;
+		this.shapes = shapes;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * Maximal distance between a stop and a shape point to snap to. Stops without shape point within this distance are snapped to
+	 * the nearest following point of the shape. Default is 200m.
+	 */
+	public ShapeNetworkBuilder setSnapRadius(double snapRadius) {
+		this.snapRadius = snapRadius;
+		return this;
+	}
+
+	public ShapeNetworkBuilder setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = ParallelRunner.checkNumberOfThreads(numberOfThreads);
+		return this;
+	}
+
+	/**
+	 * Reads all shapes of a feed, ordered by shape_pt_sequence.
+	 *
+	 * @param prefix prefix of the shape ids, as set with {@link GtfsConverter.Builder#setPrefix(String)}
+	 */
+	public static Map<String, List<Coord>> readShapes(GTFSFeed feed, CoordinateTransformation transform, String prefix) {
+		Map<String, List<Coord>> shapes = new HashMap<>();
+		// shape points are sorted by shape id and sequence
+		for (ShapePoint point : feed.shape_points.values()) {
+			shapes.computeIfAbsent(prefix + point.shape_id, k -> new ArrayList<>())
+					.add(transform.transform(new Coord(point.shape_pt_lon, point.shape_pt_lat)));
+		}
+		return shapes;
+	}
+
+	/**
+	 * Creates the network and sets the network route of all routes of the schedule.
+	 *
+	 * @return number of created links between stops
+	 */
+	public int run() {
+		long start = System.nanoTime();
+		List<TransitRoute> routes = new ArrayList<>();
+		Map<String, List<TransitRoute>> routesByShape = new LinkedHashMap<>();
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+				routes.add(route);
+				Object shapeId = route.getAttributes().getAttribute(GtfsConverter.SHAPE_ID);
+				List<Coord> shape = shapeId == null ? null : shapes.get(shapeId.toString());
+				if (shape != null && shape.size() > 1) {
+					routesByShape.computeIfAbsent(shapeId.toString(), k -> new ArrayList<>()).add(route);
+				}
+			}
+		}
+
+		Map<TransitRoute, double[]> lengths = snapShapes(routesByShape);
+
+		int sharedLinks = 0;
+		for (TransitRoute route : routes) {
+			sharedLinks += setNetworkRoute(route, lengths.get(route));
+		}
+		log.info("Created {} links for {} routes, {} of them following {} shapes. Links were shared {} times. Took {} ms", linkCounter,
+				routes.size(), lengths.size(), routesByShape.size(), sharedLinks, (System.nanoTime() - start) / 1_000_000);
+		return linkCounter;
+	}
+
+	/**
+	 * Computes the lengths between the stops of all routes with shape, in parallel per shape.
+	 */
+	private Map<TransitRoute, double[]> snapShapes(Map<String, List<TransitRoute>> routesByShape) {
+		List<Map.Entry<String, List<TransitRoute>>> entries = new ArrayList<>(routesByShape.entrySet());
+		List<List<double[]>> results = ParallelRunner.call(numberOfThreads, () -> entries.parallelStream()
+				.map(e -> {
+					ShapeIndex shape = new ShapeIndex(shapes.get(e.getKey()));
+					return e.getValue().stream().map(route -> shape.getLengthsBetweenStops(route.getStops(), snapRadius)).toList();
+				})
+				.toList());
+
+		Map<TransitRoute, double[]> lengths = new IdentityHashMap<>();
+		for (int i = 0; i < entries.size(); i++) {
+			List<TransitRoute> routes = entries.get(i).getValue();
+			for (int r = 0; r < routes.size(); r++) {
+				lengths.put(routes.get(r), results.get(i).get(r));
+			}
+		}
+		return lengths;
+	}
+
+	/**
+	 * @param lengths lengths between the stops, or null for straight links
+	 * @return number of reused links
+	 */
+	private int setNetworkRoute(TransitRoute route, double[] lengths) {
+		List<TransitRouteStop> stops = route.getStops();
+		if (stops.isEmpty()) {
+			return 0;
+		}
+		int reused = 0;
+		List<Id<Link>> linkIds = new ArrayList<>();
+		Link previousStopLink = getOrCreateStopLink(stops.get(0).getStopFacility());
+		linkIds.add(previousStopLink.getId());
+		for (int i = 1; i < stops.size(); i++) {
+			TransitRouteStop from = stops.get(i - 1);
+			TransitRouteStop to = stops.get(i);
+			Link stopLink = getOrCreateStopLink(to.getStopFacility());
+			double length = lengths == null ? CoordUtils.calcEuclideanDistance(from.getStopFacility().getCoord(), to.getStopFacility().getCoord())
+					: lengths[i - 1];
+			length = Math.max(MIN_LINK_LENGTH, length);
+
+			int linksBefore = linkCounter;
+			Link link = getOrCreateLink(from.getStopFacility(), previousStopLink.getToNode(), to.getStopFacility(), stopLink.getFromNode(), length);
+			if (linkCounter == linksBefore) reused++;
+
+			double travelTime = to.getArrivalOffset().orElse(to.getDepartureOffset().orElse(0))
+					- from.getDepartureOffset().orElse(from.getArrivalOffset().orElse(0));
+			link.setFreespeed(Math.max(link.getFreespeed(), link.getLength() / Math.max(1, travelTime)));
+
+			linkIds.add(link.getId());
+			linkIds.add(stopLink.getId());
+			previousStopLink = stopLink;
+		}
+		route.setRoute(RouteUtils.createNetworkRoute(linkIds));
+		return reused;
+	}
+
+	/**
+	 * Each facility gets a short link from an entry node to the stop node, so it has the same link for all approaches.
+	 */
+	private Link getOrCreateStopLink(TransitStopFacility facility) {
+		Id<Link> linkId = Id.createLinkId(prefix + facility.getId());
+		Link link = network.getLinks().get(linkId);
+		if (link == null) {
+			Node entry = NetworkUtils.createAndAddNode(network, Id.createNodeId(prefix + facility.getId() + "_entry"), facility.getCoord());
+			Node stop = NetworkUtils.createAndAddNode(network, Id.createNodeId(prefix + facility.getId()), facility.getCoord());
+			link = NetworkUtils.createAndAddLink(network, linkId, entry, stop, MIN_LINK_LENGTH, STOP_LINK_FREESPEED, 100000, 1);
+			link.setAllowedModes(Set.of(TransportMode.pt));
+			facility.setLinkId(linkId);
+		}
+		return link;
+	}
+
+	private Link getOrCreateLink(TransitStopFacility from, Node fromNode, TransitStopFacility to, Node toNode, double length) {
+		List<Link> candidates = linksByStopPair.computeIfAbsent(new StopPair(from.getId(), to.getId()), k -> new ArrayList<>());
+		for (Link link : candidates) {
+			if (Math.abs(link.getLength() - length) <= Math.max(MIN_LINK_LENGTH, LENGTH_TOLERANCE * length)) {
+				return link;
+			}
+		}
+		Link link = NetworkUtils.createAndAddLink(network, Id.createLinkId(prefix + "shape_" + linkCounter), fromNode, toNode, length,
+				MIN_LINK_FREESPEED, 100000, 1);
+		link.setAllowedModes(Set.of(TransportMode.pt));
+		linkCounter++;
+		candidates.add(link);
+		return link;
+	}
+
+	private record StopPair(Id<TransitStopFacility> from, Id<TransitStopFacility> to) {
+	}
+
+	/**
+	 * Points of one shape with their distance along the shape and a spatial index of the points.
+	 */
+	static final class ShapeIndex {
+		private final Coord[] points;
+		private final double[] distances;
+		private final QuadTree<Integer> index;
+
+		ShapeIndex(List<Coord> shape) {
+			this.points = shape.toArray(new Coord[0]);
+			this.distances = new double[points.length];
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < points.length; i++) {
+				if (i > 0) {
+					distances[i] = distances[i - 1] + CoordUtils.calcEuclideanDistance(points[i - 1], points[i]);
+				}
+				minX = Math.min(minX, points[i].getX());
+				minY = Math.min(minY, points[i].getY());
+				maxX = Math.max(maxX, points[i].getX());
+				maxY = Math.max(maxY, points[i].getY());
+			}
+			this.index = new QuadTree<>(minX - 1, minY - 1, maxX + 1, maxY + 1);
+			for (int i = 0; i < points.length; i++) {
+				index.put(points[i].getX(), points[i].getY(), i);
+			}
+		}
+
+		/**
+		 * Snaps the stops in order to the shape. Each stop is snapped to the nearest point within the snap radius which is not
+		 * before the point of the previous stop, or to the nearest following point if there is none in the radius.
+		 *
+		 * @return lengths along the shape between consecutive stops, at least their beeline distance
+		 */
+		double[] getLengthsBetweenStops(List<TransitRouteStop> stops, double snapRadius) {
+			double[] lengths = new double[Math.max(0, stops.size() - 1)];
+			int previous = 0;
+			for (int i = 0; i < stops.size(); i++) {
+				Coord coord = stops.get(i).getStopFacility().getCoord();
+				int snapped = snap(coord, previous, snapRadius);
+				if (i > 0) {
+					Coord previousCoord = stops.get(i - 1).getStopFacility().getCoord();
+					lengths[i - 1] = Math.max(CoordUtils.calcEuclideanDistance(previousCoord, coord), distances[snapped] - distances[previous]);
+				}
+				previous = snapped;
+			}
+			return lengths;
+		}
+
+		private int snap(Coord coord, int from, double snapRadius) {
+			int best = -1;
+			double bestDistance = Double.POSITIVE_INFINITY;
+			for (int i : index.getDisk(coord.getX(), coord.getY(), snapRadius)) {
+				double distance = CoordUtils.calcEuclideanDistance(coord, points[i]);
+				if (i >= from && (distance < bestDistance || distance == bestDistance && i < best)) {
+					best = i;
+					bestDistance = distance;
+				}
+			}
+			if (best >= 0) {
+				return best;
+			}
+			for (int i = from; i < points.length; i++) {
+				double distance = CoordUtils.calcEuclideanDistance(coord, points[i]);
+				if (distance < bestDistance) {
+					best = i;
+					bestDistance = distance;
+				}
+			}
+			return best;
+		}
+	}
+}
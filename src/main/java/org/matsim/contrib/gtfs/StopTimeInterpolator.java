@@ -0,0 +1,254 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.Arrays;
+
+/**
+ * Fills in missing stop times of a trip, replacing gtfs-lib's interpolation which creates new StopTime objects for every trip.
+ * The stop times of one trip are added one by one, then {@link #interpolate(String)} is called and the results are read by index.
+ * All data is kept in primitive arrays which are reused for the next trip and only grow, so no objects are created per trip.
+ * <p>
+ * Times of stops without times are interpolated linearly by distance between the surrounding stops with times. The distance is
+ * taken from shape_dist_traveled if all stops of the trip have it, otherwise from the stop coordinates, and if those are missing
+ * as well the stops are assumed to be equally spaced. Trips whose first or last stop has no time or whose times decrease are
+ * handled according to the {@link GtfsConverter.BadTripPolicy}. The default policy fail only rejects trips without first or
+ * last time and keeps decreasing times, like gtfs-lib's interpolation did.
+ * <p>
+ * Not thread-safe, each converter uses its own instance.
+ */
+final class StopTimeInterpolator {
+
+	/** marker of a missing time, as used by gtfs-lib */
+	static final int MISSING = Integer.MIN_VALUE;
+
+	private static final double METERS_PER_DEGREE = 111_320.0;
+
+	private final GtfsConverter.BadTripPolicy policy;
+
+	private int size = 0;
+	private String[] stopIds = new String[16];
+	private int[] arrivals = new int[16];
+	private int[] departures = new int[16];
+	private double[] shapeDistances = new double[16];
+	private double[] lats = new double[16];
+	private double[] lons = new double[16];
+	private double[] distances = new double[16];
+
+	private int repairedTrips = 0;
+	private int droppedTrips = 0;
+
+	StopTimeInterpolator(GtfsConverter.BadTripPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Starts a new trip.
+	 */
+	void clear() {
+		Arrays.fill(stopIds, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * Adds the next stop of the trip.
+	 *
+	 * @param arrival           arrival time in seconds or {@link #MISSING}
+	 * @param departure         departure time in seconds or {@link #MISSING}
+	 * @param shapeDistTraveled distance along the shape or NaN
+	 * @param lat               latitude of the stop or NaN
+	 * @param lon               longitude of the stop or NaN
+	 */
+	void add(String stopId, int arrival, int departure, double shapeDistTraveled, double lat, double lon) {
+		if (size == arrivals.length) {
+			grow();
+		}
+		stopIds[size] = stopId;
+		arrivals[size] = arrival;
+		departures[size] = departure;
+		shapeDistances[size] = shapeDistTraveled;
+		lats[size] = lat;
+		lons[size] = lon;
+		size++;
+	}
+
+	/**
+	 * Interpolates the missing times of the added stops.
+	 *
+	 * @param tripId used in error messages
+	 * @return whether the trip should be converted, false if it has to be dropped
+	 * @throws IllegalArgumentException if the trip has no time at its first or last stop and the policy is
+	 *                                  {@link GtfsConverter.BadTripPolicy#fail}
+	 */
+	boolean interpolate(String tripId) {
+		boolean timed = false;
+		for (int i = 0; i < size; i++) {
+			if (arrivals[i] == MISSING) arrivals[i] = departures[i];
+			if (departures[i] == MISSING) departures[i] = arrivals[i];
+			timed |= arrivals[i] != MISSING;
+		}
+		if (!timed) {
+			return handleBadTrip(tripId, "has no stop times", false);
+		}
+
+		boolean repaired = false;
+		if (arrivals[0] == MISSING || arrivals[size - 1] == MISSING) {
+			if (!handleBadTrip(tripId, "has no times at its first or last stop", true)) {
+				return false;
+			}
+			repairFirstAndLast();
+			repaired = true;
+		}
+
+		// as with gtfs-lib's interpolation, fail keeps decreasing times as they are
+		int previous = MISSING;
+		for (int i = 0; i < size && policy != GtfsConverter.BadTripPolicy.fail; i++) {
+			if (arrivals[i] == MISSING) continue;
+			if (arrivals[i] < previous || departures[i] < arrivals[i]) {
+				if (!repaired && !handleBadTrip(tripId, "has decreasing stop times at stop " + stopIds[i], true)) {
+					return false;
+				}
+				repaired = true;
+				arrivals[i] = Math.max(arrivals[i], previous);
+				departures[i] = Math.max(departures[i], arrivals[i]);
+			}
+			previous = departures[i];
+		}
+		if (repaired) {
+			repairedTrips++;
+		}
+
+		computeDistances();
+		int lastTimed = 0;
+		for (int i = 1; i < size; i++) {
+			if (arrivals[i] == MISSING) continue;
+			for (int k = lastTimed + 1; k < i; k++) {
+				double share = getShare(lastTimed, k, i);
+				int time = departures[lastTimed] + (int) Math.round((arrivals[i] - departures[lastTimed]) * share);
+				arrivals[k] = time;
+				departures[k] = time;
+			}
+			lastTimed = i;
+		}
+		return true;
+	}
+
+	int size() {
+		return size;
+	}
+
+	String getStopId(int i) {
+		return stopIds[i];
+	}
+
+	int getArrival(int i) {
+		return arrivals[i];
+	}
+
+	int getDeparture(int i) {
+		return departures[i];
+	}
+
+	int getRepairedTrips() {
+		return repairedTrips;
+	}
+
+	int getDroppedTrips() {
+		return droppedTrips;
+	}
+
+	/**
+	 * @param repairable whether the trip can be repaired with the repair policy
+	 * @return whether the trip should be repaired, false if it has to be dropped
+	 */
+	private boolean handleBadTrip(String tripId, String problem, boolean repairable) {
+		if (policy == GtfsConverter.BadTripPolicy.fail) {
+			throw new IllegalArgumentException("GTFS trip " + tripId + " " + problem);
+		}
+		if (policy == GtfsConverter.BadTripPolicy.repair && repairable) {
+			return true;
+		}
+		droppedTrips++;
+		return false;
+	}
+
+	/**
+	 * Lets the vehicle wait at the first or last stop with a time, as the trip can not be extrapolated.
+	 */
+	private void repairFirstAndLast() {
+		if (arrivals[0] == MISSING) {
+			int first = 0;
+			while (arrivals[first] == MISSING) first++;
+			arrivals[0] = arrivals[first];
+			departures[0] = arrivals[first];
+		}
+		if (arrivals[size - 1] == MISSING) {
+			int last = size - 1;
+			while (arrivals[last] == MISSING) last--;
+			arrivals[size - 1] = departures[last];
+			departures[size - 1] = departures[last];
+		}
+	}
+
+	private void computeDistances() {
+		boolean useShape = true;
+		boolean useCoords = true;
+		for (int i = 0; i < size; i++) {
+			useShape &= !Double.isNaN(shapeDistances[i]) && (i == 0 || shapeDistances[i] >= shapeDistances[i - 1]);
+			useCoords &= !Double.isNaN(lats[i]) && !Double.isNaN(lons[i]);
+		}
+
+		distances[0] = useShape ? shapeDistances[0] : 0;
+		for (int i = 1; i < size; i++) {
+			if (useShape) {
+				distances[i] = shapeDistances[i];
+			} else if (useCoords) {
+				// equirectangular approximation, only the ratio of distances matters
+				double dx = (lons[i] - lons[i - 1]) * Math.cos(Math.toRadians((lats[i] + lats[i - 1]) / 2));
+				double dy = lats[i] - lats[i - 1];
+				distances[i] = distances[i - 1] + Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE;
+			} else {
+				distances[i] = i;
+			}
+		}
+	}
+
+	/**
+	 * Share of the way from stop from to stop to at which stop k is, by distance or by index if all three are at the same place.
+	 */
+	private double getShare(int from, int k, int to) {
+		double total = distances[to] - distances[from];
+		if (total > 0) {
+			return (distances[k] - distances[from]) / total;
+		}
+		return (double) (k - from) / (to - from);
+	}
+
+	private void grow() {
+		int capacity = arrivals.length * 2;
+		stopIds = Arrays.copyOf(stopIds, capacity);
+		arrivals = Arrays.copyOf(arrivals, capacity);
+		departures = Arrays.copyOf(departures, capacity);
+		shapeDistances = Arrays.copyOf(shapeDistances, capacity);
+		lats = Arrays.copyOf(lats, capacity);
+		lons = Arrays.copyOf(lons, capacity);
+		distances = Arrays.copyOf(distances, capacity);
+	}
+}
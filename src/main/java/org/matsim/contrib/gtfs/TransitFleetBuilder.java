@@ -0,0 +1,169 @@
+package org.matsim.contrib.gtfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates transit vehicles which are shared by consecutive departures of a line, as an alternative to
+ * {@link org.matsim.pt.utils.CreateVehiclesForSchedule}, which creates one vehicle per departure.
+ * <p>
+ * Departures are assigned with a time sweep per line: a departure is served by a vehicle waiting at its first
+ * stop (matched by stop name), otherwise a new vehicle is created. Vehicles carry over midnight and across days,
+ * see {@link CreateVehicleCirculation#computeMultiDayBlocking(TransitLine, int, boolean)}. There is one vehicle
+ * type per simple {@link RouteType}, taken from the gtfs_route_type attribute of the line.
+ */
+public final class TransitFleetBuilder {
+
+	private static final Logger log = LogManager.getLogger(TransitFleetBuilder.class);
+
+	/**
+	 * Rough sizes of typical vehicles, by simple route type.
+	 */
+	private static final Map<String, Dimensions> DIMENSIONS = Map.of(
+			RouteType.TRAM.getTypeName(), new Dimensions(70, 110, 36, 3),
+			RouteType.SUBWAY.getTypeName(), new Dimensions(200, 500, 100, 5),
+			RouteType.RAIL.getTypeName(), new Dimensions(400, 400, 150, 7),
+			RouteType.BUS.getTypeName(), new Dimensions(40, 50, 18, 2.8),
+			RouteType.FERRY.getTypeName(), new Dimensions(250, 0, 40, 5),
+			RouteType.CABLE_CAR.getTypeName(), new Dimensions(30, 30, 10, 1),
+			RouteType.GONDOLA.getTypeName(), new Dimensions(8, 0, 4, 1),
+			RouteType.FUNICULAR.getTypeName(), new Dimensions(50, 100, 20, 1),
+			RouteType.SUBURBAN_RAILWAY.getTypeName(), new Dimensions(300, 700, 150, 7));
+
+	private final TransitSchedule schedule;
+	private final Vehicles vehicles;
+	private final Network network;
+	private final int minTimeToWaitAtEndstop;
+	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * @param schedule               schedule whose departures get vehicles
+	 * @param vehicles               container for the created vehicles and vehicle types
+	 * @param network                network of the schedule, gets links between end and start stops where needed.
+	 *                               May be null if vehicles should not be connected.
+	 * @param minTimeToWaitAtEndstop minimal time in seconds between arrival at the end stop and the next departure
+	 */
+	public TransitFleetBuilder(TransitSchedule schedule, Vehicles vehicles, Network network, int minTimeToWaitAtEndstop) {
+		this.schedule = schedule;
+		this.vehicles = vehicles;
+		this.network = network;
+		this.minTimeToWaitAtEndstop = minTimeToWaitAtEndstop;
+	}
+
+	public TransitFleetBuilder setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+		return this;
+	}
+
+	/**
+	 * Assigns vehicles to all departures and adds them to the vehicles container.
+	 *
+	 * @return number of created vehicles
+	 */
+	public int run() {
+		List<TransitLine> lines = new ArrayList<>(schedule.getTransitLines().values());
+		List<CreateVehicleCirculation.Blocking> blockings = CreateVehicleCirculation.computeBlockings(lines, numberOfThreads,
+				line -> CreateVehicleCirculation.computeMultiDayBlocking(line, minTimeToWaitAtEndstop, false));
+
+		CreateVehicleCirculation.DeadheadLinks deadheadLinks = network == null ? null :
+				new CreateVehicleCirculation.DeadheadLinks(network, CreateVehicleCirculation.DEFAULT_DEADHEAD_SPEED);
+
+		int departures = 0;
+		int created = 0;
+		for (int l = 0; l < lines.size(); l++) {
+			TransitLine line = lines.get(l);
+			CreateVehicleCirculation.Blocking blocking = blockings.get(l);
+			VehicleType type = getOrCreateVehicleType(getSimpleRouteType(line));
+			created += assignVehicles(line, blocking, type, deadheadLinks);
+			departures += blocking.sortedDepartures().size();
+		}
+
+		log.info("Created {} shared vehicles for {} departures", created, departures);
+		return created;
+	}
+
+	private int assignVehicles(TransitLine line, CreateVehicleCirculation.Blocking blocking, VehicleType type,
+							   CreateVehicleCirculation.DeadheadLinks deadheadLinks) {
+		Departure[] departures = blocking.sortedDepartures().departures;
+		int[] successors = blocking.successors();
+		boolean[] hasPredecessor = new boolean[departures.length];
+		for (int successor : successors) {
+			if (successor >= 0)
+				hasPredecessor[successor] = true;
+		}
+
+		int created = 0;
+		for (int i = 0; i < departures.length; i++) {
+			if (!hasPredecessor[i]) {
+				Vehicle vehicle = VehicleUtils.getFactory().createVehicle(Id.createVehicleId("pt_" + line.getId() + "_" + created), type);
+				vehicles.addVehicle(vehicle);
+				departures[i].setVehicleId(vehicle.getId());
+				created++;
+			}
+
+			if (successors[i] < 0)
+				continue;
+
+			Departure next = departures[successors[i]];
+			next.setVehicleId(departures[i].getVehicleId());
+
+			if (deadheadLinks != null) {
+				TransitRouteStop endStop = blocking.departureIndex().get(departures[i]).lastStop();
+				TransitRouteStop startStop = blocking.departureIndex().get(next).firstStop();
+				if (!endStop.getStopFacility().getId().equals(startStop.getStopFacility().getId())) {
+					CreateVehicleCirculation.addLinkBetweenEndAndStart(deadheadLinks, startStop, endStop);
+				}
+			}
+		}
+		return created;
+	}
+
+	static String getSimpleRouteType(TransitLine line) {
+		Object routeType = line.getAttributes().getAttribute("gtfs_route_type");
+		if (routeType != null) {
+			RouteType type = RouteType.getRouteType(Integer.parseInt(routeType.toString()));
+			if (type != null)
+				return type.getSimpleTypeName();
+		}
+		// lines not converted from gtfs
+		return line.getRoutes().values().stream().findFirst()
+				.map(TransitRoute::getTransportMode)
+				.orElse(RouteType.BUS.getTypeName());
+	}
+
+	private VehicleType getOrCreateVehicleType(String simpleRouteType) {
+		Id<VehicleType> id = Id.create("pt_" + simpleRouteType, VehicleType.class);
+		VehicleType type = vehicles.getVehicleTypes().get(id);
+		if (type != null)
+			return type;
+
+		Dimensions d = DIMENSIONS.getOrDefault(simpleRouteType, DIMENSIONS.get(RouteType.BUS.getTypeName()));
+		type = VehicleUtils.createVehicleType(id);
+		type.getCapacity().setSeats(d.seats);
+		type.getCapacity().setStandingRoom(d.standingRoom);
+		type.setLength(d.length);
+		type.setPcuEquivalents(d.pcuEquivalents);
+		VehicleUtils.setAccessTime(type, 1.0);
+		VehicleUtils.setEgressTime(type, 1.0);
+		vehicles.addVehicleType(type);
+		return type;
+	}
+
+	private record Dimensions(int seats, int standingRoom, double length, double pcuEquivalents) {
+	}
+}
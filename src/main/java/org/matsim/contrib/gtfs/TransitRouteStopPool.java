@@ -0,0 +1,94 @@
+package org.matsim.contrib.gtfs;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.utils.misc.OptionalTime;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of canonical {@link TransitRouteStop} instances.
+ * <p>
+ * Route stops with the same facility, offsets, flags and previous facility on the route are only kept once and shared
+ * between all routes (and lines) that serve them. This is common for branching lines and if several converters write
+ * into the same schedule, therefore one pool can be handed to multiple {@link GtfsConverter}s via
+ * {@link GtfsConverter.Builder#setRouteStopPool(TransitRouteStopPool)}.
+ * <p>
+ * Shared route stops must not be modified after they have been pooled, otherwise all routes using them change.
+ * {@link org.matsim.pt.utils.CreatePseudoNetwork} replaces the facility of a route stop by a copy per approach link, i.e. per
+ * previous facility. As this is part of the key, all routes sharing a route stop get the same copy and stay consistent.
+ */
+public final class TransitRouteStopPool {
+
+	/**
+	 * Rough heap size of one route stop instance including its offsets, used for the memory report only.
+	 */
+	private static final long ESTIMATED_BYTES_PER_ROUTE_STOP = 56;
+
+	private final Map<RouteStopKey, TransitRouteStop> routeStops = new HashMap<>();
+
+	private long requestedRouteStops = 0;
+	private long requestedSequences = 0;
+
+	/**
+	 * Returns a new list with the canonical instance of each route stop of the sequence. The list itself is not shared,
+	 * as each route keeps its own list of stops anyway.
+	 */
+	public synchronized List<TransitRouteStop> intern(List<TransitRouteStop> stops) {
+		requestedSequences++;
+		List<TransitRouteStop> canonicalStops = new ArrayList<>(stops.size());
+		TransitStopFacility previous = null;
+		for (TransitRouteStop stop : stops) {
+			requestedRouteStops++;
+			canonicalStops.add(routeStops.computeIfAbsent(RouteStopKey.of(previous, stop), k -> stop));
+			previous = stop.getStopFacility();
+		}
+		return canonicalStops;
+	}
+
+	public long getRequestedRouteStops() {
+		return requestedRouteStops;
+	}
+
+	public int getDistinctRouteStops() {
+		return routeStops.size();
+	}
+
+	public long getRequestedSequences() {
+		return requestedSequences;
+	}
+
+	/**
+	 * Rough estimate of the heap that is saved by sharing route stops instead of creating one instance per route.
+	 */
+	public long getEstimatedSavedBytes() {
+		return (requestedRouteStops - routeStops.size()) * ESTIMATED_BYTES_PER_ROUTE_STOP;
+	}
+
+	/**
+	 * Human readable summary of the pool, e.g. for logging after the conversion.
+	 */
+	public String getReport() {
+		return String.format("Route stop pool: %d of %d route stops in %d stop sequences are distinct, ca. %.1f MB saved",
+				getDistinctRouteStops(), requestedRouteStops, requestedSequences,
+				getEstimatedSavedBytes() / (1024.0 * 1024.0));
+	}
+
+	private record RouteStopKey(Id<TransitStopFacility> previousFacility, Id<TransitStopFacility> facility, double arrivalOffset,
+								double departureOffset, boolean awaitDepartureTime, boolean allowBoarding, boolean allowAlighting) {
+
+		static RouteStopKey of(TransitStopFacility previous, TransitRouteStop stop) {
+			return new RouteStopKey(previous == null ? null : previous.getId(), stop.getStopFacility().getId(),
+					secondsOrNaN(stop.getArrivalOffset()), secondsOrNaN(stop.getDepartureOffset()), stop.isAwaitDepartureTime(),
+					stop.isAllowBoarding(), stop.isAllowAlighting());
+		}
+
+		private static double secondsOrNaN(OptionalTime time) {
+			return time.isDefined() ? time.seconds() : Double.NaN;
+		}
+	}
+}
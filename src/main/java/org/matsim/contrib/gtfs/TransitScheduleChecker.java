@@ -0,0 +1,236 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import it.unimi.dsi.fastutil.doubles.DoubleOpenHashSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+/**
+ * Checks the consistency of a converted schedule, with all lines checked in parallel. Unlike
+ * {@link org.matsim.pt.utils.TransitScheduleValidator} it does not check network routes for connectivity, but the data which
+ * typically breaks with faulty feeds: offsets, speeds between stops, references to facilities and links, empty routes and
+ * duplicate departures. The result is a {@link Report} listing all issues in the order of the lines.
+ * <p>
+ * Speeds are computed from the beeline distance between stop coordinates, so the schedule must be in a metric coordinate system.
+ */
+public final class TransitScheduleChecker {
+
+	private static final Logger log = LogManager.getLogger(TransitScheduleChecker.class);
+
+	/**
+	 * Many feeds only have times in minutes, so stops served within the same minute are assumed to be one minute apart.
+	 */
+	private static final double MIN_TRAVEL_TIME = 60;
+
+	/**
+	 * Maximal plausible beeline speed in m/s between two stops, by simple route type.
+	 */
+	private static final Map<String, Double> MAX_SPEED = Map.of(
+			RouteType.TRAM.getTypeName(), 25.0,
+			RouteType.SUBWAY.getTypeName(), 30.0,
+			RouteType.RAIL.getTypeName(), 100.0,
+			RouteType.BUS.getTypeName(), 35.0,
+			RouteType.FERRY.getTypeName(), 20.0,
+			RouteType.CABLE_CAR.getTypeName(), 10.0,
+			RouteType.GONDOLA.getTypeName(), 15.0,
+			RouteType.FUNICULAR.getTypeName(), 15.0,
+			RouteType.SUBURBAN_RAILWAY.getTypeName(), 45.0);
+
+	private static final double DEFAULT_MAX_SPEED = 100.0;
+
+	public enum IssueType {
+		/** route with less than two stops or without departures */
+		EMPTY_ROUTE,
+		/** stop facility not in the schedule, or link of a facility or route not in the network */
+		DANGLING_REFERENCE,
+		/** offsets decrease along the route, or departure before arrival at a stop */
+		NON_MONOTONIC_OFFSETS,
+		/** beeline speed between two stops above the maximum of the route type */
+		UNREALISTIC_SPEED,
+		/** several departures of a route at the same time */
+		DUPLICATE_DEPARTURE
+	}
+
+	public record Issue(IssueType type, Id<TransitLine> line, Id<TransitRoute> route, String message) {
+		@Override
+		public String toString() {
+			return type + " on line " + line + ", route " + route + ": " + message;
+		}
+	}
+
+	public record Report(List<Issue> issues, int lines, int routes) {
+
+		public boolean isValid() {
+			return issues.isEmpty();
+		}
+
+		public Map<IssueType, Integer> countByType() {
+			Map<IssueType, Integer> counts = new EnumMap<>(IssueType.class);
+			for (Issue issue : issues) {
+				counts.merge(issue.type(), 1, Integer::sum);
+			}
+			return counts;
+		}
+
+		/**
+		 * Fails on the first problems found, e.g. to stop a conversion pipeline early.
+		 *
+		 * @throws IllegalStateException if there are issues, listing the counts by type and the first issue
+		 */
+		public void throwIfInvalid() {
+			if (!isValid()) {
+				throw new IllegalStateException("Transit schedule is invalid: " + countByType() + ", first issue: " + issues.get(0));
+			}
+		}
+	}
+
+	private final Network network;
+	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * @param network network of the schedule to check link references against, may be null if links should not be checked
+	 */
+	public TransitScheduleChecker(Network network) {
+		this.network = network;
+	}
+
+	public TransitScheduleChecker setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = ParallelRunner.checkNumberOfThreads(numberOfThreads);
+		return this;
+	}
+
+	public Report check(TransitSchedule schedule) {
+		long start = System.nanoTime();
+		List<TransitLine> lines = new ArrayList<>(schedule.getTransitLines().values());
+		List<List<Issue>> issuesByLine = ParallelRunner.call(numberOfThreads, () -> lines.parallelStream()
+				.map(line -> checkLine(schedule, line))
+				.toList());
+
+		List<Issue> issues = new ArrayList<>();
+		issuesByLine.forEach(issues::addAll);
+		int routes = lines.stream().mapToInt(line -> line.getRoutes().size()).sum();
+		Report report = new Report(issues, lines.size(), routes);
+		log.info("Checked {} lines with {} routes on {} threads in {} ms, found {} issues {}", lines.size(), routes, numberOfThreads,
+				(System.nanoTime() - start) / 1_000_000, issues.size(), report.countByType());
+		return report;
+	}
+
+	private List<Issue> checkLine(TransitSchedule schedule, TransitLine line) {
+		List<Issue> issues = new ArrayList<>();
+		double maxSpeed = MAX_SPEED.getOrDefault(TransitFleetBuilder.getSimpleRouteType(line), DEFAULT_MAX_SPEED);
+		for (TransitRoute route : line.getRoutes().values()) {
+			IssueCollector collector = new IssueCollector(issues, line.getId(), route.getId());
+			if (route.getStops().size() < 2) {
+				collector.add(IssueType.EMPTY_ROUTE, route.getStops().size() + " stops");
+			}
+			if (route.getDepartures().isEmpty()) {
+				collector.add(IssueType.EMPTY_ROUTE, "no departures");
+			}
+			checkReferences(schedule, route, collector);
+			checkOffsetsAndSpeeds(route, maxSpeed, collector);
+			checkDuplicateDepartures(route, collector);
+		}
+		return issues;
+	}
+
+	private void checkReferences(TransitSchedule schedule, TransitRoute route, IssueCollector collector) {
+		for (TransitRouteStop stop : route.getStops()) {
+			TransitStopFacility facility = stop.getStopFacility();
+			if (facility == null) {
+				collector.add(IssueType.DANGLING_REFERENCE, "route stop without facility");
+			} else if (schedule.getFacilities().get(facility.getId()) != facility) {
+				collector.add(IssueType.DANGLING_REFERENCE, "facility " + facility.getId() + " is not in the schedule");
+			} else if (network != null && facility.getLinkId() != null && !network.getLinks().containsKey(facility.getLinkId())) {
+				collector.add(IssueType.DANGLING_REFERENCE, "link " + facility.getLinkId() + " of facility " + facility.getId() + " is not in the network");
+			}
+		}
+		if (network != null && route.getRoute() != null) {
+			for (Id<Link> linkId : route.getRoute().getLinkIds()) {
+				if (!network.getLinks().containsKey(linkId)) {
+					collector.add(IssueType.DANGLING_REFERENCE, "link " + linkId + " of the network route is not in the network");
+				}
+			}
+		}
+	}
+
+	private static void checkOffsetsAndSpeeds(TransitRoute route, double maxSpeed, IssueCollector collector) {
+		List<TransitRouteStop> stops = route.getStops();
+		TransitRouteStop previous = null;
+		double previousDeparture = Double.NEGATIVE_INFINITY;
+		for (TransitRouteStop stop : stops) {
+			double arrival = stop.getArrivalOffset().orElse(stop.getDepartureOffset().orElse(Double.NaN));
+			double departure = stop.getDepartureOffset().orElse(arrival);
+			if (Double.isNaN(arrival)) {
+				collector.add(IssueType.NON_MONOTONIC_OFFSETS, "stop " + getFacilityId(stop) + " has no offsets");
+				continue;
+			}
+			if (departure < arrival) {
+				collector.add(IssueType.NON_MONOTONIC_OFFSETS, "departure before arrival at stop " + getFacilityId(stop));
+			}
+			if (arrival < previousDeparture) {
+				collector.add(IssueType.NON_MONOTONIC_OFFSETS, "arrival at stop " + getFacilityId(stop) + " before departure at the previous stop");
+			} else if (previous != null && previous.getStopFacility() != null && stop.getStopFacility() != null) {
+				double distance = CoordUtils.calcEuclideanDistance(previous.getStopFacility().getCoord(), stop.getStopFacility().getCoord());
+				double speed = distance / Math.max(MIN_TRAVEL_TIME, arrival - previousDeparture);
+				if (speed > maxSpeed) {
+					collector.add(IssueType.UNREALISTIC_SPEED, String.format("%.1f m/s between stops %s and %s",
+							speed, getFacilityId(previous), getFacilityId(stop)));
+				}
+			}
+			previous = stop;
+			previousDeparture = departure;
+		}
+	}
+
+	private static void checkDuplicateDepartures(TransitRoute route, IssueCollector collector) {
+		DoubleOpenHashSet times = new DoubleOpenHashSet(route.getDepartures().size());
+		for (Departure departure : route.getDepartures().values()) {
+			if (!times.add(departure.getDepartureTime())) {
+				collector.add(IssueType.DUPLICATE_DEPARTURE, "departure " + departure.getId() + " at " + departure.getDepartureTime());
+			}
+		}
+	}
+
+	private static Id<TransitStopFacility> getFacilityId(TransitRouteStop stop) {
+		return stop.getStopFacility() == null ? null : stop.getStopFacility().getId();
+	}
+
+	private record IssueCollector(List<Issue> issues, Id<TransitLine> line, Id<TransitRoute> route) {
+		void add(IssueType type, String message) {
+			issues.add(new Issue(type, line, route, message));
+		}
+	}
+}
@@ -0,0 +1,569 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.core.utils.misc.OptionalTime;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+/**
+ * Precomputed routing data of a schedule in a compact binary file, so routers need not rebuild it from the
+ * {@link TransitSchedule} at every start. The file is written with {@link #write} and memory-mapped by {@link #load}, the arrays
+ * are read directly from the mapped file and ids are only decoded when requested, so loading is bound by I/O.
+ * <p>
+ * The layout follows the arrays a Raptor router works on, as compressed rows indexed by stop, route and stop area:
+ * <ul>
+ *     <li>stops with coordinates and stop area, and the route stops serving each stop</li>
+ *     <li>routes with their route stops (stop and offsets in seconds) and their departures sorted by time</li>
+ *     <li>transfers to all stops within the transfer distance, with their beeline distance</li>
+ *     <li>the stops of each stop area</li>
+ * </ul>
+ * Times are stored in whole seconds, undefined offsets as {@link #UNDEFINED}. The file starts with {@link #MAGIC} and
+ * {@link #VERSION}, files of other versions are rejected. Mapped files are limited to 2 GB.
+ * <p>
+ * A loaded index is read-only and can be shared between threads.
+ */
+public final class TransitScheduleIndex {
+
+	private static final Logger log = LogManager.getLogger(TransitScheduleIndex.class);
+
+	public static final int MAGIC = 0x4D545349;
+	public static final int VERSION = 1;
+	/** marker of an undefined arrival or departure offset */
+	public static final int UNDEFINED = Integer.MIN_VALUE;
+
+	private static final int HEADER_INTS = 12;
+
+	private final Layout layout;
+	private final DoubleBuffer stopX;
+	private final DoubleBuffer stopY;
+	private final IntBuffer stopArea;
+	private final IntBuffer stopRouteStopStart;
+	private final IntBuffer stopRouteStops;
+	private final IntBuffer routeStopStart;
+	private final IntBuffer departureStart;
+	private final IntBuffer routeStopStop;
+	private final IntBuffer routeStopArrival;
+	private final IntBuffer routeStopDeparture;
+	private final IntBuffer departureTime;
+	private final IntBuffer transferStart;
+	private final IntBuffer transferStop;
+	private final FloatBuffer transferDistance;
+	private final IntBuffer areaStopStart;
+	private final IntBuffer areaStops;
+	private final IntBuffer stringStart;
+	private final ByteBuffer strings;
+
+	private volatile Map<String, Integer> stopIndexById;
+
+	private TransitScheduleIndex(ByteBuffer buffer, Layout layout) {
+		this.layout = layout;
+		List<ByteBuffer> sections = layout.slice(buffer);
+		this.stopX = sections.get(0).asDoubleBuffer();
+		this.stopY = sections.get(1).asDoubleBuffer();
+		this.stopArea = sections.get(2).asIntBuffer();
+		this.stopRouteStopStart = sections.get(3).asIntBuffer();
+		this.stopRouteStops = sections.get(4).asIntBuffer();
+		this.routeStopStart = sections.get(5).asIntBuffer();
+		this.departureStart = sections.get(6).asIntBuffer();
+		this.routeStopStop = sections.get(7).asIntBuffer();
+		this.routeStopArrival = sections.get(8).asIntBuffer();
+		this.routeStopDeparture = sections.get(9).asIntBuffer();
+		this.departureTime = sections.get(10).asIntBuffer();
+		this.transferStart = sections.get(11).asIntBuffer();
+		this.transferStop = sections.get(12).asIntBuffer();
+		this.transferDistance = sections.get(13).asFloatBuffer();
+		this.areaStopStart = sections.get(14).asIntBuffer();
+		this.areaStops = sections.get(15).asIntBuffer();
+		this.stringStart = sections.get(16).asIntBuffer();
+		this.strings = sections.get(17);
+	}
+
+	/**
+	 * File of the index of a schedule file, next to it.
+	 */
+	public static Path getIndexFile(String scheduleFile) {
+		return Path.of(scheduleFile.replaceFirst("\\.xml(\\.gz)?$", "") + ".raptor.idx");
+	}
+
+	/**
+	 * Writes the index of a schedule, with the transfers computed in parallel.
+	 *
+	 * @param maxTransferDistance maximal beeline distance between stops with a transfer, in the unit of the coordinates
+	 */
+	public static void write(TransitSchedule schedule, Path file, double maxTransferDistance) {
+		write(schedule, file, maxTransferDistance, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static void write(TransitSchedule schedule, Path file, double maxTransferDistance, int numberOfThreads) {
+		ParallelRunner.checkNumberOfThreads(numberOfThreads);
+		long start = System.nanoTime();
+
+		List<TransitStopFacility> stops = new ArrayList<>(schedule.getFacilities().values());
+		Map<Id<TransitStopFacility>, Integer> stopIndex = new HashMap<>();
+		Map<String, Integer> areaIndex = new LinkedHashMap<>();
+		int[] stopArea = new int[stops.size()];
+		for (int i = 0; i < stops.size(); i++) {
+			TransitStopFacility stop = stops.get(i);
+			stopIndex.put(stop.getId(), i);
+			stopArea[i] = stop.getStopAreaId() == null ? -1
+					: areaIndex.computeIfAbsent(stop.getStopAreaId().toString(), k -> areaIndex.size());
+		}
+
+		List<TransitLine> lines = new ArrayList<>();
+		List<TransitRoute> routes = new ArrayList<>();
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+				lines.add(line);
+				routes.add(route);
+			}
+		}
+
+		IntArrayList routeStopStop = new IntArrayList();
+		IntArrayList routeStopArrival = new IntArrayList();
+		IntArrayList routeStopDeparture = new IntArrayList();
+		IntArrayList departureTime = new IntArrayList();
+		List<String> departureIds = new ArrayList<>();
+		int[] routeStopStart = new int[routes.size() + 1];
+		int[] departureStart = new int[routes.size() + 1];
+		for (int r = 0; r < routes.size(); r++) {
+			TransitRoute route = routes.get(r);
+			routeStopStart[r] = routeStopStop.size();
+			departureStart[r] = departureTime.size();
+			for (TransitRouteStop routeStop : route.getStops()) {
+				Integer index = stopIndex.get(routeStop.getStopFacility().getId());
+				if (index == null) {
+					throw new IllegalArgumentException("Stop " + routeStop.getStopFacility().getId() + " of route " + route.getId()
+							+ " is not in the schedule");
+				}
+				routeStopStop.add(index.intValue());
+				routeStopArrival.add(toSeconds(routeStop.getArrivalOffset()));
+				routeStopDeparture.add(toSeconds(routeStop.getDepartureOffset()));
+			}
+			List<Departure> departures = new ArrayList<>(route.getDepartures().values());
+			departures.sort(Comparator.comparingDouble(Departure::getDepartureTime));
+			for (Departure departure : departures) {
+				departureTime.add((int) Math.round(departure.getDepartureTime()));
+				departureIds.add(departure.getId().toString());
+			}
+		}
+		routeStopStart[routes.size()] = routeStopStop.size();
+		departureStart[routes.size()] = departureTime.size();
+
+		// route stops serving each stop, in the order of the routes
+		int[] stopRouteStopStart = new int[stops.size() + 1];
+		for (int i = 0; i < routeStopStop.size(); i++) {
+			stopRouteStopStart[routeStopStop.getInt(i) + 1]++;
+		}
+		Arrays.parallelPrefix(stopRouteStopStart, Integer::sum);
+		int[] stopRouteStops = new int[routeStopStop.size()];
+		int[] fill = Arrays.copyOf(stopRouteStopStart, stops.size());
+		for (int i = 0; i < routeStopStop.size(); i++) {
+			stopRouteStops[fill[routeStopStop.getInt(i)]++] = i;
+		}
+
+		List<Transfers> transfers = findTransfers(stops, maxTransferDistance, numberOfThreads);
+		int[] transferStart = new int[stops.size() + 1];
+		for (int i = 0; i < stops.size(); i++) {
+			transferStart[i + 1] = transferStart[i] + transfers.get(i).stops().length;
+		}
+
+		int[] areaStopStart = new int[areaIndex.size() + 1];
+		for (int area : stopArea) {
+			if (area >= 0) areaStopStart[area + 1]++;
+		}
+		Arrays.parallelPrefix(areaStopStart, Integer::sum);
+		int[] areaStops = new int[areaStopStart[areaIndex.size()]];
+		fill = Arrays.copyOf(areaStopStart, areaIndex.size());
+		for (int i = 0; i < stops.size(); i++) {
+			if (stopArea[i] >= 0) areaStops[fill[stopArea[i]]++] = i;
+		}
+
+		// strings in the order of the string sections: stops, stop areas, lines, routes, modes and departures
+		List<String> ids = new ArrayList<>();
+		stops.forEach(stop -> ids.add(stop.getId().toString()));
+		ids.addAll(areaIndex.keySet());
+		lines.forEach(line -> ids.add(line.getId().toString()));
+		routes.forEach(route -> ids.add(route.getId().toString()));
+		routes.forEach(route -> ids.add(route.getTransportMode() == null ? "" : route.getTransportMode()));
+		ids.addAll(departureIds);
+		byte[][] encoded = new byte[ids.size()][];
+		int[] stringStart = new int[ids.size() + 1];
+		for (int i = 0; i < ids.size(); i++) {
+			encoded[i] = ids.get(i).getBytes(StandardCharsets.UTF_8);
+			stringStart[i + 1] = stringStart[i] + encoded[i].length;
+		}
+
+		Layout layout = new Layout(stops.size(), routes.size(), routeStopStop.size(), departureTime.size(),
+				transferStart[stops.size()], areaIndex.size(), areaStops.length, stringStart[ids.size()]);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			for (int value : layout.header()) out.writeInt(value);
+			for (TransitStopFacility stop : stops) out.writeDouble(stop.getCoord().getX());
+			for (TransitStopFacility stop : stops) out.writeDouble(stop.getCoord().getY());
+			writeInts(out, stopArea);
+			writeInts(out, stopRouteStopStart);
+			writeInts(out, stopRouteStops);
+			writeInts(out, routeStopStart);
+			writeInts(out, departureStart);
+			writeInts(out, routeStopStop.toIntArray());
+			writeInts(out, routeStopArrival.toIntArray());
+			writeInts(out, routeStopDeparture.toIntArray());
+			writeInts(out, departureTime.toIntArray());
+			writeInts(out, transferStart);
+			for (Transfers t : transfers) writeInts(out, t.stops());
+			for (Transfers t : transfers) {
+				for (float distance : t.distances()) out.writeFloat(distance);
+			}
+			writeInts(out, areaStopStart);
+			writeInts(out, areaStops);
+			writeInts(out, stringStart);
+			for (byte[] bytes : encoded) out.write(bytes);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Wrote index of {} stops, {} routes, {} departures and {} transfers to {}. Took {} ms", layout.stops(), layout.routes(),
+				layout.departures(), layout.transfers(), file, (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * Maps an index file into memory.
+	 *
+	 * @throws IllegalArgumentException if the file is no index or has another version
+	 */
+	public static TransitScheduleIndex load(Path file) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Index " + file + " is larger than 2 GB and can not be mapped");
+			}
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.limit() < HEADER_INTS * Integer.BYTES || buffer.getInt(0) != MAGIC) {
+				throw new IllegalArgumentException(file + " is not a transit schedule index");
+			}
+			if (buffer.getInt(Integer.BYTES) != VERSION) {
+				throw new IllegalArgumentException("Index " + file + " has version " + buffer.getInt(Integer.BYTES) + ", expected " + VERSION);
+			}
+			Layout layout = Layout.of(buffer);
+			if (layout.size() != buffer.limit()) {
+				throw new IllegalArgumentException("Index " + file + " is truncated or corrupt");
+			}
+			return new TransitScheduleIndex(buffer, layout);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int getStopCount() {
+		return layout.stops();
+	}
+
+	public String getStopId(int stop) {
+		return getString(stop);
+	}
+
+	/**
+	 * @return index of the stop, or -1 if it is not in the index
+	 */
+	public int getStopIndex(Id<TransitStopFacility> stopId) {
+		Map<String, Integer> index = stopIndexById;
+		if (index == null) {
+			index = new HashMap<>();
+			for (int i = 0; i < layout.stops(); i++) {
+				index.put(getStopId(i), i);
+			}
+			stopIndexById = index;
+		}
+		return index.getOrDefault(stopId.toString(), -1);
+	}
+
+	public Coord getStopCoord(int stop) {
+		return new Coord(stopX.get(stop), stopY.get(stop));
+	}
+
+	/**
+	 * @return index of the stop area, or -1 if the stop has none
+	 */
+	public int getStopArea(int stop) {
+		return stopArea.get(stop);
+	}
+
+	/**
+	 * @return route stops serving the stop, as indices of all route stops, see {@link #getRouteStopIndex(int, int)}
+	 */
+	public int[] getRouteStopsOfStop(int stop) {
+		return getRow(stopRouteStopStart, stopRouteStops, stop);
+	}
+
+	public int getRouteCount() {
+		return layout.routes();
+	}
+
+	public String getLineId(int route) {
+		return getString(layout.stops() + layout.areas() + route);
+	}
+
+	public String getRouteId(int route) {
+		return getString(layout.stops() + layout.areas() + layout.routes() + route);
+	}
+
+	public String getTransportMode(int route) {
+		return getString(layout.stops() + layout.areas() + 2 * layout.routes() + route);
+	}
+
+	public int getRouteStopCount(int route) {
+		return routeStopStart.get(route + 1) - routeStopStart.get(route);
+	}
+
+	/**
+	 * @return index of the k-th stop of the route among all route stops
+	 */
+	public int getRouteStopIndex(int route, int k) {
+		return routeStopStart.get(route) + k;
+	}
+
+	/**
+	 * @return route of a route stop index
+	 */
+	public int getRouteOfRouteStop(int routeStop) {
+		// routes without stops start at the same index as the next route, so the last matching route is taken
+		return binarySearch(routeStopStart, layout.routes(), routeStop);
+	}
+
+	public int getRouteStopStop(int routeStop) {
+		return routeStopStop.get(routeStop);
+	}
+
+	public int getArrivalOffset(int routeStop) {
+		return routeStopArrival.get(routeStop);
+	}
+
+	public int getDepartureOffset(int routeStop) {
+		return routeStopDeparture.get(routeStop);
+	}
+
+	public int getDepartureCount(int route) {
+		return departureStart.get(route + 1) - departureStart.get(route);
+	}
+
+	/**
+	 * @return departure time of the k-th departure of the route, departures are sorted by time
+	 */
+	public int getDepartureTime(int route, int k) {
+		return departureTime.get(departureStart.get(route) + k);
+	}
+
+	public String getDepartureId(int route, int k) {
+		return getString(layout.stops() + layout.areas() + 3 * layout.routes() + departureStart.get(route) + k);
+	}
+
+	public int getTransferCount(int stop) {
+		return transferStart.get(stop + 1) - transferStart.get(stop);
+	}
+
+	public int getTransferStop(int stop, int k) {
+		return transferStop.get(transferStart.get(stop) + k);
+	}
+
+	public float getTransferDistance(int stop, int k) {
+		return transferDistance.get(transferStart.get(stop) + k);
+	}
+
+	public int getStopAreaCount() {
+		return layout.areas();
+	}
+
+	public String getStopAreaId(int area) {
+		return getString(layout.stops() + area);
+	}
+
+	public int[] getStopsOfArea(int area) {
+		return getRow(areaStopStart, areaStops, area);
+	}
+
+	private String getString(int index) {
+		int from = stringStart.get(index);
+		byte[] bytes = new byte[stringStart.get(index + 1) - from];
+		strings.get(from, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int[] getRow(IntBuffer start, IntBuffer values, int row) {
+		int from = start.get(row);
+		int[] result = new int[start.get(row + 1) - from];
+		values.get(from, result);
+		return result;
+	}
+
+	/**
+	 * @return last row whose start is at most the value
+	 */
+	private static int binarySearch(IntBuffer start, int rows, int value) {
+		int low = 0;
+		int high = rows - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (start.get(mid) <= value) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private static int toSeconds(OptionalTime time) {
+		return time.isDefined() ? (int) Math.round(time.seconds()) : UNDEFINED;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static List<Transfers> findTransfers(List<TransitStopFacility> stops, double maxTransferDistance, int numberOfThreads) {
+		if (stops.isEmpty()) {
+			return List.of();
+		}
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (TransitStopFacility stop : stops) {
+			minX = Math.min(minX, stop.getCoord().getX());
+			minY = Math.min(minY, stop.getCoord().getY());
+			maxX = Math.max(maxX, stop.getCoord().getX());
+			maxY = Math.max(maxY, stop.getCoord().getY());
+		}
+		QuadTree<Integer> index = new QuadTree<>(minX - 1, minY - 1, maxX + 1, maxY + 1);
+		for (int i = 0; i < stops.size(); i++) {
+			index.put(stops.get(i).getCoord().getX(), stops.get(i).getCoord().getY(), i);
+		}
+
+		return ParallelRunner.call(numberOfThreads, () -> IntStream.range(0, stops.size()).parallel()
+				.mapToObj(i -> {
+					Coord coord = stops.get(i).getCoord();
+					int[] neighbours = index.getDisk(coord.getX(), coord.getY(), maxTransferDistance).stream()
+							.mapToInt(Integer::intValue)
+							.filter(j -> j != i)
+							.sorted()
+							.toArray();
+					float[] distances = new float[neighbours.length];
+					for (int k = 0; k < neighbours.length; k++) {
+						distances[k] = (float) CoordUtils.calcEuclideanDistance(coord, stops.get(neighbours[k]).getCoord());
+					}
+					return new Transfers(neighbours, distances);
+				})
+				.toList());
+	}
+
+	private record Transfers(int[] stops, float[] distances) {
+	}
+
+	/**
+	 * Sizes of the sections, from which their positions in the file follow. Doubles come first so that all sections are aligned.
+	 */
+	private record Layout(int stops, int routes, int routeStops, int departures, int transfers, int areas, int areaStops,
+						  int stringBytes) {
+
+		static Layout of(ByteBuffer buffer) {
+			return new Layout(buffer.getInt(8), buffer.getInt(12), buffer.getInt(16), buffer.getInt(20), buffer.getInt(24),
+					buffer.getInt(28), buffer.getInt(32), buffer.getInt(36));
+		}
+
+		int[] header() {
+			int[] header = new int[HEADER_INTS];
+			header[0] = MAGIC;
+			header[1] = VERSION;
+			header[2] = stops;
+			header[3] = routes;
+			header[4] = routeStops;
+			header[5] = departures;
+			header[6] = transfers;
+			header[7] = areas;
+			header[8] = areaStops;
+			header[9] = stringBytes;
+			return header;
+		}
+
+		int strings() {
+			return stops + areas + 3 * routes + departures;
+		}
+
+		/**
+		 * Sizes of the sections in bytes, in the order of the file.
+		 */
+		long[] sectionSizes() {
+			return new long[] {
+					8L * stops, 8L * stops, 4L * stops,
+					4L * (stops + 1), 4L * routeStops,
+					4L * (routes + 1), 4L * (routes + 1),
+					4L * routeStops, 4L * routeStops, 4L * routeStops,
+					4L * departures,
+					4L * (stops + 1), 4L * transfers, 4L * transfers,
+					4L * (areas + 1), 4L * areaStops,
+					4L * (strings() + 1), stringBytes};
+		}
+
+		long size() {
+			return HEADER_INTS * (long) Integer.BYTES + Arrays.stream(sectionSizes()).sum();
+		}
+
+		List<ByteBuffer> slice(ByteBuffer buffer) {
+			List<ByteBuffer> sections = new ArrayList<>();
+			int position = HEADER_INTS * Integer.BYTES;
+			for (long size : sectionSizes()) {
+				sections.add(buffer.slice(position, (int) size));
+				position += (int) size;
+			}
+			return sections;
+		}
+	}
+}
@@ -22,6 +22,9 @@ package org.matsim.contrib.gtfs;
 import java.util.ArrayList;
 import java.util.List;
 
+import it.unimi.dsi.fastutil.doubles.Double2ObjectOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.pt.transitSchedule.api.*;
 
@@ -33,6 +36,31 @@ import org.matsim.pt.transitSchedule.api.*;
  *
  */
 public class TransitSchedulePostProcessTools {
+
+	private static final Logger log = LogManager.getLogger(TransitSchedulePostProcessTools.class);
+
+	/**
+	 * Attribute of a kept {@link Departure} listing the MATSim ids of the departures merged into it, separated by comma.
+	 * These are departure ids, not GTFS trip ids, as departures do not keep their trip. Departures of the {@link GtfsConverter}
+	 * are named after their trip, i.e. prefix, trip_id and day offset, so the trips can be read from them.
+	 */
+	public static final String MERGED_DEPARTURE_IDS = "merged_departure_ids";
+
+	/**
+	 * Id prefix of departures created by {@link #copyLateDeparturesToStartOfDay}, followed by the id of the original departure.
+	 */
+	public static final String COPIED_TO_PREVIOUS_DAY = "copied-24h_";
+
+	/**
+	 * Id prefix of departures created by {@link #copyEarlyDeparturesToFollowingNight}, followed by the id of the original departure.
+	 */
+	public static final String COPIED_TO_FOLLOWING_DAY = "copied+24h_";
+
+	/**
+	 * Integer attribute of copied departures, the number of days the copy was shifted by (-1 or +1).
+	 * Departures having this attribute are never copied again by {@link #wrapDepartures}.
+	 */
+	public static final String DAY_SHIFT = "copied_day_shift";
 	
 	/**
 	 * Sometimes departures of day x are found in GTFS data as a trip on day x-1 at 24:00 hours or later.
@@ -52,34 +80,10 @@ public class TransitSchedulePostProcessTools {
 	 */
 	public static void copyLateDeparturesToStartOfDay(TransitSchedule schedule, double startTimeOfCopying, 
 			String departureExclusionMarker, boolean copyDespiteArrivalBeforeMidnight) {
-		for (TransitLine line: schedule.getTransitLines().values()) {
-			for (TransitRoute route: line.getRoutes().values()) {
-
-				List<TransitRouteStop> stops = route.getStops();
-				if (stops.isEmpty())
-					continue;
-
-				List<Departure> departuresToBeAdded = new ArrayList<>();
-				
-				for (Departure dep: route.getDepartures().values()) {
-					double oldDepartureTime = dep.getDepartureTime();
-					// do not copy Departures which arrive before midnight ()
-					double arrivalAtLastStop = dep.getDepartureTime() + stops.get(stops.size() - 1).getArrivalOffset().seconds();
-					if (oldDepartureTime > startTimeOfCopying && 
-							(departureExclusionMarker== null || !dep.getId().toString().contains(departureExclusionMarker)) &&
-							(copyDespiteArrivalBeforeMidnight || arrivalAtLastStop >= 24*3600) ) {
-						Departure copiedDep = schedule.getFactory().createDeparture(
-								Id.create("copied-24h_" + dep.getId().toString(), Departure.class), 
-								oldDepartureTime - 24*3600);
-						departuresToBeAdded.add(copiedDep);
-					}
-				}
-				
-				for (Departure copiedDep: departuresToBeAdded) {
-					route.addDeparture(copiedDep);
-				}
-			}
-		}
+		new TransitSchedulePostProcessor()
+				.addDepartureStage("copy late departures", 
+						lateDepartureCopier(startTimeOfCopying, departureExclusionMarker, copyDespiteArrivalBeforeMidnight))
+				.run(schedule);
 	}
 	
 	/**
@@ -96,30 +100,135 @@ public class TransitSchedulePostProcessTools {
 	 */
 	public static void copyEarlyDeparturesToFollowingNight(TransitSchedule schedule, double endTimeOfCopying, 
 			String departureExclusionMarker) {
-		for (TransitLine line: schedule.getTransitLines().values()) {
-			for (TransitRoute route: line.getRoutes().values()) {
-				List<Departure> departuresToBeAdded = new ArrayList<>();
-
-				List<TransitRouteStop> stops = route.getStops();
-				if (stops.isEmpty())
-					continue;
-
-				for (Departure dep: route.getDepartures().values()) {
-					double oldDepartureTime = dep.getDepartureTime();
-					if (oldDepartureTime < endTimeOfCopying && 
-							(departureExclusionMarker== null || !dep.getId().toString().contains(departureExclusionMarker))) {
-						Departure copiedDep = schedule.getFactory().createDeparture(
-								Id.create("copied+24h_" + dep.getId().toString(), Departure.class), 
-								oldDepartureTime + 24*3600);
-						departuresToBeAdded.add(copiedDep);
-					}
-				}
-				
-				for (Departure copiedDep: departuresToBeAdded) {
-					route.addDeparture(copiedDep);
-				}
+		new TransitSchedulePostProcessor()
+				.addDepartureStage("copy early departures", earlyDepartureCopier(endTimeOfCopying, departureExclusionMarker))
+				.run(schedule);
+	}
+
+	/**
+	 * Combines {@link #copyLateDeparturesToStartOfDay} and {@link #copyEarlyDeparturesToFollowingNight} in one pass over the
+	 * schedule, lines are processed in parallel. Only original departures are copied: departures carrying the {@link #DAY_SHIFT}
+	 * attribute, e.g. from an earlier run, are skipped, and departures copied in this run are not copied a second time.
+	 * The copies get the same ids as with the separate methods.
+	 *
+	 * @param schedule TransitSchedule
+	 * @param startTimeOfLateCopying departures after that time are added 24 hours earlier
+	 * @param endTimeOfEarlyCopying departures before that time are added 24 hours later
+	 * @param copyDespiteArrivalBeforeMidnight see {@link #copyLateDeparturesToStartOfDay}
+	 * @return number of copied departures
+	 */
+	public static int wrapDepartures(TransitSchedule schedule, double startTimeOfLateCopying, double endTimeOfEarlyCopying,
+			boolean copyDespiteArrivalBeforeMidnight) {
+		return (int) new TransitSchedulePostProcessor()
+				.addDepartureStage("wrap departures", 
+						dayWrappingCopier(startTimeOfLateCopying, endTimeOfEarlyCopying, copyDespiteArrivalBeforeMidnight))
+				.run(schedule).get(0).changes();
+	}
+
+	/**
+	 * Stage of {@link #copyLateDeparturesToStartOfDay} for a {@link TransitSchedulePostProcessor}.
+	 */
+	public static TransitSchedulePostProcessor.DepartureProcessor lateDepartureCopier(double startTimeOfCopying,
+			String departureExclusionMarker, boolean copyDespiteArrivalBeforeMidnight) {
+		return (context, dep) -> isExcluded(dep, departureExclusionMarker) ? 0 
+				: copyLate(context, dep, startTimeOfCopying, copyDespiteArrivalBeforeMidnight);
+	}
+
+	/**
+	 * Stage of {@link #copyEarlyDeparturesToFollowingNight} for a {@link TransitSchedulePostProcessor}.
+	 */
+	public static TransitSchedulePostProcessor.DepartureProcessor earlyDepartureCopier(double endTimeOfCopying,
+			String departureExclusionMarker) {
+		return (context, dep) -> isExcluded(dep, departureExclusionMarker) ? 0 : copyEarly(context, dep, endTimeOfCopying);
+	}
+
+	/**
+	 * Stage of {@link #wrapDepartures} for a {@link TransitSchedulePostProcessor}.
+	 */
+	public static TransitSchedulePostProcessor.DepartureProcessor dayWrappingCopier(double startTimeOfLateCopying,
+			double endTimeOfEarlyCopying, boolean copyDespiteArrivalBeforeMidnight) {
+		return (context, dep) -> {
+			if (dep.getAttributes().getAttribute(DAY_SHIFT) != null)
+				return 0;
+			return copyLate(context, dep, startTimeOfLateCopying, copyDespiteArrivalBeforeMidnight)
+					+ copyEarly(context, dep, endTimeOfEarlyCopying);
+		};
+	}
+
+	/**
+	 * Stage of {@link #removeDuplicateDepartures} for a {@link TransitSchedulePostProcessor}.
+	 */
+	public static TransitSchedulePostProcessor.RouteProcessor duplicateDepartureRemover() {
+		return (factory, line, route) -> removeDuplicateDepartures(route);
+	}
+
+	private static boolean isExcluded(Departure dep, String departureExclusionMarker) {
+		return departureExclusionMarker != null && dep.getId().toString().contains(departureExclusionMarker);
+	}
+
+	private static int copyLate(TransitSchedulePostProcessor.DepartureContext context, Departure dep, double startTimeOfCopying,
+			boolean copyDespiteArrivalBeforeMidnight) {
+		List<TransitRouteStop> stops = context.getRoute().getStops();
+		if (stops.isEmpty() || dep.getDepartureTime() <= startTimeOfCopying)
+			return 0;
+		// do not copy Departures which arrive before midnight
+		double arrivalAtLastStop = dep.getDepartureTime() + stops.get(stops.size() - 1).getArrivalOffset().seconds();
+		if (!copyDespiteArrivalBeforeMidnight && arrivalAtLastStop < 24*3600)
+			return 0;
+		context.addDeparture(createCopy(context.getFactory(), dep, COPIED_TO_PREVIOUS_DAY, -1));
+		return 1;
+	}
+
+	private static int copyEarly(TransitSchedulePostProcessor.DepartureContext context, Departure dep, double endTimeOfCopying) {
+		if (context.getRoute().getStops().isEmpty() || dep.getDepartureTime() >= endTimeOfCopying)
+			return 0;
+		context.addDeparture(createCopy(context.getFactory(), dep, COPIED_TO_FOLLOWING_DAY, 1));
+		return 1;
+	}
+
+	private static Departure createCopy(TransitScheduleFactory factory, Departure dep, String idPrefix, int dayShift) {
+		Departure copiedDep = factory.createDeparture(Id.create(idPrefix.concat(dep.getId().toString()), Departure.class),
+				dep.getDepartureTime() + dayShift * 24*3600);
+		copiedDep.getAttributes().putAttribute(DAY_SHIFT, dayShift);
+		return copiedDep;
+	}
+
+	/**
+	 * Overlapping calendars, duplicated GTFS trips or merged feeds can lead to several Departures on the same
+	 * TransitRoute at exactly the same time. These would be simulated as separate vehicles, so only the first of them
+	 * is kept and the departure ids of the others are stored in its {@link #MERGED_DEPARTURE_IDS} attribute.
+	 * Should be run before transit vehicles are created, as vehicles of removed departures are not deleted.
+	 *
+	 * @param schedule TransitSchedule
+	 * @return number of removed departures
+	 */
+	public static int removeDuplicateDepartures(TransitSchedule schedule) {
+		return (int) new TransitSchedulePostProcessor()
+				.addRouteStage("remove duplicate departures", duplicateDepartureRemover())
+				.run(schedule).get(0).changes();
+	}
+
+	/**
+	 * @see #removeDuplicateDepartures(TransitSchedule)
+	 */
+	static int removeDuplicateDepartures(TransitRoute route) {
+		Double2ObjectOpenHashMap<Departure> departureByTime = new Double2ObjectOpenHashMap<>(route.getDepartures().size());
+		List<Departure> duplicates = new ArrayList<>();
+
+		for (Departure dep: route.getDepartures().values()) {
+			Departure kept = departureByTime.putIfAbsent(dep.getDepartureTime(), dep);
+			if (kept != null) {
+				Object mergedIds = kept.getAttributes().getAttribute(MERGED_DEPARTURE_IDS);
+				kept.getAttributes().putAttribute(MERGED_DEPARTURE_IDS,
+						mergedIds == null ? dep.getId().toString() : mergedIds + "," + dep.getId().toString());
+				duplicates.add(dep);
 			}
 		}
+
+		for (Departure duplicate: duplicates) {
+			route.removeDeparture(duplicate);
+		}
+		return duplicates.size();
 	}
 
 }
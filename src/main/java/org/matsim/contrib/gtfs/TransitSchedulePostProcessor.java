@@ -0,0 +1,232 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+
+/**
+ * Runs several post-processing steps on a {@link TransitSchedule} in one traversal. Each step is registered as a stage processing
+ * either a line, a route or a departure, see {@link TransitSchedulePostProcessTools} for the available ones.
+ * <p>
+ * Lines are processed in parallel. For each line its line stages run first, then for each route its route stages and then the
+ * departure stages on all departures of the route, each kind in the order of registration. Departures added or removed by departure
+ * stages are applied after all departure stages of the route ran, so they are not seen by other departure stages.
+ * Stages must only modify the line they are given.
+ */
+public final class TransitSchedulePostProcessor {
+
+	private static final Logger log = LogManager.getLogger(TransitSchedulePostProcessor.class);
+
+	@FunctionalInterface
+	public interface LineProcessor {
+		/**
+		 * @return number of changes, e.g. added or removed departures
+		 */
+		int process(TransitScheduleFactory factory, TransitLine line);
+	}
+
+	@FunctionalInterface
+	public interface RouteProcessor {
+		/**
+		 * @return number of changes, e.g. added or removed departures
+		 */
+		int process(TransitScheduleFactory factory, TransitLine line, TransitRoute route);
+	}
+
+	@FunctionalInterface
+	public interface DepartureProcessor {
+		/**
+		 * @return number of changes, e.g. added or removed departures
+		 */
+		int process(DepartureContext context, Departure departure);
+	}
+
+	/**
+	 * Route of the processed departure and the changes to be applied to it once all departure stages ran.
+	 */
+	public static final class DepartureContext {
+		private final TransitScheduleFactory factory;
+		private TransitLine line;
+		private TransitRoute route;
+		private final List<Departure> added = new ArrayList<>();
+		private final List<Departure> removed = new ArrayList<>();
+
+		private DepartureContext(TransitScheduleFactory factory) {
+			this.factory = factory;
+		}
+
+		public TransitScheduleFactory getFactory() {
+			return factory;
+		}
+
+		public TransitLine getLine() {
+			return line;
+		}
+
+		public TransitRoute getRoute() {
+			return route;
+		}
+
+		public void addDeparture(Departure departure) {
+			added.add(departure);
+		}
+
+		public void removeDeparture(Departure departure) {
+			removed.add(departure);
+		}
+
+		private void apply() {
+			for (Departure departure : removed) {
+				route.removeDeparture(departure);
+			}
+			for (Departure departure : added) {
+				route.addDeparture(departure);
+			}
+			added.clear();
+			removed.clear();
+		}
+	}
+
+	/**
+	 * Number of changes and accumulated processing time of one stage, summed over all threads.
+	 */
+	public record StageResult(String name, long changes, long nanos) {
+	}
+
+	private static final class Stage<P> {
+		private final String name;
+		private final P processor;
+		private final LongAdder changes = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+
+		private Stage(String name, P processor) {
+			this.name = name;
+			this.processor = processor;
+		}
+
+		private void record(int stageChanges, long start) {
+			nanos.add(System.nanoTime() - start);
+			changes.add(stageChanges);
+		}
+
+		private StageResult result() {
+			return new StageResult(name, changes.sum(), nanos.sum());
+		}
+	}
+
+	private final List<Stage<LineProcessor>> lineStages = new ArrayList<>();
+	private final List<Stage<RouteProcessor>> routeStages = new ArrayList<>();
+	private final List<Stage<DepartureProcessor>> departureStages = new ArrayList<>();
+	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	public TransitSchedulePostProcessor addLineStage(String name, LineProcessor processor) {
+		lineStages.add(new Stage<>(name, processor));
+		return this;
+	}
+
+	public TransitSchedulePostProcessor addRouteStage(String name, RouteProcessor processor) {
+		routeStages.add(new Stage<>(name, processor));
+		return this;
+	}
+
+	public TransitSchedulePostProcessor addDepartureStage(String name, DepartureProcessor processor) {
+		departureStages.add(new Stage<>(name, processor));
+		return this;
+	}
+
+	public TransitSchedulePostProcessor setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = ParallelRunner.checkNumberOfThreads(numberOfThreads);
+		return this;
+	}
+
+	/**
+	 * Runs all stages on the schedule. Statistics are collected per run, so a processor can be run on several schedules.
+	 *
+	 * @return results of the line, route and departure stages, each in the order of registration
+	 */
+	public List<StageResult> run(TransitSchedule schedule) {
+		for (Stage<?> stage : allStages()) {
+			stage.changes.reset();
+			stage.nanos.reset();
+		}
+
+		long start = System.nanoTime();
+		TransitScheduleFactory factory = schedule.getFactory();
+		List<TransitLine> lines = new ArrayList<>(schedule.getTransitLines().values());
+		ParallelRunner.run(numberOfThreads, () -> lines.parallelStream().forEach(line -> processLine(factory, line)));
+
+		List<StageResult> results = new ArrayList<>();
+		for (Stage<?> stage : allStages()) {
+			StageResult result = stage.result();
+			log.info("Stage {}: {} changes in {} ms", result.name(), result.changes(), result.nanos() / 1_000_000);
+			results.add(result);
+		}
+		log.info("Post-processed {} lines on {} threads in {} ms", lines.size(), numberOfThreads, (System.nanoTime() - start) / 1_000_000);
+		return results;
+	}
+
+	private void processLine(TransitScheduleFactory factory, TransitLine line) {
+		for (Stage<LineProcessor> stage : lineStages) {
+			long start = System.nanoTime();
+			stage.record(stage.processor.process(factory, line), start);
+		}
+
+		DepartureContext context = new DepartureContext(factory);
+		context.line = line;
+		for (TransitRoute route : new ArrayList<>(line.getRoutes().values())) {
+			for (Stage<RouteProcessor> stage : routeStages) {
+				long start = System.nanoTime();
+				stage.record(stage.processor.process(factory, line, route), start);
+			}
+
+			if (departureStages.isEmpty() || route.getDepartures().isEmpty())
+				continue;
+
+			context.route = route;
+			Departure[] departures = route.getDepartures().values().toArray(new Departure[0]);
+			for (Stage<DepartureProcessor> stage : departureStages) {
+				long start = System.nanoTime();
+				int changes = 0;
+				for (Departure departure : departures) {
+					changes += stage.processor.process(context, departure);
+				}
+				stage.record(changes, start);
+			}
+			context.apply();
+		}
+	}
+
+	private List<Stage<?>> allStages() {
+		List<Stage<?>> stages = new ArrayList<>(lineStages);
+		stages.addAll(routeStages);
+		stages.addAll(departureStages);
+		return stages;
+	}
+}
@@ -0,0 +1,180 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.vehicles.VehicleCapacity;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+/**
+ * Removes departures for scaled-down scenarios, so that the schedule does not run at full frequency for a sample of the population.
+ * Departures are thinned per route in order of departure time, the result does not depend on the number of threads or on the order
+ * of the departures in the schedule. Should be run before transit vehicles are created, as vehicles of removed departures are not deleted.
+ * <p>
+ * The thinning methods are also available as stages for a {@link TransitSchedulePostProcessor}.
+ */
+public final class TransitScheduleThinning {
+
+	private static final Logger log = LogManager.getLogger(TransitScheduleThinning.class);
+
+	private static final Comparator<Departure> BY_TIME = Comparator.comparingDouble(Departure::getDepartureTime)
+			.thenComparing(dep -> dep.getId().toString());
+
+	private TransitScheduleThinning() {
+	}
+
+	/**
+	 * Keeps the first departure of each route and every k-th departure after it.
+	 *
+	 * @param schedule TransitSchedule
+	 * @param k        keep one of k departures
+	 * @return number of removed departures
+	 */
+	public static int keepEveryKthDeparture(TransitSchedule schedule, int k) {
+		int removed = (int) new TransitSchedulePostProcessor()
+				.addRouteStage("keep every " + k + "th departure", everyKthDeparture(k))
+				.run(schedule).get(0).changes();
+		log.info("Removed {} departures, keeping every {}th departure", removed, k);
+		return removed;
+	}
+
+	/**
+	 * Keeps a share of the departures of each route within each time band, evenly spread over the departures of the band, so regular
+	 * headways stay regular, e.g. a share of 0.25 turns a 10 minute headway into a 40 minute headway. At least one departure is kept per
+	 * route and band, so no service period is lost completely.
+	 *
+	 * @param schedule   TransitSchedule
+	 * @param share      share of departures to keep, between 0 and 1
+	 * @param bandLength length of the time bands in seconds, starting at time 0
+	 * @return number of removed departures
+	 */
+	public static int sampleDepartures(TransitSchedule schedule, double share, double bandLength) {
+		int removed = (int) new TransitSchedulePostProcessor()
+				.addRouteStage("sample departures", headwayPreservingSample(share, bandLength))
+				.run(schedule).get(0).changes();
+		log.info("Removed {} departures, keeping a share of {} per {}s band", removed, share, bandLength);
+		return removed;
+	}
+
+	/**
+	 * Stage of {@link #keepEveryKthDeparture} for a {@link TransitSchedulePostProcessor}.
+	 */
+	public static TransitSchedulePostProcessor.RouteProcessor everyKthDeparture(int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1, got " + k);
+		}
+		return (factory, line, route) -> {
+			Departure[] departures = getSortedDepartures(route);
+			int removed = 0;
+			for (int i = 0; i < departures.length; i++) {
+				if (i % k != 0) {
+					route.removeDeparture(departures[i]);
+					removed++;
+				}
+			}
+			return removed;
+		};
+	}
+
+	/**
+	 * Stage of {@link #sampleDepartures} for a {@link TransitSchedulePostProcessor}.
+	 */
+	public static TransitSchedulePostProcessor.RouteProcessor headwayPreservingSample(double share, double bandLength) {
+		if (share <= 0 || share > 1) {
+			throw new IllegalArgumentException("share must be in (0, 1], got " + share);
+		}
+		if (bandLength <= 0) {
+			throw new IllegalArgumentException("bandLength must be positive, got " + bandLength);
+		}
+		return (factory, line, route) -> {
+			Departure[] departures = getSortedDepartures(route);
+			int removed = 0;
+			int bandStart = 0;
+			while (bandStart < departures.length) {
+				double band = Math.floor(departures[bandStart].getDepartureTime() / bandLength);
+				int bandEnd = bandStart + 1;
+				while (bandEnd < departures.length && Math.floor(departures[bandEnd].getDepartureTime() / bandLength) == band) {
+					bandEnd++;
+				}
+				removed += sampleBand(route, departures, bandStart, bandEnd, share);
+				bandStart = bandEnd;
+			}
+			return removed;
+		};
+	}
+
+	/**
+	 * Keeps the departures at positions (j + 0.5) * n / m of the band, for j = 0 .. m-1, so they are spread evenly.
+	 */
+	private static int sampleBand(TransitRoute route, Departure[] departures, int from, int to, double share) {
+		int n = to - from;
+		int m = Math.max(1, (int) Math.round(n * share));
+		int removed = 0;
+		int j = 0;
+		int nextKept = from + (int) ((j + 0.5) * n / m);
+		for (int i = from; i < to; i++) {
+			if (i == nextKept) {
+				j++;
+				nextKept = from + (int) ((j + 0.5) * n / m);
+			} else {
+				route.removeDeparture(departures[i]);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private static Departure[] getSortedDepartures(TransitRoute route) {
+		Departure[] departures = route.getDepartures().values().toArray(new Departure[0]);
+		Arrays.sort(departures, BY_TIME);
+		return departures;
+	}
+
+	/**
+	 * Multiplies seats and standing room of all vehicle types, e.g. to match a thinned schedule to the sample size of the population.
+	 * Capacities are rounded and at least one seat is kept for types which had seats.
+	 *
+	 * @param vehicles transit vehicles
+	 * @param factor   capacity factor
+	 */
+	public static void scaleVehicleCapacities(Vehicles vehicles, double factor) {
+		if (factor <= 0) {
+			throw new IllegalArgumentException("factor must be positive, got " + factor);
+		}
+		for (VehicleType type : vehicles.getVehicleTypes().values()) {
+			VehicleCapacity capacity = type.getCapacity();
+			if (capacity.getSeats() != null && capacity.getSeats() > 0) {
+				capacity.setSeats(Math.max(1, (int) Math.round(capacity.getSeats() * factor)));
+			}
+			if (capacity.getStandingRoom() != null) {
+				capacity.setStandingRoom((int) Math.round(capacity.getStandingRoom() * factor));
+			}
+		}
+		log.info("Scaled capacities of {} vehicle types by {}", vehicles.getVehicleTypes().size(), factor);
+	}
+}
@@ -0,0 +1,463 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.transformations.IdentityTransformation;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.pt.utils.CreatePseudoNetwork;
+import org.matsim.pt.utils.CreateVehiclesForSchedule;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+
+import com.conveyal.gtfs.GTFSFeed;
+
+public class CreateVehicleCirculationTest {
+
+	@Test
+	public void testInterlining() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitStopFacility a = addStop(schedule, "a", 0);
+		TransitStopFacility b = addStop(schedule, "b", 5000);
+		TransitStopFacility bNearby = addStop(schedule, "bNearby", 5100);
+
+		// line red ends at b, line blue starts 100m away from b half an hour later
+		addLine(schedule, "red", a, b, 8 * 3600);
+		addLine(schedule, "blue", bNearby, a, 8 * 3600 + 30 * 60);
+		List<TransitLine> lines = new ArrayList<>(schedule.getTransitLines().values());
+
+		CreateVehicleCirculation.Blocking sameStop = CreateVehicleCirculation.computeInterlinedBlocking(lines, 60, false, 0, 5, 3600,
+				CreateVehicleCirculation.BlockingMode.greedy);
+		Assertions.assertEquals(2, sameStop.vehicles(), "Departures at different stops must not be linked without radius");
+
+		CreateVehicleCirculation.Blocking nearby = CreateVehicleCirculation.computeInterlinedBlocking(lines, 60, false, 200, 5, 3600,
+				CreateVehicleCirculation.BlockingMode.minimumFleet);
+		Assertions.assertEquals(1, nearby.vehicles(), "Departures of both lines should be served by one vehicle");
+		Assertions.assertEquals(1, nearby.greedyVehicles());
+
+		// deadhead of 100m at 0.05 m/s takes longer than the layover
+		CreateVehicleCirculation.Blocking slow = CreateVehicleCirculation.computeInterlinedBlocking(lines, 60, false, 200, 0.05, 3600,
+				CreateVehicleCirculation.BlockingMode.minimumFleet);
+		Assertions.assertEquals(2, slow.vehicles(), "Deadhead time was not considered");
+
+		// the vehicle is ready at 8:21 plus 20s deadhead, so the layover until 8:30 is about nine minutes
+		CreateVehicleCirculation.Blocking shortLayover = CreateVehicleCirculation.computeInterlinedBlocking(lines, 60, false, 200, 5, 5 * 60,
+				CreateVehicleCirculation.BlockingMode.minimumFleet);
+		Assertions.assertEquals(2, shortLayover.vehicles(), "Layover time was not limited");
+		Assertions.assertEquals(2, shortLayover.greedyVehicles());
+	}
+
+	@Test
+	public void testMaxLayoverTime() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitStopFacility a = addStop(schedule, "a", 0);
+		TransitStopFacility b = addStop(schedule, "b", 5000);
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		schedule.addTransitLine(line);
+		// the vehicle arriving at b at 8:20 is ready at 8:21, the return trip leaves three hours later
+		for (TransitStopFacility[] stops : new TransitStopFacility[][] {{a, b}, {b, a}}) {
+			String id = stops[0].getId() + "-" + stops[1].getId();
+			TransitRoute route = f.createTransitRoute(Id.create(id, TransitRoute.class), null,
+					List.of(f.createTransitRouteStop(stops[0], 0, 0), f.createTransitRouteStop(stops[1], 20 * 60, 20 * 60)), "bus");
+			route.addDeparture(f.createDeparture(Id.create(id, Departure.class), stops[0] == a ? 8 * 3600 : 11 * 3600 + 20 * 60));
+			line.addRoute(route);
+		}
+
+		for (CreateVehicleCirculation.BlockingMode mode : CreateVehicleCirculation.BlockingMode.values()) {
+			Assertions.assertEquals(1, CreateVehicleCirculation.computeBlocking(line, 60, false, mode, Double.POSITIVE_INFINITY, departure -> true).vehicles());
+			Assertions.assertEquals(1, CreateVehicleCirculation.computeBlocking(line, 60, false, mode, 3 * 3600, departure -> true).vehicles());
+			Assertions.assertEquals(2, CreateVehicleCirculation.computeBlocking(line, 60, false, mode, 2 * 3600, departure -> true).vehicles(),
+					"Layover of almost three hours should not be allowed");
+		}
+	}
+
+	@Test
+	public void testParallelBlockingsAreDeterministic() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitStopFacility a = addStop(schedule, "a", 0);
+		TransitStopFacility b = addStop(schedule, "b", 5000);
+		for (int i = 0; i < 20; i++) {
+			addLine(schedule, "line" + i, i % 2 == 0 ? a : b, i % 2 == 0 ? b : a, 6 * 3600 + i * 600);
+		}
+		List<TransitLine> lines = new ArrayList<>(schedule.getTransitLines().values());
+
+		List<CreateVehicleCirculation.Blocking> sequential = CreateVehicleCirculation.computeBlockings(lines, 60, false,
+				CreateVehicleCirculation.BlockingMode.minimumFleet, 1);
+		List<CreateVehicleCirculation.Blocking> parallel = CreateVehicleCirculation.computeBlockings(lines, 60, false,
+				CreateVehicleCirculation.BlockingMode.minimumFleet, 4);
+
+		Assertions.assertEquals(sequential.size(), parallel.size());
+		for (int i = 0; i < sequential.size(); i++) {
+			Assertions.assertEquals(lines.get(i).getId().toString(), parallel.get(i).name(), "Blockings are not in the order of the lines");
+			Assertions.assertArrayEquals(sequential.get(i).successors(), parallel.get(i).successors());
+		}
+	}
+
+	@Test
+	public void testDeadheadLinksAreShared() {
+		Network network = NetworkUtils.createNetwork();
+		Node a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(300, 400));
+
+		CreateVehicleCirculation.DeadheadLinks deadheadLinks = new CreateVehicleCirculation.DeadheadLinks(network, 5);
+		Link link = deadheadLinks.getOrCreate(a, b);
+
+		Assertions.assertSame(link, deadheadLinks.getOrCreate(a, b), "Node pair was connected twice");
+		Assertions.assertNotSame(link, deadheadLinks.getOrCreate(b, a));
+		Assertions.assertNull(deadheadLinks.getOrCreate(a, a));
+		Assertions.assertEquals(2, network.getLinks().size());
+		Assertions.assertEquals(500, link.getLength(), 1e-9);
+		Assertions.assertEquals(5, link.getFreespeed(), 1e-9);
+	}
+
+	@Test
+	public void testGtfsBlocks() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		GtfsConverter.newBuilder()
+				.setScenario(scenario)
+				.setTransform(new IdentityTransformation())
+				.setFeed(GTFSFeed.fromFile("test/input/sample-feed.zip"))
+				.setDate(LocalDate.of(2007, 1, 1))
+				.build()
+				.convert();
+		new CreatePseudoNetwork(scenario.getTransitSchedule(), scenario.getNetwork(), "pt_").createNetwork();
+		new CreateVehiclesForSchedule(scenario.getTransitSchedule(), scenario.getTransitVehicles()).run();
+
+		Map<String, Departure> departures = new HashMap<>();
+		scenario.getTransitSchedule().getTransitLines().values().stream()
+				.flatMap(line -> line.getRoutes().values().stream())
+				.flatMap(route -> route.getDepartures().values().stream())
+				.forEach(departure -> departures.put(departure.getId().toString(), departure));
+		Assertions.assertEquals("1_0", departures.get("AB1_0").getAttributes().getAttribute(GtfsConverter.BLOCK_ID));
+		Assertions.assertNull(departures.get("CITY1_0").getAttributes().getAttribute(GtfsConverter.BLOCK_ID));
+
+		CreateVehicleCirculation.createFromGtfsBlocks(scenario, 60, false, CreateVehicleCirculation.BlockingMode.greedy, 2);
+
+		// block 1 continues on another line
+		Assertions.assertEquals("pt_block_1_0", departures.get("AB1_0").getVehicleId().toString());
+		Assertions.assertEquals(departures.get("AB1_0").getVehicleId(), departures.get("BFC1_0").getVehicleId());
+		Assertions.assertEquals(departures.get("BFC2_0").getVehicleId(), departures.get("AB2_0").getVehicleId());
+		for (Departure departure : departures.values()) {
+			Assertions.assertTrue(scenario.getTransitVehicles().getVehicles().containsKey(departure.getVehicleId()));
+		}
+	}
+
+	@Test
+	public void testInfeasibleGtfsBlockUsesNewVehicle() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitStopFacility a = addStop(schedule, "a", 0);
+		TransitStopFacility b = addStop(schedule, "b", 5000);
+		// the vehicle of blue arrives at a at 08:50, after green departs
+		addLine(schedule, "red", a, b, 8 * 3600);
+		addLine(schedule, "blue", b, a, 8 * 3600 + 30 * 60);
+		addLine(schedule, "green", a, b, 8 * 3600 + 40 * 60);
+		Map<String, Departure> departures = new HashMap<>();
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			Departure departure = line.getRoutes().values().iterator().next().getDepartures().values().iterator().next();
+			departure.getAttributes().putAttribute(GtfsConverter.BLOCK_ID, "x");
+			departures.put(line.getId().toString(), departure);
+		}
+		new CreateVehiclesForSchedule(schedule, scenario.getTransitVehicles()).run();
+
+		Map<Id<Vehicle>, VehicleType> vehicles = new HashMap<>();
+		CreateVehicleCirculation.commitGtfsBlocks(new ArrayList<>(schedule.getTransitLines().values()), scenario.getTransitVehicles(), vehicles,
+				new CreateVehicleCirculation.DeadheadLinks(scenario.getNetwork(), 10), 60, false);
+
+		Assertions.assertEquals("pt_block_x", departures.get("red").getVehicleId().toString());
+		Assertions.assertEquals("pt_block_x", departures.get("blue").getVehicleId().toString());
+		Assertions.assertEquals("pt_block_x.1", departures.get("green").getVehicleId().toString(), "Infeasible link of the block was kept");
+		Assertions.assertEquals(2, vehicles.size());
+	}
+
+	@Test
+	public void testMultiDay() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitStopFacility a = addStop(schedule, "a", 0);
+		TransitStopFacility b = addStop(schedule, "b", 5000);
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitLine line = f.createTransitLine(Id.create("red", TransitLine.class));
+		TransitRoute outbound = f.createTransitRoute(Id.create("out", TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(b, 20 * 60, 20 * 60)), "bus");
+		TransitRoute inbound = f.createTransitRoute(Id.create("in", TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(b, 0, 0), f.createTransitRouteStop(a, 20 * 60, 20 * 60)), "bus");
+		line.addRoute(outbound);
+		line.addRoute(inbound);
+		schedule.addTransitLine(line);
+
+		// a late departure, an early one on the way back the next morning and the same on the second day
+		outbound.addDeparture(f.createDeparture(Id.create("late", Departure.class), 23 * 3600));
+		inbound.addDeparture(f.createDeparture(Id.create("early", Departure.class), 5 * 3600));
+		outbound.addDeparture(f.createDeparture(Id.create("late_86400", Departure.class), 23 * 3600 + 86400));
+		inbound.addDeparture(f.createDeparture(Id.create("early_86400", Departure.class), 5 * 3600 + 86400));
+
+		CreateVehicleCirculation.Blocking twoDays = CreateVehicleCirculation.computeMultiDayBlocking(line, 60, false);
+		Assertions.assertEquals(1, twoDays.vehicles(), "The vehicle of the first day should continue on the second day");
+
+		// one day with only the late departure and its copy at the start of the day, which ends at the other terminal
+		for (String id : List.of("early", "early_86400")) {
+			inbound.removeDeparture(inbound.getDepartures().get(Id.create(id, Departure.class)));
+		}
+		outbound.removeDeparture(outbound.getDepartures().get(Id.create("late_86400", Departure.class)));
+		TransitSchedulePostProcessTools.copyLateDeparturesToStartOfDay(schedule, 22 * 3600, null, true);
+
+		CreateVehicleCirculation.Blocking copied = CreateVehicleCirculation.computeMultiDayBlocking(line, 60, false);
+		Assertions.assertEquals(2, copied.greedyVehicles());
+		Assertions.assertEquals(1, copied.vehicles(), "Copied departure and its original should share the vehicle");
+	}
+
+	@Test
+	public void testMultiDayMergeNeedsDeadheadTime() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		// driving empty from b back to a takes more than a day
+		TransitStopFacility a = addStop(schedule, "a", 0);
+		TransitStopFacility b = addStop(schedule, "b", 1_000_000);
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitLine line = f.createTransitLine(Id.create("red", TransitLine.class));
+		TransitRoute outbound = f.createTransitRoute(Id.create("out", TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(b, 20 * 60, 20 * 60)), "bus");
+		line.addRoute(outbound);
+		schedule.addTransitLine(line);
+		outbound.addDeparture(f.createDeparture(Id.create("late", Departure.class), 23 * 3600));
+		TransitSchedulePostProcessTools.copyLateDeparturesToStartOfDay(schedule, 22 * 3600, null, true);
+
+		CreateVehicleCirculation.Blocking copied = CreateVehicleCirculation.computeMultiDayBlocking(line, 60, false);
+		Assertions.assertEquals(2, copied.vehicles(), "The vehicle of the copy cannot reach the start of its original in time");
+	}
+
+	@Test
+	public void testVehicleIdsMatchBaseline() {
+		for (long seed = 0; seed < 5; seed++) {
+			Scenario scenario = createRandomScenario(seed, 2, false);
+			Map<String, String> expected = getBaselineVehicleIds(scenario.getTransitSchedule(), 300);
+
+			CreateVehicleCirculation.create(scenario, 300, false, CreateVehicleCirculation.BlockingMode.greedy, 2);
+
+			Assertions.assertEquals(expected, getVehicleIds(scenario.getTransitSchedule()), "Vehicle ids differ for seed " + seed);
+		}
+	}
+
+	@Test
+	public void testDepartureIndexMatchesBaseline() {
+		for (long seed = 0; seed < 5; seed++) {
+			Scenario scenario = createRandomScenario(seed, 4, false);
+			for (TransitLine line : scenario.getTransitSchedule().getTransitLines().values()) {
+				Map<Departure, CreateVehicleCirculation.DepartureInfo> departureIndex = CreateVehicleCirculation.getDepartureIndex(line);
+				for (TransitRoute route : line.getRoutes().values()) {
+					for (Departure departure : route.getDepartures().values()) {
+						CreateVehicleCirculation.DepartureInfo info = departureIndex.get(departure);
+						Assertions.assertSame(CreateVehicleCirculation.getRouteFromDeparture(line, departure), info.route());
+						Assertions.assertSame(line, info.line());
+						Assertions.assertSame(route.getStops().get(0), info.firstStop());
+						Assertions.assertSame(route.getStops().get(route.getStops().size() - 1), info.lastStop());
+					}
+				}
+			}
+
+			Map<String, String> expected = getBaselineVehicleIds(scenario.getTransitSchedule(), 300);
+			CreateVehicleCirculation.create(scenario, 300, false, CreateVehicleCirculation.BlockingMode.greedy, 2);
+			Assertions.assertEquals(expected, getVehicleIds(scenario.getTransitSchedule()), "Vehicle ids differ for seed " + seed);
+		}
+	}
+
+	@Test
+	public void testTiesAreOrderedAsInBaseline() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitStopFacility a = addStop(schedule, "a", 0);
+		TransitStopFacility b = addStop(schedule, "b", 5000);
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitLine line = f.createTransitLine(Id.create("red", TransitLine.class));
+		TransitRoute outbound = f.createTransitRoute(Id.create("out", TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(b, 20 * 60, 20 * 60)), "bus");
+		TransitRoute inbound = f.createTransitRoute(Id.create("in", TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(b, 0, 0), f.createTransitRouteStop(a, 20 * 60, 20 * 60)), "bus");
+		line.addRoute(outbound);
+		line.addRoute(inbound);
+		schedule.addTransitLine(line);
+		outbound.addDeparture(f.createDeparture(Id.create("x", Departure.class), 8 * 3600));
+		inbound.addDeparture(f.createDeparture(Id.create("10", Departure.class), 9 * 3600));
+		inbound.addDeparture(f.createDeparture(Id.create("9", Departure.class), 9 * 3600));
+
+		CreateVehicleCirculation.SortedDepartures sorted = CreateVehicleCirculation.getSortedDeparturesOnLine(line);
+		Assertions.assertEquals(List.of("x", "9", "10"), Arrays.stream(sorted.departures).map(d -> d.getId().toString()).toList(),
+				"Ids of departures at the same time should be compared as zero-padded strings");
+		Assertions.assertTrue(CreateVehicleCirculation.compareDepartureIds("b", "aa") < 0);
+		Assertions.assertTrue(CreateVehicleCirculation.compareDepartureIds("a".repeat(21), "b") > 0);
+		Assertions.assertEquals(0, CreateVehicleCirculation.compareDepartureIds("9", "9"));
+
+		// random schedules with many departures at the same time
+		for (long seed = 0; seed < 5; seed++) {
+			Scenario scenario = createRandomScenario(seed, 3, true);
+			Map<String, String> expected = getBaselineVehicleIds(scenario.getTransitSchedule(), 300);
+			CreateVehicleCirculation.create(scenario, 300, false, CreateVehicleCirculation.BlockingMode.greedy, 2);
+			Assertions.assertEquals(expected, getVehicleIds(scenario.getTransitSchedule()), "Vehicle ids differ for seed " + seed);
+		}
+	}
+
+	/**
+	 * Three lines with random but reproducible routes and departures between the stations a, b and c. Each station has two
+	 * facilities with the same name, routes have intermediate stops up to the given number of stops. Departure times are
+	 * distinct per line, or on a half-hour grid so that departures share their time.
+	 */
+	private static Scenario createRandomScenario(long seed, int maxStops, boolean ties) {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitStopFacility[][] stations = new TransitStopFacility[3][2];
+		for (int s = 0; s < 3; s++) {
+			for (int k = 0; k < 2; k++) {
+				String name = String.valueOf((char) ('a' + s));
+				stations[s][k] = f.createTransitStopFacility(Id.create(name + k, TransitStopFacility.class), new Coord(s * 5000, k * 100), false);
+				stations[s][k].setName(name);
+				schedule.addStopFacility(stations[s][k]);
+			}
+		}
+
+		Random random = new Random(seed);
+		for (int l = 0; l < 3; l++) {
+			TransitLine line = f.createTransitLine(Id.create("line" + l, TransitLine.class));
+			schedule.addTransitLine(line);
+			Set<Integer> times = new HashSet<>();
+			for (int r = 0; r < 4; r++) {
+				int from = random.nextInt(3);
+				int to = (from + 1 + random.nextInt(2)) % 3;
+				int travelTime = 600 + random.nextInt(1800);
+				List<TransitRouteStop> stops = new ArrayList<>();
+				stops.add(f.createTransitRouteStop(stations[from][random.nextInt(2)], 0, 0));
+				int intermediateStops = random.nextInt(maxStops - 1);
+				for (int i = 1; i <= intermediateStops; i++) {
+					int offset = travelTime * i / (intermediateStops + 1);
+					stops.add(f.createTransitRouteStop(stations[3 - from - to][random.nextInt(2)], offset, offset + 30));
+				}
+				stops.add(f.createTransitRouteStop(stations[to][random.nextInt(2)], travelTime, travelTime + random.nextInt(120)));
+				TransitRoute route = f.createTransitRoute(Id.create(line.getId() + "_" + r, TransitRoute.class), null, stops, "bus");
+				for (int d = 0; d < 30; d++) {
+					int time;
+					do {
+						time = ties ? 5 * 3600 + random.nextInt(36) * 1800 : 5 * 3600 + random.nextInt(18 * 3600);
+					} while (!ties && !times.add(time));
+					route.addDeparture(f.createDeparture(Id.create(route.getId() + "_" + d, Departure.class), time));
+				}
+				line.addRoute(route);
+			}
+		}
+		new CreatePseudoNetwork(schedule, scenario.getNetwork(), "pt_").createNetwork();
+		new CreateVehiclesForSchedule(schedule, scenario.getTransitVehicles()).run();
+		return scenario;
+	}
+
+	/**
+	 * Vehicle ids of the original vehicle circulation, which scans all departures of the line ordered by zero-padded time and id
+	 * for the first unserved departure from the end station, compared by name.
+	 */
+	private static Map<String, String> getBaselineVehicleIds(TransitSchedule schedule, int minWaitTimeAtEndStation) {
+		Map<String, String> vehicleIds = new HashMap<>();
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			TreeMap<String, Departure> departures = new TreeMap<>();
+			Map<Departure, TransitRoute> routes = new IdentityHashMap<>();
+			for (TransitRoute route : line.getRoutes().values()) {
+				for (Departure departure : route.getDepartures().values()) {
+					departures.put(String.format("%07d", (int) departure.getDepartureTime())
+							+ "0".repeat(Math.max(0, 20 - departure.getId().toString().length())) + departure.getId(), departure);
+					routes.put(departure, route);
+				}
+			}
+
+			int iterator = 0;
+			for (Departure departure : departures.values()) {
+				String vehicleId = vehicleIds.get(departure.getId().toString());
+				if (vehicleId == null) {
+					vehicleId = "pt_" + line.getId() + "_umlauf_" + iterator++;
+					vehicleIds.put(departure.getId().toString(), vehicleId);
+				}
+				List<TransitRouteStop> stops = routes.get(departure).getStops();
+				TransitRouteStop endStop = stops.get(stops.size() - 1);
+				double earliestDeparture = endStop.getDepartureOffset().seconds() + minWaitTimeAtEndStation + departure.getDepartureTime();
+				for (Departure next : departures.values()) {
+					if (vehicleIds.containsKey(next.getId().toString())) continue;
+					String startStopName = routes.get(next).getStops().get(0).getStopFacility().getName();
+					if (startStopName.equals(endStop.getStopFacility().getName()) && next.getDepartureTime() > earliestDeparture) {
+						vehicleIds.put(next.getId().toString(), vehicleId);
+						break;
+					}
+				}
+			}
+		}
+		return vehicleIds;
+	}
+
+	private static Map<String, String> getVehicleIds(TransitSchedule schedule) {
+		Map<String, String> vehicleIds = new HashMap<>();
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+				for (Departure departure : route.getDepartures().values()) {
+					vehicleIds.put(departure.getId().toString(), departure.getVehicleId().toString());
+				}
+			}
+		}
+		return vehicleIds;
+	}
+
+	private static TransitStopFacility addStop(TransitSchedule schedule, String id, double x) {
+		TransitStopFacility stop = schedule.getFactory().createTransitStopFacility(Id.create(id, TransitStopFacility.class), new Coord(x, 0), false);
+		stop.setName(id);
+		schedule.addStopFacility(stop);
+		return stop;
+	}
+
+	private static void addLine(TransitSchedule schedule, String id, TransitStopFacility from, TransitStopFacility to, double departureTime) {
+		TransitScheduleFactory f = schedule.getFactory();
+		List<TransitRouteStop> stops = List.of(f.createTransitRouteStop(from, 0, 0), f.createTransitRouteStop(to, 20 * 60, 20 * 60));
+		TransitRoute route = f.createTransitRoute(Id.create(id, TransitRoute.class), null, stops, "bus");
+		route.addDeparture(f.createDeparture(Id.create(id, Departure.class), departureTime));
+		TransitLine line = f.createTransitLine(Id.create(id, TransitLine.class));
+		line.addRoute(route);
+		schedule.addTransitLine(line);
+	}
+}
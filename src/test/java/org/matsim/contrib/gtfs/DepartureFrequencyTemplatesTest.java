@@ -0,0 +1,144 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+public class DepartureFrequencyTemplatesTest {
+
+	@Test
+	public void testCompressAndExpand() {
+		TransitSchedule schedule = createSchedule();
+		TransitRoute route = getRoute(schedule);
+		List<Double> times = getTimes(route);
+
+		// only the run of 7 departures every 10 minutes is long enough
+		Assertions.assertEquals(7, DepartureFrequencyTemplates.compress(schedule, 4));
+		Assertions.assertEquals("21600.0,600.0,7", route.getAttributes().getAttribute(DepartureFrequencyTemplates.FREQUENCY_TEMPLATES));
+		Assertions.assertEquals(times.size() - 7, route.getDepartures().size());
+		Assertions.assertEquals(0, DepartureFrequencyTemplates.compress(schedule, 4), "Compressed routes should be skipped");
+
+		Assertions.assertEquals(7, DepartureFrequencyTemplates.expand(schedule));
+		Assertions.assertNull(route.getAttributes().getAttribute(DepartureFrequencyTemplates.FREQUENCY_TEMPLATES));
+		Assertions.assertEquals(times, getTimes(route));
+	}
+
+	@Test
+	public void testAttributesAreKept() {
+		TransitSchedule schedule = createSchedule();
+		TransitRoute route = getRoute(schedule);
+		List<Double> times = getTimes(route);
+
+		// runs of 3 are compressed as well, copied departures in their own template
+		Assertions.assertEquals(13, DepartureFrequencyTemplates.compress(schedule, 3));
+		Assertions.assertEquals("-85800.0,600.0,3,-1;21600.0,600.0,7;28800.0,1200.0,3",
+				route.getAttributes().getAttribute(DepartureFrequencyTemplates.FREQUENCY_TEMPLATES));
+		Assertions.assertTrue(route.getDepartures().containsKey(Id.create("block", Departure.class)),
+				"Departure with a block id should not be compressed");
+
+		Assertions.assertEquals(13, DepartureFrequencyTemplates.expand(schedule));
+		Assertions.assertEquals(times, getTimes(route));
+		Assertions.assertEquals(3, route.getDepartures().values().stream()
+				.filter(d -> Integer.valueOf(-1).equals(d.getAttributes().getAttribute(TransitSchedulePostProcessTools.DAY_SHIFT)))
+				.count());
+		Assertions.assertEquals("b1", route.getDepartures().get(Id.create("block", Departure.class))
+				.getAttributes().getAttribute(GtfsConverter.BLOCK_ID));
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> DepartureFrequencyTemplates.compress(schedule, 2));
+	}
+
+	@Test
+	public void testRepeatedCompression() {
+		TransitSchedule schedule = createSchedule();
+		TransitRoute route = getRoute(schedule);
+		List<Double> times = getTimes(route);
+		DepartureFrequencyTemplates.compress(schedule, 4);
+		DepartureFrequencyTemplates.expand(schedule);
+		Assertions.assertTrue(route.getDepartures().containsKey(Id.create("route_freq_21600", Departure.class)));
+
+		// the expanded departures at 06:00 and 06:30 are changed and not compressed again, only 06:40 to 07:00 and the copies are
+		Departure first = route.getDepartures().get(Id.create("route_freq_21600", Departure.class));
+		first.setVehicleId(Id.createVehicleId("vehicle"));
+		route.getDepartures().get(Id.create("route_freq_23400", Departure.class)).getAttributes().putAttribute("changed", true);
+		Assertions.assertEquals(9, DepartureFrequencyTemplates.compress(schedule, 3));
+		Assertions.assertEquals("-85800.0,600.0,3,-1;24000.0,600.0,3;28800.0,1200.0,3",
+				route.getAttributes().getAttribute(DepartureFrequencyTemplates.FREQUENCY_TEMPLATES));
+
+		Assertions.assertEquals(9, DepartureFrequencyTemplates.expand(schedule));
+		Assertions.assertEquals(times, getTimes(route));
+		Assertions.assertSame(first, route.getDepartures().get(Id.create("route_freq_21600", Departure.class)));
+		Assertions.assertTrue(route.getDepartures().containsKey(Id.create("route_freq_-85800", Departure.class)));
+	}
+
+	/**
+	 * One route with a run of 7 departures every 10 minutes from 06:00, a departure with block id at 06:05, a single departure
+	 * at 07:25, a run of 3 departures every 20 minutes from 08:00 and 3 copied departures every 10 minutes from 00:10 of the
+	 * previous day.
+	 */
+	private static TransitSchedule createSchedule() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitStopFacility a = f.createTransitStopFacility(Id.create("a", TransitStopFacility.class), new Coord(0, 0), false);
+		TransitStopFacility b = f.createTransitStopFacility(Id.create("b", TransitStopFacility.class), new Coord(1000, 0), false);
+		schedule.addStopFacility(a);
+		schedule.addStopFacility(b);
+		TransitRoute route = f.createTransitRoute(Id.create("route", TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(b, 300, 300)), "bus");
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		line.addRoute(route);
+		schedule.addTransitLine(line);
+
+		for (int i = 0; i < 7; i++) {
+			route.addDeparture(f.createDeparture(Id.create("regular" + i, Departure.class), 6 * 3600 + i * 600));
+		}
+		Departure block = f.createDeparture(Id.create("block", Departure.class), 6 * 3600 + 300);
+		block.getAttributes().putAttribute(GtfsConverter.BLOCK_ID, "b1");
+		route.addDeparture(block);
+		route.addDeparture(f.createDeparture(Id.create("single", Departure.class), 7 * 3600 + 25 * 60));
+		for (int i = 0; i < 3; i++) {
+			route.addDeparture(f.createDeparture(Id.create("sparse" + i, Departure.class), 8 * 3600 + i * 1200));
+			Departure copy = f.createDeparture(Id.create("copy" + i, Departure.class), 600 + i * 600 - 24 * 3600);
+			copy.getAttributes().putAttribute(TransitSchedulePostProcessTools.DAY_SHIFT, -1);
+			route.addDeparture(copy);
+		}
+		return schedule;
+	}
+
+	private static TransitRoute getRoute(TransitSchedule schedule) {
+		return schedule.getTransitLines().get(Id.create("line", TransitLine.class)).getRoutes().get(Id.create("route", TransitRoute.class));
+	}
+
+	private static List<Double> getTimes(TransitRoute route) {
+		return route.getDepartures().values().stream().map(Departure::getDepartureTime).sorted().toList();
+	}
+}
@@ -1,23 +1,46 @@
 package org.matsim.contrib.gtfs;
 
+import com.conveyal.gtfs.GTFSFeed;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.transformations.IdentityTransformation;
 import org.matsim.core.utils.geometry.transformations.TransformationFactory;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
 import org.matsim.pt.transitSchedule.api.TransitScheduleWriter;
 import org.matsim.testcases.MatsimTestUtils;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 public class GtfsConverterTest {
 
     @RegisterExtension
     public MatsimTestUtils utils = new MatsimTestUtils();
 
+    @TempDir
+    Path tempDir;
+
     @Test
     public void testConverterWithNonRegularCharacter(){
 
@@ -46,4 +69,98 @@ public class GtfsConverterTest {
 
         Scenario scenario1 = ScenarioUtils.loadScenario(config);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testServiceTimeWindow() {
+        Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        GtfsConverter.newBuilder()
+                .setScenario(scenario)
+                .setTransform(new IdentityTransformation())
+                .setFeed(GTFSFeed.fromFile("test/input/sample-feed.zip"))
+                .setDate(LocalDate.of(2007, 1, 6))
+                .addServiceTimeWindow(4 * 3600, 10 * 3600)
+                .build()
+                .convert();
+
+        TransitSchedule schedule = scenario.getTransitSchedule();
+        List<Departure> departures = new ArrayList<>();
+        for (TransitLine line : schedule.getTransitLines().values()) {
+            for (TransitRoute route : line.getRoutes().values()) {
+                Assertions.assertFalse(route.getDepartures().isEmpty(), "Route without departures in the window was created");
+                departures.addAll(route.getDepartures().values());
+            }
+        }
+        for (Departure departure : departures) {
+            Assertions.assertTrue(departure.getDepartureTime() >= 4 * 3600 && departure.getDepartureTime() < 10 * 3600,
+                    "Departure " + departure.getId() + " is outside of the service time window");
+        }
+
+        // AAMV2 departs at 10:00 and AAMV3 and AAMV4 later, so only AAMV1 is left
+        Assertions.assertEquals(1, schedule.getTransitLines().get(Id.create("50---AAMV", TransitLine.class)).getRoutes().size());
+        // the shuttle runs every 30 minutes from 6:00
+        Assertions.assertEquals(8, departures.stream().filter(d -> d.getId().toString().startsWith("STBA")).count());
+        Assertions.assertTrue(departures.stream().anyMatch(d -> d.getId().toString().equals("AB1_0")));
+        Assertions.assertTrue(departures.stream().noneMatch(d -> d.getId().toString().equals("AB2_0")));
+    }
+
+    @Test
+    public void testRouteOffsetTolerance() throws IOException {
+        // AB3 deviates by 60s from AB1, AB4 by 20 minutes, all of them serve the same stops
+        Path feed = tempDir.resolve("variants.zip");
+        writeFeedWithTrips(feed, List.of("AB,FULLW,AB3,to Bullfrog,0,,", "AB,FULLW,AB4,to Bullfrog,0,,"), List.of(
+                "AB3,13:00:00,13:00:00,BEATTY_AIRPORT,1", "AB3,13:11:00,13:16:00,BULLFROG,2",
+                "AB4,14:00:00,14:00:00,BEATTY_AIRPORT,1", "AB4,14:30:00,14:30:00,BULLFROG,2"));
+
+        // without tolerance each variant gets its own route, with the same ids as before the tolerance existed
+        Map<String, String> exact = getRouteIdsOfLineAB(feed, 0);
+        Assertions.assertEquals(Map.of("AB1_0", "10---AB_0", "AB2_0", "10---AB_1", "AB3_0", "10---AB_2", "AB4_0", "10---AB_3"), exact);
+
+        Map<String, String> tolerant = getRouteIdsOfLineAB(feed, 60);
+        Assertions.assertEquals("10---AB_0", tolerant.get("AB3_0"), "Variant within the tolerance should be assigned to the first route");
+        Assertions.assertEquals("10---AB_2", tolerant.get("AB4_0"), "Variant outside the tolerance should keep its own route");
+        Assertions.assertEquals(Map.of("AB1_0", "10---AB_0", "AB2_0", "10---AB_1", "AB3_0", "10---AB_0", "AB4_0", "10---AB_2"), tolerant);
+    }
+
+    private static Map<String, String> getRouteIdsOfLineAB(Path feed, double routeOffsetTolerance) {
+        Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        GtfsConverter.newBuilder()
+                .setScenario(scenario)
+                .setTransform(new IdentityTransformation())
+                .setFeed(GTFSFeed.fromFile(feed.toString()))
+                .setDate(LocalDate.of(2007, 1, 1))
+                .setRouteOffsetTolerance(routeOffsetTolerance)
+                .build()
+                .convert();
+
+        TransitLine line = scenario.getTransitSchedule().getTransitLines().get(Id.create("10---AB", TransitLine.class));
+        Map<String, String> routeIds = new HashMap<>();
+        for (TransitRoute route : line.getRoutes().values()) {
+            for (Departure departure : route.getDepartures().values()) {
+                routeIds.put(departure.getId().toString(), route.getId().toString());
+            }
+        }
+        TransitRoute first = line.getRoutes().get(Id.create("10---AB_0", TransitRoute.class));
+        Assertions.assertEquals(600, first.getStops().get(1).getArrivalOffset().seconds(), "The first route should keep its offsets");
+        return routeIds;
+    }
+
+    /**
+     * Copies the sample feed and appends trips and stop times.
+     */
+    static void writeFeedWithTrips(Path feed, List<String> trips, List<String> stopTimes) throws IOException {
+        try (ZipFile sample = new ZipFile("test/input/sample-feed.zip");
+             ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(feed))) {
+            for (ZipEntry entry : Collections.list(sample.entries())) {
+                String content = new String(sample.getInputStream(entry).readAllBytes(), StandardCharsets.UTF_8).stripTrailing();
+                if (entry.getName().equals("trips.txt")) {
+                    content += "\n" + String.join("\n", trips);
+                } else if (entry.getName().equals("stop_times.txt")) {
+                    content += "\n" + String.join("\n", stopTimes);
+                }
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                out.write((content + "\n").getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+    }
+}
@@ -3,7 +3,9 @@ package org.matsim.contrib.gtfs;
 import com.conveyal.gtfs.GTFSFeed;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.scenario.MutableScenario;
@@ -12,11 +14,18 @@ import org.matsim.core.utils.geometry.transformations.IdentityTransformation;
 import org.matsim.pt.transitSchedule.api.*;
 import org.matsim.pt.utils.CreatePseudoNetwork;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.LocalDate;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class GtfsTest {
 
+    @TempDir
+    Path tempDir;
+
     @Test
     public void testGtfsStandardConversion() {
         Config config = ConfigUtils.createConfig();
@@ -142,6 +151,125 @@ public class GtfsTest {
     }
 
 
+    @Test
+    public void testRouteStopPool() {
+        Config config = ConfigUtils.createConfig();
+        config.transit().setUseTransit(true);
+        MutableScenario scenario = (MutableScenario) ScenarioUtils.createScenario(config);
+        TransitRouteStopPool pool = new TransitRouteStopPool();
+
+        GtfsConverter converter = GtfsConverter.newBuilder()
+                .setScenario(scenario)
+                .setTransform(new IdentityTransformation())
+                .setFeed(GTFSFeed.fromFile("test/input/sample-feed.zip"))
+                .setDate(LocalDate.of(2007, 1, 1))
+                .setRouteStopPool(pool)
+                .build();
+
+        converter.convert();
+        checkSchedule(scenario, false);
+
+        int departures = scenario.getTransitSchedule().getTransitLines().values()
+                .stream()
+                .flatMap(transitLine -> transitLine.getRoutes().values().stream())
+                .mapToInt(r -> r.getDepartures().values().size()).sum();
+        Assertions.assertEquals(140, departures);
+
+        // 7 trips run on that day, with 20 route stops. Only the first stops of AB2 and BFC1 are equal, both leave BULLFROG at offset 0.
+        // Frequency based trips keep their absolute times, so they share nothing.
+        Assertions.assertEquals(7, pool.getRequestedSequences());
+        Assertions.assertEquals(20, pool.getRequestedRouteStops());
+        Assertions.assertEquals(19, pool.getDistinctRouteStops());
+
+        List<TransitRoute> routesFromBullfrog = scenario.getTransitSchedule().getTransitLines().values().stream()
+                .flatMap(line -> line.getRoutes().values().stream())
+                .filter(route -> route.getStops().get(0).getStopFacility().getId().toString().equals("BULLFROG"))
+                .toList();
+        Assertions.assertEquals(2, routesFromBullfrog.size());
+        Assertions.assertSame(routesFromBullfrog.get(0).getStops().get(0), routesFromBullfrog.get(1).getStops().get(0),
+                "Routes of different lines should share the equal route stop");
+        Assertions.assertNotSame(routesFromBullfrog.get(0).getStops().get(1), routesFromBullfrog.get(1).getStops().get(1));
+    }
+
+    @Test
+    public void testRouteStopPoolWithPseudoNetwork() throws IOException {
+        // X1 and X2 arrive at BULLFROG at the same offset, but from different stops, so they reach it on different links
+        Path feed = tempDir.resolve("pooled.zip");
+        GtfsConverterTest.writeFeedWithTrips(feed, List.of("AB,FULLW,X1,to Bullfrog,0,,", "AB,FULLW,X2,to Bullfrog,0,,"), List.of(
+                "X1,13:00:00,13:00:00,BEATTY_AIRPORT,1", "X1,13:20:00,13:20:00,BULLFROG,2",
+                "X2,14:00:00,14:00:00,FUR_CREEK_RES,1", "X2,14:20:00,14:20:00,BULLFROG,2"));
+        Config config = ConfigUtils.createConfig();
+        config.transit().setUseTransit(true);
+        MutableScenario scenario = (MutableScenario) ScenarioUtils.createScenario(config);
+        TransitRouteStopPool pool = new TransitRouteStopPool();
+
+        GtfsConverter.newBuilder()
+                .setScenario(scenario)
+                .setTransform(new IdentityTransformation())
+                .setFeed(GTFSFeed.fromFile(feed.toString()))
+                .setDate(LocalDate.of(2007, 1, 1))
+                .setRouteStopPool(pool)
+                .build()
+                .convert();
+        new CreatePseudoNetwork(scenario.getTransitSchedule(), scenario.getNetwork(), "pt_").createNetwork();
+
+        for (TransitLine line : scenario.getTransitSchedule().getTransitLines().values()) {
+            for (TransitRoute route : line.getRoutes().values()) {
+                Set<Id<Link>> linkIds = new HashSet<>(route.getRoute().getLinkIds());
+                linkIds.add(route.getRoute().getStartLinkId());
+                linkIds.add(route.getRoute().getEndLinkId());
+                for (TransitRouteStop stop : route.getStops()) {
+                    Assertions.assertTrue(linkIds.contains(stop.getStopFacility().getLinkId()),
+                            "Stop " + stop.getStopFacility().getId() + " of route " + route.getId() + " is not on its network route");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLazySchedule() {
+        Config config = ConfigUtils.createConfig();
+        config.transit().setUseTransit(true);
+        MutableScenario scenario = (MutableScenario) ScenarioUtils.createScenario(config);
+
+        GtfsConverter.newBuilder()
+                .setScenario(scenario)
+                .setTransform(new IdentityTransformation())
+                .setFeed(GTFSFeed.fromFile("test/input/sample-feed.zip"))
+                .setStartDate(LocalDate.of(2007, 1, 5))
+                .setEndDate(LocalDate.of(2007, 1, 6))
+                .build()
+                .convert();
+
+        LazyGtfsTransitSchedule lazy = GtfsConverter.newBuilder()
+                .setTransform(new IdentityTransformation())
+                .setFeed(GTFSFeed.fromFile("test/input/sample-feed.zip"))
+                .setStartDate(LocalDate.of(2007, 1, 5))
+                .setEndDate(LocalDate.of(2007, 1, 6))
+                .buildLazySchedule(2);
+
+        TransitSchedule eager = scenario.getTransitSchedule();
+        Assertions.assertEquals(eager.getFacilities().keySet(), lazy.getFacilities().keySet());
+        Assertions.assertEquals(eager.getTransitLines().keySet(), lazy.getTransitLines().keySet());
+        Assertions.assertEquals(0, lazy.getConvertedLines(), "Lines must not be converted before they are accessed");
+
+        for (TransitLine line : eager.getTransitLines().values()) {
+            TransitLine lazyLine = lazy.getTransitLines().get(line.getId());
+            Assertions.assertEquals(line.getName(), lazyLine.getName());
+            Assertions.assertEquals(line.getRoutes().keySet(), lazyLine.getRoutes().keySet());
+            for (TransitRoute route : line.getRoutes().values()) {
+                TransitRoute lazyRoute = lazyLine.getRoutes().get(route.getId());
+                Assertions.assertEquals(route.getStops(), lazyRoute.getStops());
+                Assertions.assertEquals(route.getDepartures().keySet(), lazyRoute.getDepartures().keySet());
+            }
+        }
+        Assertions.assertEquals(eager.getTransitLines().size(), lazy.getConvertedLines());
+
+        // first line was evicted and has to be converted again
+        lazy.getTransitLines().get(eager.getTransitLines().keySet().iterator().next());
+        Assertions.assertEquals(eager.getTransitLines().size() + 1, lazy.getConvertedLines());
+    }
+
     @Test
     public void testFilterRouteType() {
 
@@ -0,0 +1,110 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.List;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+public class LinkTravelTimeCalibratorTest {
+
+	@Test
+	public void testFreespeedFollowsSchedule() {
+		Scenario scenario = createScenario();
+		int calibrated = new LinkTravelTimeCalibrator(scenario.getTransitSchedule(), scenario.getNetwork()).setNumberOfThreads(2).run();
+
+		Assertions.assertEquals(2, calibrated, "The link of the first stop is not traversed between stops");
+		// the faster route takes 100s for 400m, distributed by length
+		Assertions.assertEquals(4.0, getLink(scenario, "b").getFreespeed(), 1e-9);
+		Assertions.assertEquals(4.0, getLink(scenario, "c").getFreespeed(), 1e-9);
+		Assertions.assertEquals(13.9, getLink(scenario, "a").getFreespeed(), 1e-9);
+	}
+
+	@Test
+	public void testPercentile() {
+		Scenario scenario = createScenario();
+		new LinkTravelTimeCalibrator(scenario.getTransitSchedule(), scenario.getNetwork())
+				.setPercentile(1.0)
+				.setLinkFilter(link -> !link.getId().toString().equals("c"))
+				.run();
+
+		Assertions.assertEquals(2.0, getLink(scenario, "b").getFreespeed(), 1e-9, "The slower route should be used");
+		Assertions.assertEquals(13.9, getLink(scenario, "c").getFreespeed(), 1e-9, "Filtered link should not be changed");
+
+		DoubleArrayList values = DoubleArrayList.of(4, 1, 3, 2);
+		Assertions.assertEquals(1, LinkTravelTimeCalibrator.getPercentile(values, 0));
+		Assertions.assertEquals(2, LinkTravelTimeCalibrator.getPercentile(values, 0.5));
+		Assertions.assertEquals(3, LinkTravelTimeCalibrator.getPercentile(values, 0.6));
+		Assertions.assertEquals(4, LinkTravelTimeCalibrator.getPercentile(values, 1));
+	}
+
+	private static Scenario createScenario() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		Network network = scenario.getNetwork();
+		Node n0 = NetworkUtils.createAndAddNode(network, Id.createNodeId("0"), new Coord(0, 0));
+		Node n1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(100, 0));
+		Node n2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(400, 0));
+		Node n3 = NetworkUtils.createAndAddNode(network, Id.createNodeId("3"), new Coord(500, 0));
+		Link a = NetworkUtils.createAndAddLink(network, Id.createLinkId("a"), n0, n1, 100, 13.9, 1000, 1);
+		Link b = NetworkUtils.createAndAddLink(network, Id.createLinkId("b"), n1, n2, 300, 13.9, 1000, 1);
+		Link c = NetworkUtils.createAndAddLink(network, Id.createLinkId("c"), n2, n3, 100, 13.9, 1000, 1);
+
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitStopFacility from = f.createTransitStopFacility(Id.create("from", TransitStopFacility.class), n1.getCoord(), false);
+		from.setLinkId(a.getId());
+		TransitStopFacility to = f.createTransitStopFacility(Id.create("to", TransitStopFacility.class), n3.getCoord(), false);
+		to.setLinkId(c.getId());
+		schedule.addStopFacility(from);
+		schedule.addStopFacility(to);
+
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		schedule.addTransitLine(line);
+		// a segment without time, as in feeds with times in minutes, is ignored
+		for (int time : new int[] {100, 200, 0}) {
+			TransitRoute route = f.createTransitRoute(Id.create("route" + time, TransitRoute.class),
+					RouteUtils.createLinkNetworkRouteImpl(a.getId(), List.of(b.getId()), c.getId()),
+					List.of(f.createTransitRouteStop(from, 0, 0), f.createTransitRouteStop(to, time, time)), "bus");
+			line.addRoute(route);
+		}
+		return scenario;
+	}
+
+	private static Link getLink(Scenario scenario, String id) {
+		return scenario.getNetwork().getLinks().get(Id.createLinkId(id));
+	}
+}
@@ -0,0 +1,77 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class MinimumFleetBlockingTest {
+
+	@Test
+	public void testMinimumFleet() {
+		// departure 0 can be followed by 2 or 3, departure 1 only by 2. Taking the first candidate would leave departure 1 without successor.
+		int[] blockOffsets = {0, 1, 2, 2, 2};
+		int[][] blockPositions = {{2, 3}, {1, 2}};
+		int[] blockFrom = {0, 1};
+		int[] blockTo = {2, 2};
+
+		int[] successors = MinimumFleetBlocking.computeSuccessors(4, blockOffsets, blockPositions, blockFrom, blockTo);
+
+		Assertions.assertArrayEquals(new int[] {3, 2, -1, -1}, successors);
+		Assertions.assertEquals(2, CreateVehicleCirculation.countVehicles(successors));
+	}
+
+	@Test
+	public void testBlocksAreBounded() {
+		// as above, but departure 0 may only be followed by 2, so one of departures 0 and 1 has no successor
+		int[] blockOffsets = {0, 1, 2, 2, 2};
+		int[][] blockPositions = {{2, 3}, {1, 2}};
+		int[] blockFrom = {0, 1};
+		int[] blockTo = {1, 2};
+
+		int[] successors = MinimumFleetBlocking.computeSuccessors(4, blockOffsets, blockPositions, blockFrom, blockTo);
+
+		Assertions.assertEquals(3, CreateVehicleCirculation.countVehicles(successors));
+		Assertions.assertNotEquals(3, successors[0], "Departure outside of the block was used");
+	}
+
+	@Test
+	public void testChain() {
+		// every departure can be followed by all later ones, so one vehicle is enough
+		int n = 50;
+		int[] positions = new int[n];
+		int[] blockOffsets = new int[n + 1];
+		int[] blockFrom = new int[n];
+		int[] blockTo = new int[n];
+		int[][] blockPositions = new int[n][];
+		for (int i = 0; i < n; i++) {
+			positions[i] = i;
+			blockOffsets[i] = i;
+			blockPositions[i] = positions;
+			blockFrom[i] = i + 1;
+			blockTo[i] = n;
+		}
+		blockOffsets[n] = n;
+
+		int[] successors = MinimumFleetBlocking.computeSuccessors(n, blockOffsets, blockPositions, blockFrom, blockTo);
+
+		Assertions.assertEquals(1, CreateVehicleCirculation.countVehicles(successors));
+	}
+}
@@ -0,0 +1,132 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+public class NetworkMapMatcherTest {
+
+	@Test
+	public void testRoutesAreMatchedInDrivingDirection() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		Network network = scenario.getNetwork();
+		// a two-way road from 0 to 2000m
+		Node n0 = NetworkUtils.createAndAddNode(network, Id.createNodeId("0"), new Coord(0, 0));
+		Node n1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(1000, 0));
+		Node n2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(2000, 0));
+		Link l01 = addLink(network, "01", n0, n1);
+		Link l12 = addLink(network, "12", n1, n2);
+		Link l21 = addLink(network, "21", n2, n1);
+		Link l10 = addLink(network, "10", n1, n0);
+
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitStopFacility a = addStop(schedule, "a", 500);
+		TransitStopFacility b = addStop(schedule, "b", 1500);
+		TransitStopFacility c = addStop(schedule, "c", 1900);
+		TransitStopFacility far = f.createTransitStopFacility(Id.create("far", TransitStopFacility.class), new Coord(10000, 10000), false);
+		schedule.addStopFacility(far);
+
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		schedule.addTransitLine(line);
+		addRoute(f, line, "forward", "bus", List.of(f.createTransitRouteStop(a, 0, 0),
+				f.createTransitRouteStop(b, 120, 120), f.createTransitRouteStop(c, 180, 180)));
+		addRoute(f, line, "backward", "bus", List.of(f.createTransitRouteStop(c, 0, 0),
+				f.createTransitRouteStop(a, 180, 180)));
+		TransitRoute unmatchable = addRoute(f, line, "unmatchable", "bus", List.of(f.createTransitRouteStop(a, 0, 0),
+				f.createTransitRouteStop(far, 600, 600)));
+		TransitRoute rail = addRoute(f, line, "rail", "rail", List.of(f.createTransitRouteStop(b, 0, 0),
+				f.createTransitRouteStop(far, 600, 600)));
+
+		int matched = new NetworkMapMatcher(schedule, network, Map.of()).setNumberOfThreads(2).run();
+
+		Assertions.assertEquals(2, matched);
+		Assertions.assertEquals(List.of("forward", "backward", "unmatchable", "rail"),
+				line.getRoutes().keySet().stream().map(Object::toString).toList(), "Order of the routes was changed");
+		TransitRoute forward = line.getRoutes().get(Id.create("forward", TransitRoute.class));
+		NetworkRoute forwardRoute = forward.getRoute();
+		Assertions.assertEquals(l01.getId(), forwardRoute.getStartLinkId());
+		Assertions.assertTrue(forwardRoute.getLinkIds().isEmpty());
+		Assertions.assertEquals(l12.getId(), forwardRoute.getEndLinkId(), "Stops b and c should share the link");
+
+		// the backward route uses the opposite links, where it gets child facilities instead of a detour
+		TransitRoute backward = line.getRoutes().get(Id.create("backward", TransitRoute.class));
+		NetworkRoute backwardRoute = backward.getRoute();
+		Assertions.assertEquals(l21.getId(), backwardRoute.getStartLinkId());
+		Assertions.assertTrue(backwardRoute.getLinkIds().isEmpty());
+		Assertions.assertEquals(l10.getId(), backwardRoute.getEndLinkId());
+		Assertions.assertEquals("c.link:21", backward.getStops().get(0).getStopFacility().getId().toString());
+		Assertions.assertEquals(l21.getId(), backward.getStops().get(0).getStopFacility().getLinkId());
+		Assertions.assertEquals(180, backward.getStops().get(1).getArrivalOffset().seconds());
+
+		// a and b are also used by routes which are not matched, so they keep their link and all matched routes use child facilities
+		Assertions.assertNull(a.getLinkId());
+		Assertions.assertNull(b.getLinkId());
+		Assertions.assertEquals(l12.getId(), c.getLinkId());
+		Assertions.assertEquals(List.of("a.link:01", "b.link:12", "c"),
+				forward.getStops().stream().map(stop -> stop.getStopFacility().getId().toString()).toList());
+		Assertions.assertEquals("a.link:10", backward.getStops().get(1).getStopFacility().getId().toString());
+
+		Assertions.assertNull(unmatchable.getRoute(), "Route with a stop far from the network should not be matched");
+		Assertions.assertNull(rail.getRoute(), "Route with another mode should not be matched");
+		Assertions.assertSame(b, rail.getStops().get(0).getStopFacility());
+		Assertions.assertTrue(l01.getAllowedModes().contains("bus"), "Used links should allow the mode of the route");
+	}
+
+	private static Link addLink(Network network, String id, Node from, Node to) {
+		Link link = NetworkUtils.createAndAddLink(network, Id.createLinkId(id), from, to, 1000, 13.9, 1000, 1);
+		link.setAllowedModes(Set.of(TransportMode.car));
+		return link;
+	}
+
+	private static TransitStopFacility addStop(TransitSchedule schedule, String id, double x) {
+		TransitStopFacility stop = schedule.getFactory().createTransitStopFacility(Id.create(id, TransitStopFacility.class), new Coord(x, 10), false);
+		schedule.addStopFacility(stop);
+		return stop;
+	}
+
+	private static TransitRoute addRoute(TransitScheduleFactory f, TransitLine line, String id, String mode, List<TransitRouteStop> stops) {
+		TransitRoute route = f.createTransitRoute(Id.create(id, TransitRoute.class), null, stops, mode);
+		line.addRoute(route);
+		return route;
+	}
+}
@@ -0,0 +1,42 @@
+/*********************************************************************** *
+  project: org.matsim.
+
+  ********************************************************************** *
+
+  copyright       : (C) 2020 by the members listed in the COPYING,
+                    LICENSE and WARRANTY file.
+  email           : info at matsim dot org
+
+  ********************************************************************** *
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+    See also COPYING, LICENSE and WARRANTY file
+
+  ********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ParallelRunnerTest {
+
+	@Test
+	public void testCall() {
+		Assertions.assertEquals(4950, ParallelRunner.call(2, () -> IntStream.range(0, 100).parallel().sum()));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> ParallelRunner.call(0, () -> 1));
+	}
+
+	@Test
+	public void testExceptionIsRethrown() {
+		RuntimeException e = Assertions.assertThrows(RuntimeException.class, () -> ParallelRunner.run(2, () -> {
+			throw new IllegalStateException("failed");
+		}));
+		Assertions.assertInstanceOf(IllegalStateException.class, e.getCause());
+	}
+}
@@ -0,0 +1,91 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+public class ShapeNetworkBuilderTest {
+
+	@Test
+	public void testLinksFollowShapes() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitStopFacility a = f.createTransitStopFacility(Id.create("a", TransitStopFacility.class), new Coord(0, 0), false);
+		TransitStopFacility b = f.createTransitStopFacility(Id.create("b", TransitStopFacility.class), new Coord(1000, 0), false);
+		schedule.addStopFacility(a);
+		schedule.addStopFacility(b);
+
+		// the shape makes a detour of 500m to each side
+		Map<String, List<Coord>> shapes = Map.of("detour",
+				List.of(new Coord(0, 10), new Coord(0, 500), new Coord(1000, 500), new Coord(1000, 10)));
+
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		schedule.addTransitLine(line);
+		TransitRoute first = addRoute(f, line, "first", a, b, "detour");
+		TransitRoute second = addRoute(f, line, "second", a, b, "detour");
+		TransitRoute straight = addRoute(f, line, "straight", a, b, null);
+
+		int created = new ShapeNetworkBuilder(schedule, scenario.getNetwork(), shapes, "pt_").setNumberOfThreads(2).run();
+
+		Assertions.assertEquals(2, created, "One link should follow the shape, one should be straight");
+		NetworkRoute firstRoute = first.getRoute();
+		Assertions.assertEquals(a.getLinkId(), firstRoute.getStartLinkId());
+		Assertions.assertEquals(b.getLinkId(), firstRoute.getEndLinkId());
+		Assertions.assertEquals(1, firstRoute.getLinkIds().size());
+		Link detour = scenario.getNetwork().getLinks().get(firstRoute.getLinkIds().get(0));
+		Assertions.assertEquals(1980, detour.getLength(), 1e-6, "Link should have the length of the shape between the stops");
+		Assertions.assertEquals(firstRoute.getLinkIds(), second.getRoute().getLinkIds(), "Routes following the same shape should share the link");
+
+		Link direct = scenario.getNetwork().getLinks().get(straight.getRoute().getLinkIds().get(0));
+		Assertions.assertEquals(1000, direct.getLength(), 1e-6);
+		Assertions.assertEquals(detour.getFromNode(), direct.getFromNode());
+		// each stop gets an entry node, a stop node and a stop link
+		Assertions.assertEquals(4, scenario.getNetwork().getNodes().size());
+		Assertions.assertEquals(4, scenario.getNetwork().getLinks().size());
+	}
+
+	private static TransitRoute addRoute(TransitScheduleFactory f, TransitLine line, String id, TransitStopFacility from,
+			TransitStopFacility to, String shapeId) {
+		TransitRoute route = f.createTransitRoute(Id.create(id, TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(from, 0, 0), f.createTransitRouteStop(to, 300, 300)), "bus");
+		if (shapeId != null) {
+			route.getAttributes().putAttribute(GtfsConverter.SHAPE_ID, shapeId);
+		}
+		line.addRoute(route);
+		return route;
+	}
+}
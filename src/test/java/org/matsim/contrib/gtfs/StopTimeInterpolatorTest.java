@@ -0,0 +1,110 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import static org.matsim.contrib.gtfs.StopTimeInterpolator.MISSING;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class StopTimeInterpolatorTest {
+
+	@Test
+	public void testInterpolationByDistance() {
+		StopTimeInterpolator interpolator = new StopTimeInterpolator(GtfsConverter.BadTripPolicy.fail);
+
+		// shape distances: the untimed stop is at a quarter of the way
+		interpolator.add("a", 1000, 1000, 0, 0, 0);
+		interpolator.add("b", MISSING, MISSING, 250, 0, 0.5);
+		interpolator.add("c", 1400, 1460, 1000, 0, 1);
+		Assertions.assertTrue(interpolator.interpolate("shape"));
+		Assertions.assertEquals(1100, interpolator.getArrival(1));
+		Assertions.assertEquals(1100, interpolator.getDeparture(1));
+		Assertions.assertEquals(1460, interpolator.getDeparture(2));
+
+		// without shape distances the coordinates are used, the untimed stop is in the middle
+		interpolator.clear();
+		interpolator.add("a", 1000, 1000, Double.NaN, 0, 0);
+		interpolator.add("b", MISSING, MISSING, Double.NaN, 0, 0.5);
+		interpolator.add("c", 1400, 1400, Double.NaN, 0, 1);
+		Assertions.assertTrue(interpolator.interpolate("coords"));
+		Assertions.assertEquals(1200, interpolator.getArrival(1));
+		Assertions.assertEquals(3, interpolator.size());
+	}
+
+	@Test
+	public void testBadTripPolicies() {
+		StopTimeInterpolator failing = addTripWithoutLastTime(new StopTimeInterpolator(GtfsConverter.BadTripPolicy.fail));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> failing.interpolate("bad"));
+		failing.clear();
+		addTripWithDecreasingTime(failing);
+		Assertions.assertTrue(failing.interpolate("decreasing"));
+		Assertions.assertEquals(900, failing.getArrival(1), "Decreasing times should be kept by default");
+
+		StopTimeInterpolator dropping = addTripWithoutLastTime(new StopTimeInterpolator(GtfsConverter.BadTripPolicy.drop));
+		Assertions.assertFalse(dropping.interpolate("bad"));
+		Assertions.assertEquals(1, dropping.getDroppedTrips());
+
+		StopTimeInterpolator repairing = addTripWithoutLastTime(new StopTimeInterpolator(GtfsConverter.BadTripPolicy.repair));
+		Assertions.assertTrue(repairing.interpolate("bad"));
+		Assertions.assertEquals(1, repairing.getRepairedTrips());
+		Assertions.assertEquals(1200, repairing.getArrival(2), "The last stop should get the time of the last stop with times");
+
+		// decreasing times are raised to the previous time
+		repairing.clear();
+		addTripWithDecreasingTime(repairing);
+		Assertions.assertTrue(repairing.interpolate("decreasing"));
+		Assertions.assertEquals(1000, repairing.getArrival(1));
+		Assertions.assertEquals(2, repairing.getRepairedTrips());
+
+		// nothing to repair without any time
+		repairing.clear();
+		repairing.add("a", MISSING, MISSING, Double.NaN, 0, 0);
+		repairing.add("b", MISSING, MISSING, Double.NaN, 0, 1);
+		Assertions.assertFalse(repairing.interpolate("untimed"));
+	}
+
+	@Test
+	public void testLongTrip() {
+		StopTimeInterpolator interpolator = new StopTimeInterpolator(GtfsConverter.BadTripPolicy.fail);
+		int n = 100;
+		for (int i = 0; i < n; i++) {
+			int time = i == 0 || i == n - 1 ? i * 60 : MISSING;
+			interpolator.add("s" + i, time, time, Double.NaN, Double.NaN, Double.NaN);
+		}
+		Assertions.assertTrue(interpolator.interpolate("long"));
+		for (int i = 0; i < n; i++) {
+			Assertions.assertEquals(i * 60, interpolator.getArrival(i), "Stops without coordinates should be equally spaced");
+		}
+	}
+
+	private static StopTimeInterpolator addTripWithoutLastTime(StopTimeInterpolator interpolator) {
+		interpolator.add("a", 1000, 1000, Double.NaN, 0, 0);
+		interpolator.add("b", 1200, 1200, Double.NaN, 0, 1);
+		interpolator.add("c", MISSING, MISSING, Double.NaN, 0, 2);
+		return interpolator;
+	}
+
+	private static void addTripWithDecreasingTime(StopTimeInterpolator interpolator) {
+		interpolator.add("a", 1000, 1000, Double.NaN, 0, 0);
+		interpolator.add("b", 900, 900, Double.NaN, 0, 1);
+		interpolator.add("c", 1200, 1200, Double.NaN, 0, 2);
+	}
+}
@@ -0,0 +1,49 @@
+package org.matsim.contrib.gtfs;
+
+import com.conveyal.gtfs.GTFSFeed;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.transformations.IdentityTransformation;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.utils.CreatePseudoNetwork;
+import org.matsim.vehicles.VehicleType;
+
+import java.time.LocalDate;
+import java.util.List;
+
+public class TransitFleetBuilderTest {
+
+	@Test
+	public void testSharedVehicles() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		GtfsConverter.newBuilder()
+				.setScenario(scenario)
+				.setTransform(new IdentityTransformation())
+				.setFeed(GTFSFeed.fromFile("test/input/sample-feed.zip"))
+				.setStartDate(LocalDate.of(2007, 1, 1))
+				.setEndDate(LocalDate.of(2007, 1, 2))
+				.build()
+				.convert();
+		new CreatePseudoNetwork(scenario.getTransitSchedule(), scenario.getNetwork(), "pt_").createNetwork();
+
+		int vehicles = new TransitFleetBuilder(scenario.getTransitSchedule(), scenario.getTransitVehicles(), scenario.getNetwork(), 60)
+				.setNumberOfThreads(2)
+				.run();
+
+		List<Departure> departures = scenario.getTransitSchedule().getTransitLines().values().stream()
+				.flatMap(line -> line.getRoutes().values().stream())
+				.flatMap(route -> route.getDepartures().values().stream())
+				.toList();
+
+		Assertions.assertEquals(vehicles, scenario.getTransitVehicles().getVehicles().size());
+		Assertions.assertTrue(vehicles < departures.size() / 2, "Vehicles should be shared, got " + vehicles + " for " + departures.size() + " departures");
+		for (Departure departure : departures) {
+			Assertions.assertTrue(scenario.getTransitVehicles().getVehicles().containsKey(departure.getVehicleId()), "Departure without vehicle " + departure.getId());
+		}
+		Assertions.assertTrue(scenario.getTransitVehicles().getVehicleTypes().containsKey(Id.create("pt_bus", VehicleType.class)));
+	}
+}
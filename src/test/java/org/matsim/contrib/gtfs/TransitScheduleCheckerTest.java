@@ -0,0 +1,112 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+public class TransitScheduleCheckerTest {
+
+	@Test
+	public void testIssuesAreReported() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitStopFacility a = addStop(schedule, "a", 0);
+		TransitStopFacility b = addStop(schedule, "b", 5000);
+		TransitStopFacility far = addStop(schedule, "far", 500_000);
+		TransitStopFacility dangling = f.createTransitStopFacility(Id.create("dangling", TransitStopFacility.class), new Coord(100, 0), false);
+
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		schedule.addTransitLine(line);
+		TransitRoute valid = addRoute(f, line, "valid", List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(b, 600, 600)));
+		valid.addDeparture(f.createDeparture(Id.create("valid1", Departure.class), 8 * 3600));
+		valid.addDeparture(f.createDeparture(Id.create("valid2", Departure.class), 9 * 3600));
+
+		TransitRoute duplicates = addRoute(f, line, "duplicates", List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(b, 600, 600)));
+		duplicates.addDeparture(f.createDeparture(Id.create("dup1", Departure.class), 8 * 3600));
+		duplicates.addDeparture(f.createDeparture(Id.create("dup2", Departure.class), 8 * 3600));
+
+		// 500km in 10 minutes by bus, and back in time
+		TransitRoute broken = addRoute(f, line, "broken", List.of(f.createTransitRouteStop(a, 0, 0),
+				f.createTransitRouteStop(far, 600, 600), f.createTransitRouteStop(b, 300, 300)));
+		broken.addDeparture(f.createDeparture(Id.create("broken", Departure.class), 8 * 3600));
+
+		addRoute(f, line, "empty", List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(dangling, 600, 600)));
+
+		TransitScheduleChecker.Report report = new TransitScheduleChecker(null).setNumberOfThreads(2).check(schedule);
+
+		Assertions.assertFalse(report.isValid());
+		Assertions.assertEquals(1, report.lines());
+		Assertions.assertEquals(4, report.routes());
+		Map<TransitScheduleChecker.IssueType, Integer> counts = report.countByType();
+		Assertions.assertEquals(1, counts.get(TransitScheduleChecker.IssueType.DUPLICATE_DEPARTURE));
+		Assertions.assertEquals(1, counts.get(TransitScheduleChecker.IssueType.UNREALISTIC_SPEED));
+		Assertions.assertEquals(1, counts.get(TransitScheduleChecker.IssueType.NON_MONOTONIC_OFFSETS));
+		Assertions.assertEquals(1, counts.get(TransitScheduleChecker.IssueType.EMPTY_ROUTE));
+		Assertions.assertEquals(1, counts.get(TransitScheduleChecker.IssueType.DANGLING_REFERENCE));
+		Assertions.assertTrue(report.issues().stream().noneMatch(issue -> issue.route().equals(valid.getId())),
+				"Valid route was reported");
+		Assertions.assertThrows(IllegalStateException.class, report::throwIfInvalid);
+	}
+
+	@Test
+	public void testValidSchedule() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitStopFacility a = addStop(schedule, "a", 0);
+		TransitStopFacility b = addStop(schedule, "b", 1000);
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		schedule.addTransitLine(line);
+		// served within the same minute, which is common in feeds with times in minutes
+		TransitRoute route = addRoute(f, line, "route", List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(b, 0, 0)));
+		route.addDeparture(f.createDeparture(Id.create("dep", Departure.class), 8 * 3600));
+
+		TransitScheduleChecker.Report report = new TransitScheduleChecker(null).check(schedule);
+
+		Assertions.assertTrue(report.isValid(), "Unexpected issues " + report.issues());
+		report.throwIfInvalid();
+	}
+
+	private static TransitStopFacility addStop(TransitSchedule schedule, String id, double x) {
+		TransitStopFacility stop = schedule.getFactory().createTransitStopFacility(Id.create(id, TransitStopFacility.class), new Coord(x, 0), false);
+		schedule.addStopFacility(stop);
+		return stop;
+	}
+
+	private static TransitRoute addRoute(TransitScheduleFactory f, TransitLine line, String id, List<TransitRouteStop> stops) {
+		TransitRoute route = f.createTransitRoute(Id.create(id, TransitRoute.class), null, stops, "bus");
+		line.addRoute(route);
+		return route;
+	}
+}
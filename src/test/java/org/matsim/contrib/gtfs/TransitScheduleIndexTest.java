@@ -0,0 +1,128 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopArea;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+public class TransitScheduleIndexTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void testWriteAndLoad() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitStopFacility a = addStop(schedule, "a", 0, "station");
+		TransitStopFacility b = addStop(schedule, "b", 100, "station");
+		TransitStopFacility c = addStop(schedule, "c", 5000, null);
+
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		schedule.addTransitLine(line);
+		TransitRoute route = f.createTransitRoute(Id.create("route", TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStopBuilder(c).arrivalOffset(600).build()), "bus");
+		route.addDeparture(f.createDeparture(Id.create("late", Departure.class), 9 * 3600));
+		route.addDeparture(f.createDeparture(Id.create("early", Departure.class), 8 * 3600));
+		line.addRoute(route);
+
+		Path file = TransitScheduleIndex.getIndexFile(tempDir.resolve("transitSchedule.xml.gz").toString());
+		Assertions.assertEquals("transitSchedule.raptor.idx", file.getFileName().toString());
+		TransitScheduleIndex.write(schedule, file, 500, 2);
+		TransitScheduleIndex index = TransitScheduleIndex.load(file);
+
+		Assertions.assertEquals(3, index.getStopCount());
+		int stopC = index.getStopIndex(c.getId());
+		Assertions.assertEquals("c", index.getStopId(stopC));
+		Assertions.assertEquals(5000, index.getStopCoord(stopC).getX());
+		Assertions.assertEquals(-1, index.getStopIndex(Id.create("unknown", TransitStopFacility.class)));
+
+		Assertions.assertEquals(1, index.getRouteCount());
+		Assertions.assertEquals("line", index.getLineId(0));
+		Assertions.assertEquals("route", index.getRouteId(0));
+		Assertions.assertEquals("bus", index.getTransportMode(0));
+		Assertions.assertEquals(2, index.getRouteStopCount(0));
+		int lastRouteStop = index.getRouteStopIndex(0, 1);
+		Assertions.assertEquals(stopC, index.getRouteStopStop(lastRouteStop));
+		Assertions.assertEquals(600, index.getArrivalOffset(lastRouteStop));
+		Assertions.assertEquals(TransitScheduleIndex.UNDEFINED, index.getDepartureOffset(lastRouteStop));
+		Assertions.assertEquals(0, index.getRouteOfRouteStop(lastRouteStop));
+		Assertions.assertArrayEquals(new int[] {lastRouteStop}, index.getRouteStopsOfStop(stopC));
+
+		Assertions.assertEquals(2, index.getDepartureCount(0));
+		Assertions.assertEquals(8 * 3600, index.getDepartureTime(0, 0), "Departures should be sorted by time");
+		Assertions.assertEquals("early", index.getDepartureId(0, 0));
+
+		int stopA = index.getStopIndex(a.getId());
+		int stopB = index.getStopIndex(b.getId());
+		Assertions.assertEquals(1, index.getTransferCount(stopA));
+		Assertions.assertEquals(stopB, index.getTransferStop(stopA, 0));
+		Assertions.assertEquals(100, index.getTransferDistance(stopA, 0), 1e-6);
+		Assertions.assertEquals(0, index.getTransferCount(stopC));
+
+		Assertions.assertEquals(1, index.getStopAreaCount());
+		Assertions.assertEquals("station", index.getStopAreaId(0));
+		Assertions.assertArrayEquals(new int[] {Math.min(stopA, stopB), Math.max(stopA, stopB)}, index.getStopsOfArea(0));
+		Assertions.assertEquals(-1, index.getStopArea(stopC));
+	}
+
+	@Test
+	public void testOtherVersionIsRejected() throws IOException {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		addStop(schedule, "a", 0, null);
+		Path file = tempDir.resolve("schedule.raptor.idx");
+		TransitScheduleIndex.write(schedule, file, 500);
+
+		byte[] bytes = Files.readAllBytes(file);
+		ByteBuffer.wrap(bytes).putInt(Integer.BYTES, TransitScheduleIndex.VERSION + 1);
+		Files.write(file, bytes);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> TransitScheduleIndex.load(file));
+
+		Files.write(file, new byte[] {1, 2, 3});
+		Assertions.assertThrows(IllegalArgumentException.class, () -> TransitScheduleIndex.load(file));
+	}
+
+	private static TransitStopFacility addStop(TransitSchedule schedule, String id, double x, String area) {
+		TransitStopFacility stop = schedule.getFactory().createTransitStopFacility(Id.create(id, TransitStopFacility.class), new Coord(x, 0), false);
+		if (area != null) {
+			stop.setStopAreaId(Id.create(area, TransitStopArea.class));
+		}
+		schedule.addStopFacility(stop);
+		return stop;
+	}
+}
@@ -22,6 +22,8 @@ package org.matsim.contrib.gtfs;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -130,6 +132,92 @@ public class TransitSchedulePostProcessToolsTest {
 				"Departure early was copied although it contains the exclusionMarker");
 	}
 	
+	@Test
+	public void testWrapDepartures() {
+		Id<TransitLine> redLineId = Id.create("red", TransitLine.class);
+		Id<TransitRoute> redFirstToLastRouteId = Id.create("redFirstToLast", TransitRoute.class);
+
+		DepartureCopyingFixture f = new DepartureCopyingFixture();
+		TransitSchedule schedule = f.schedule;
+		int copied = TransitSchedulePostProcessTools.wrapDepartures(schedule, 23*3600, 13*3600, false);
+		Map<Id<Departure>, Departure> departures =
+				schedule.getTransitLines().get(redLineId).getRoutes().get(redFirstToLastRouteId).getDepartures();
+
+		Assertions.assertEquals(3, copied, "wrong number of copied departures");
+		Assertions.assertEquals(7, departures.size(), "wrong number of departures after copying");
+		Assertions.assertTrue(oldDeparturesStillExist(departures), "At least one of the old Departures does not exist any longer or has a wrong departure time after copying");
+		Departure late = departures.get(Id.create("copied-24h_lateArrivalAfterMidnight", Departure.class));
+		Assertions.assertEquals(23.0*3600 + 55*60 - 24*3600, late.getDepartureTime(), 0.1,
+				"Departure lateArrivalAfterMidnight was not copied or has wrong departure time");
+		Assertions.assertEquals(-1, late.getAttributes().getAttribute(TransitSchedulePostProcessTools.DAY_SHIFT));
+		Departure early = departures.get(Id.create("copied+24h_early", Departure.class));
+		Assertions.assertEquals(6.0*3600 + 24*3600, early.getDepartureTime(), 0.1,
+				"Departure early was not copied or has wrong departure time");
+		Assertions.assertEquals(1, early.getAttributes().getAttribute(TransitSchedulePostProcessTools.DAY_SHIFT));
+		Assertions.assertNotNull(departures.get(Id.create("copied+24h_midday", Departure.class)));
+		// the copy of lateArrivalAfterMidnight departs before 13:00, but copies are not copied again
+		Assertions.assertFalse(departures.containsKey(Id.create("copied+24h_copied-24h_lateArrivalAfterMidnight", Departure.class)),
+				"A copied departure was copied again");
+		Assertions.assertNull(departures.get(Id.create("early", Departure.class)).getAttributes().getAttribute(TransitSchedulePostProcessTools.DAY_SHIFT));
+
+		Assertions.assertEquals(0, TransitSchedulePostProcessTools.wrapDepartures(schedule, 24*3600, 0, false),
+				"Nothing should be copied outside of the copying times");
+	}
+
+	@Test
+	public void testRemoveDuplicateDepartures() {
+		Id<TransitLine> redLineId = Id.create("red", TransitLine.class);
+		Id<TransitRoute> redFirstToLastRouteId = Id.create("redFirstToLast", TransitRoute.class);
+
+		DepartureCopyingFixture f = new DepartureCopyingFixture();
+		TransitSchedule schedule = f.schedule;
+		TransitRoute route = schedule.getTransitLines().get(redLineId).getRoutes().get(redFirstToLastRouteId);
+		route.addDeparture(schedule.getFactory().createDeparture(Id.create("earlyDuplicate", Departure.class), 6.0*3600));
+		route.addDeparture(schedule.getFactory().createDeparture(Id.create("earlyDuplicate2", Departure.class), 6.0*3600));
+
+		int removed = TransitSchedulePostProcessTools.removeDuplicateDepartures(schedule);
+		Map<Id<Departure>, Departure> departures = route.getDepartures();
+
+		Assertions.assertEquals(2, removed, "wrong number of removed departures");
+		Assertions.assertEquals(4, departures.size(), "wrong number of departures after removing duplicates");
+		List<Departure> earlyDepartures = departures.values().stream().filter(dep -> dep.getDepartureTime() == 6.0*3600).toList();
+		Assertions.assertEquals(1, earlyDepartures.size(), "Duplicate departures were not removed");
+		Object mergedIds = earlyDepartures.get(0).getAttributes().getAttribute(TransitSchedulePostProcessTools.MERGED_DEPARTURE_IDS);
+		Assertions.assertNotNull(mergedIds, "Merged departure ids were not recorded");
+		Set<String> ids = new TreeSet<>(List.of(mergedIds.toString().split(",")));
+		Assertions.assertEquals(2, ids.size(), "wrong number of merged departure ids");
+		ids.add(earlyDepartures.get(0).getId().toString());
+		Assertions.assertEquals(Set.of("early", "earlyDuplicate", "earlyDuplicate2"), ids, "Merged ids should be the ids of the removed departures");
+		Assertions.assertNull(departures.get(Id.create("midday", Departure.class)).getAttributes().getAttribute(TransitSchedulePostProcessTools.MERGED_DEPARTURE_IDS));
+	}
+
+	@Test
+	public void testPostProcessorRunsStagesInOnePass() {
+		Id<TransitLine> redLineId = Id.create("red", TransitLine.class);
+		Id<TransitRoute> redFirstToLastRouteId = Id.create("redFirstToLast", TransitRoute.class);
+
+		DepartureCopyingFixture f = new DepartureCopyingFixture();
+		TransitSchedule schedule = f.schedule;
+		TransitRoute route = schedule.getTransitLines().get(redLineId).getRoutes().get(redFirstToLastRouteId);
+		route.addDeparture(schedule.getFactory().createDeparture(Id.create("earlyDuplicate", Departure.class), 6.0*3600));
+
+		List<TransitSchedulePostProcessor.StageResult> results = new TransitSchedulePostProcessor()
+				.addDepartureStage("wrap", TransitSchedulePostProcessTools.dayWrappingCopier(23*3600, 13*3600, false))
+				.addRouteStage("duplicates", TransitSchedulePostProcessTools.duplicateDepartureRemover())
+				.setNumberOfThreads(2)
+				.run(schedule);
+
+		// route stages run before departure stages, so the duplicate is not copied
+		Assertions.assertEquals(List.of("duplicates", "wrap"), results.stream().map(TransitSchedulePostProcessor.StageResult::name).toList());
+		Assertions.assertEquals(1, results.get(0).changes(), "wrong number of removed duplicates");
+		Assertions.assertEquals(3, results.get(1).changes(), "wrong number of copied departures");
+		Map<Id<Departure>, Departure> departures = route.getDepartures();
+		Assertions.assertEquals(7, departures.size(), "wrong number of departures after post-processing");
+		Assertions.assertTrue(oldDeparturesStillExist(departures), "At least one of the old Departures does not exist any longer or has a wrong departure time after copying");
+		Assertions.assertFalse(departures.containsKey(Id.create("copied+24h_earlyDuplicate", Departure.class)),
+				"Removed duplicate was copied");
+	}
+
 	private boolean oldDeparturesStillExist(Map<Id<Departure>, Departure> departures)  {
 		if (departures.containsKey(Id.create("early", Departure.class))
 				&& departures.containsKey(Id.create("midday", Departure.class))
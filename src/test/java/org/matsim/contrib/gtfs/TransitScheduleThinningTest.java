@@ -0,0 +1,106 @@
+/* *********************************************************************** *
+ * project: org.matsim.contrib.gtfs.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2020 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.contrib.gtfs;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+public class TransitScheduleThinningTest {
+
+	@Test
+	public void testKeepEveryKthDeparture() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitRoute route = addRouteWithHeadway(schedule, 600);
+
+		int removed = TransitScheduleThinning.keepEveryKthDeparture(schedule, 3);
+
+		Assertions.assertEquals(8, removed, "wrong number of removed departures");
+		Assertions.assertEquals(List.of(6.0 * 3600, 6.5 * 3600, 7.0 * 3600, 7.5 * 3600), getDepartureTimes(route));
+	}
+
+	@Test
+	public void testSampleDepartures() {
+		TransitSchedule schedule = ScenarioUtils.createScenario(ConfigUtils.createConfig()).getTransitSchedule();
+		TransitRoute route = addRouteWithHeadway(schedule, 600);
+
+		// 6 departures per hour, a quarter of them rounds to 2, which should keep a 30 minute headway
+		int removed = TransitScheduleThinning.sampleDepartures(schedule, 0.25, 3600);
+
+		Assertions.assertEquals(8, removed, "wrong number of removed departures");
+		Assertions.assertEquals(List.of(6 * 3600 + 600.0, 6 * 3600 + 2400.0, 7 * 3600 + 600.0, 7 * 3600 + 2400.0), getDepartureTimes(route));
+
+		// each band keeps at least one departure
+		TransitScheduleThinning.sampleDepartures(schedule, 0.01, 3600);
+		Assertions.assertEquals(2, route.getDepartures().size(), "a time band lost all departures");
+	}
+
+	@Test
+	public void testScaleVehicleCapacities() {
+		Vehicles vehicles = VehicleUtils.createVehiclesContainer();
+		VehicleType bus = VehicleUtils.createVehicleType(Id.create("bus", VehicleType.class));
+		bus.getCapacity().setSeats(40);
+		bus.getCapacity().setStandingRoom(60);
+		vehicles.addVehicleType(bus);
+
+		TransitScheduleThinning.scaleVehicleCapacities(vehicles, 0.1);
+
+		Assertions.assertEquals(4, bus.getCapacity().getSeats());
+		Assertions.assertEquals(6, bus.getCapacity().getStandingRoom());
+	}
+
+	/**
+	 * Adds a route with departures between 6:00 and 7:50 with the given headway, in reverse order of time.
+	 */
+	private static TransitRoute addRouteWithHeadway(TransitSchedule schedule, double headway) {
+		TransitScheduleFactory f = schedule.getFactory();
+		TransitStopFacility a = f.createTransitStopFacility(Id.create("a", TransitStopFacility.class), new Coord(0, 0), false);
+		TransitStopFacility b = f.createTransitStopFacility(Id.create("b", TransitStopFacility.class), new Coord(5000, 0), false);
+		schedule.addStopFacility(a);
+		schedule.addStopFacility(b);
+		TransitRoute route = f.createTransitRoute(Id.create("route", TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(b, 20 * 60, 20 * 60)), "bus");
+		for (double time = 8 * 3600 - headway; time >= 6 * 3600; time -= headway) {
+			route.addDeparture(f.createDeparture(Id.create("dep_" + (int) time, Departure.class), time));
+		}
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		line.addRoute(route);
+		schedule.addTransitLine(line);
+		return route;
+	}
+
+	private static List<Double> getDepartureTimes(TransitRoute route) {
+		return route.getDepartures().values().stream().map(Departure::getDepartureTime).sorted().toList();
+	}
+}